@@ -29,10 +29,17 @@ public class BaselineTest {
     private Long[] objIds;
     // indexed collection of Long under test
     private MyCollection<Long> first;
+    private Workload keys;
+    // same queries as created below, prepared once per thread
+    private ThreadLocal<PreparedQuery<Long>> preparedId;
+    private ThreadLocal<PreparedQuery<Long>> preparedUniqueExists;
 
     // generate random or sequential data
     @Param({"true"})
     boolean random;
+    // keys of queries, see Workload
+    @Param({"UNIFORM"})
+    String distribution;
 
     private static final SimpleAttribute<Long, Long> ID = new SimpleAttribute<Long, Long>(Long.class, Long.class, "id") {
         @Override
@@ -52,10 +59,13 @@ public class BaselineTest {
     public void setUp() throws Exception {
         first = new MyCollection<>();
         objIds = random ? generate(MAX_IDS, MAX_IDS * 1000) : generate(MAX_IDS);
+        keys = Workload.of(distribution, objIds.length);
         Stream.of(objIds).distinct()
                 .forEach(v -> {
                     first.add(v);
                 });
+        preparedId = PreparedQuery.perThread(() -> PreparedQuery.param(ID));
+        preparedUniqueExists = PreparedQuery.perThread(() -> QueryFactory.and(PreparedQuery.param(ID), QueryFactory.existsIn(first, ID, EID)));
     }
 
     @Benchmark
@@ -63,9 +73,14 @@ public class BaselineTest {
         bh.consume(randomObject(objIds));
     }
 
+    @Benchmark
+    public void workloadBaseline(Blackhole bh) {
+        bh.consume(keys.nextId(objIds));
+    }
+
     @Benchmark
     public void createIdQuery(Blackhole bh) {
-        Equal equal = QueryFactory.equal(ID, randomObject(objIds));
+        Equal equal = QueryFactory.equal(ID, keys.nextId(objIds));
         bh.consume(equal);
     }
 
@@ -77,19 +92,39 @@ public class BaselineTest {
 
     @Benchmark
     public void createUniqueExistsQuery(Blackhole bh) {
-        Query query = QueryFactory.and(QueryFactory.equal(ID, randomObject(objIds)), QueryFactory.existsIn(first, ID, EID));
+        Query query = QueryFactory.and(QueryFactory.equal(ID, keys.nextId(objIds)), QueryFactory.existsIn(first, ID, EID));
         bh.consume(query);
     }
 
+    @Benchmark
+    public void createPreparedIdQuery(Blackhole bh) {
+        bh.consume(preparedId.get().bind(keys.nextId(objIds)).query());
+    }
+
+    @Benchmark
+    public void createPreparedUniqueExistsQuery(Blackhole bh) {
+        bh.consume(preparedUniqueExists.get().bind(keys.nextId(objIds)).query());
+    }
+
     @Benchmark
     public void createQueryOptions(Blackhole bh) {
         QueryOptions queryOptions = first.createOptions();
         bh.consume(queryOptions);
     }
 
+    @Benchmark
+    public void pooledQueryOptions(Blackhole bh) {
+        QueryOptions queryOptions = first.createOptions(preparedId.get().options());
+        bh.consume(queryOptions);
+    }
+
     class MyCollection<T> extends ConcurrentIndexedCollection<T> {
         public QueryOptions createOptions() {
-            final QueryOptions queryOptions = openRequestScopeResourcesIfNecessary(null);
+            return createOptions(null);
+        }
+
+        public QueryOptions createOptions(QueryOptions pooled) {
+            final QueryOptions queryOptions = openRequestScopeResourcesIfNecessary(pooled);
             flagAsReadRequest(queryOptions);
             return queryOptions;
         }
@@ -98,22 +133,22 @@ public class BaselineTest {
 
     @Benchmark
     public void randomList1Baseline(Blackhole bh) {
-        bh.consume(randomList(objIds, 1));
+        bh.consume(keys.nextIds(objIds, 1));
     }
 
     @Benchmark
     public void randomList5Baseline(Blackhole bh) {
-        bh.consume(randomList(objIds, 5));
+        bh.consume(keys.nextIds(objIds, 5));
     }
 
     @Benchmark
     public void randomList10Baseline(Blackhole bh) {
-        bh.consume(randomList(objIds, 25));
+        bh.consume(keys.nextIds(objIds, 25));
     }
 
     @Benchmark
     public void randomList100Baseline(Blackhole bh) {
-        bh.consume(randomList(objIds, 100));
+        bh.consume(keys.nextIds(objIds, 100));
     }
 
 }
@@ -0,0 +1,474 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Compressed bitmap of non-negative ints in the roaring layout: values are split by their high 16 bits into
+ * containers of low 16 bits. A container is a sorted array while it has at most 4096 values and a bitmap
+ * of 1024 words otherwise. And and or go container by container, on words when both containers are bitmaps.
+ * <p>
+ * Not thread safe.
+ */
+public class Bitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1 << 10;
+    private static final int SEARCH_RATIO = 32;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    public Bitmap() {
+        this(new char[4], new Container[4], 0);
+    }
+
+    private Bitmap(char[] keys, Container[] containers, int size) {
+        this.keys = keys;
+        this.containers = containers;
+        this.size = size;
+    }
+
+    private int index(char key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else if (keys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void append(char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        keys[size] = key;
+        containers[size++] = container;
+    }
+
+    public void add(int value) {
+        char high = (char) (value >>> 16);
+        int i = index(high);
+        if (i >= 0) {
+            containers[i] = containers[i].add((char) value);
+            return;
+        }
+        i = -i - 1;
+        append(high, null);
+        System.arraycopy(keys, i, keys, i + 1, size - i - 1);
+        System.arraycopy(containers, i, containers, i + 1, size - i - 1);
+        keys[i] = high;
+        containers[i] = new ArrayContainer(new char[4], 0).add((char) value);
+    }
+
+    public void remove(int value) {
+        int i = index((char) (value >>> 16));
+        if (i < 0) {
+            return;
+        }
+        Container container = containers[i].remove((char) value);
+        if (container.cardinality() > 0) {
+            containers[i] = container;
+            return;
+        }
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        containers[--size] = null;
+    }
+
+    public boolean contains(int value) {
+        int i = index((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality();
+        }
+        return cardinality;
+    }
+
+    public Bitmap copy() {
+        Container[] copy = new Container[Math.max(size, 1)];
+        for (int i = 0; i < size; i++) {
+            copy[i] = containers[i].copy();
+        }
+        return new Bitmap(Arrays.copyOf(keys, copy.length), copy, size);
+    }
+
+    public Bitmap and(Bitmap other) {
+        Bitmap result = new Bitmap(new char[Math.max(Math.min(size, other.size), 1)], new Container[Math.max(Math.min(size, other.size), 1)], 0);
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality() > 0) {
+                    result.append(keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public Bitmap or(Bitmap other) {
+        Bitmap result = new Bitmap(new char[Math.max(size + other.size, 1)], new Container[Math.max(size + other.size, 1)], 0);
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                result.append(keys[i], containers[i++].copy());
+            } else if (keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j++].copy());
+            } else {
+                result.append(keys[i], containers[i++].or(other.containers[j++]));
+            }
+        }
+        for (; i < size; i++) {
+            result.append(keys[i], containers[i].copy());
+        }
+        for (; j < other.size; j++) {
+            result.append(other.keys[j], other.containers[j].copy());
+        }
+        return result;
+    }
+
+    /**
+     * @return values in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int container;
+            private PrimitiveIterator.OfInt values = size == 0 ? null : containers[0].iterator(keys[0] << 16);
+
+            @Override
+            public boolean hasNext() {
+                while (values != null && !values.hasNext()) {
+                    values = ++container < size ? containers[container].iterator(keys[container] << 16) : null;
+                }
+                return values != null;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return values.nextInt();
+            }
+        };
+    }
+
+    private abstract static class Container {
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        abstract PrimitiveIterator.OfInt iterator(int high);
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (cardinality == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(Math.max(cardinality * 2, 4), ARRAY_MAX));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer && ((ArrayContainer) other).cardinality < cardinality) {
+                return other.and(this);
+            }
+            char[] result = new char[cardinality];
+            int n = 0;
+            if (other instanceof BitmapContainer) {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        result[n++] = values[i];
+                    }
+                }
+            } else if (((ArrayContainer) other).cardinality > SEARCH_RATIO * cardinality) {
+                // few values against many: binary search of each in the rest of the larger array
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0, from = 0; i < cardinality && from < array.cardinality; i++) {
+                    int j = Arrays.binarySearch(array.values, from, array.cardinality, values[i]);
+                    if (j >= 0) {
+                        result[n++] = values[i];
+                        from = j + 1;
+                    } else {
+                        from = -j - 1;
+                    }
+                }
+            } else {
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0, j = 0; i < cardinality && j < array.cardinality; ) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer array = (ArrayContainer) other;
+            char[] result = new char[cardinality + array.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality && j < array.cardinality) {
+                if (values[i] < array.values[j]) {
+                    result[n++] = values[i++];
+                } else if (values[i] > array.values[j]) {
+                    result[n++] = array.values[j++];
+                } else {
+                    result[n++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                result[n++] = values[i++];
+            }
+            while (j < array.cardinality) {
+                result[n++] = array.values[j++];
+            }
+            ArrayContainer union = new ArrayContainer(result, n);
+            return n > ARRAY_MAX ? union.toBitmap() : union;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer(new long[WORDS], 0);
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        PrimitiveIterator.OfInt iterator(int high) {
+            return new PrimitiveIterator.OfInt() {
+                private int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < cardinality;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (i >= cardinality) {
+                        throw new NoSuchElementException();
+                    }
+                    return high | values[i++];
+                }
+            };
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long word = words[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) == 0) {
+                words[value >>> 6] = word | bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long word = words[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) != 0) {
+                words[value >>> 6] = word & ~bit;
+                if (--cardinality <= ARRAY_MAX) {
+                    return toArray();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            long[] result = new long[WORDS];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                result[i] = words[i] & otherWords[i];
+                n += Long.bitCount(result[i]);
+            }
+            BitmapContainer intersection = new BitmapContainer(result, n);
+            return n <= ARRAY_MAX ? intersection.toArray() : intersection;
+        }
+
+        @Override
+        Container or(Container other) {
+            long[] result = words.clone();
+            if (other instanceof ArrayContainer) {
+                BitmapContainer union = new BitmapContainer(result, cardinality);
+                ArrayContainer array = (ArrayContainer) other;
+                for (int i = 0; i < array.cardinality; i++) {
+                    union.add(array.values[i]);
+                }
+                return union;
+            }
+            long[] otherWords = ((BitmapContainer) other).words;
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                result[i] |= otherWords[i];
+                n += Long.bitCount(result[i]);
+            }
+            return new BitmapContainer(result, n);
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[cardinality];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1) {
+                    values[n++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+
+        @Override
+        PrimitiveIterator.OfInt iterator(int high) {
+            return new PrimitiveIterator.OfInt() {
+                private int i;
+                private long word = words[0];
+
+                @Override
+                public boolean hasNext() {
+                    while (word == 0 && i < WORDS - 1) {
+                        word = words[++i];
+                    }
+                    return word != 0;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int value = i * 64 + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    return high | value;
+                }
+            };
+        }
+    }
+}
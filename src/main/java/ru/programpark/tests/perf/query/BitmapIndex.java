@@ -0,0 +1,384 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.iterator.UnmodifiableIterator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.LongFunction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of low cardinality long attributes, e.g. foreign keys, as a {@link Bitmap} of rows per attribute value.
+ * Rows are numbered by their primary key, which has to fit into int. The index keeps no objects: result sets resolve
+ * them by primary key from the collection, i.e. through its unique index on the key.
+ * <p>
+ * CQEngine asks indexes about simple queries on their attribute only, so the index is on an attribute of its own
+ * and answers {@link BitmapQuery}: an and/or/equal/in tree over the indexed attributes evaluated with bitmap
+ * operations, see {@link QueryRewrite#toBitmap}. Readers combine bitmaps under a shared lock, writers update them
+ * under an exclusive one.
+ */
+public class BitmapIndex<O> extends AbstractAttributeIndex<Long, O> implements OnHeapTypeIndex {
+
+    protected static final int INDEX_RETRIEVAL_COST = 20;
+
+    private final SimpleAttribute<O, Long> primaryKey;
+    private final Map<Attribute<O, Long>, LongObjectMap<Bitmap>> bitmaps = new LinkedHashMap<>();
+    private final LongFunction<O> rows;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    protected BitmapIndex(SimpleAttribute<O, Long> primaryKey, LongFunction<O> rows, List<SimpleAttribute<O, Long>> attributes) {
+        super(attributeOf(primaryKey, attributes), Collections.<Class<? extends Query>>singleton(BitmapQuery.class));
+        this.primaryKey = primaryKey;
+        this.rows = rows;
+        for (SimpleAttribute<O, Long> attribute : attributes) {
+            bitmaps.put(attribute, new LongObjectMap<>());
+        }
+    }
+
+    /**
+     * @param rows objects of the collection by primary key, null if absent, e.g. {@link HashJoin#uniqueLookup}
+     */
+    @SafeVarargs
+    public static <O> BitmapIndex<O> onAttributes(SimpleAttribute<O, Long> primaryKey, LongFunction<O> rows, SimpleAttribute<O, Long>... attributes) {
+        return new BitmapIndex<>(primaryKey, rows, Arrays.asList(attributes));
+    }
+
+    private static <O> SimpleAttribute<O, Long> attributeOf(SimpleAttribute<O, Long> primaryKey, List<SimpleAttribute<O, Long>> attributes) {
+        StringBuilder name = new StringBuilder("bitmap");
+        String separator = "(";
+        for (SimpleAttribute<O, Long> attribute : attributes) {
+            name.append(separator).append(attribute.getAttributeName());
+            separator = ", ";
+        }
+        return new SimpleAttribute<O, Long>(primaryKey.getObjectType(), Long.class, name.append(')').toString()) {
+            @Override
+            public Long getValue(O object, QueryOptions queryOptions) {
+                return primaryKey.getValue(object, queryOptions);
+            }
+        };
+    }
+
+    /**
+     * @return the query has equal() and in() on indexed attributes only, combined with and() and or()
+     */
+    public boolean supports(Query<O> query) {
+        if (query instanceof Equal || query instanceof In) {
+            return bitmaps.containsKey(((SimpleQuery) query).getAttribute());
+        } else if (query instanceof And || query instanceof Or) {
+            for (Query<O> child : ((com.googlecode.cqengine.query.logical.LogicalQuery<O>) query).getChildQueries()) {
+                if (!supports(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param query supported by the index
+     */
+    public BitmapQuery<O> query(Query<O> query) {
+        if (!supports(query)) {
+            throw new IllegalArgumentException("Unsupported query: " + query);
+        }
+        return new BitmapQuery<>(getAttribute(), query);
+    }
+
+    private int row(O object, QueryOptions queryOptions) {
+        long key = LongAttribute.longValue(primaryKey, object, queryOptions);
+        if (key < 0 || key > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Primary key is out of int range: " + key);
+        }
+        return (int) key;
+    }
+
+    /**
+     * @return bitmap of the index for equal(), new bitmap otherwise, called under the read lock
+     */
+    private Bitmap evaluate(Query<O> query) {
+        if (query instanceof Equal) {
+            Equal<O, Long> equal = (Equal<O, Long>) query;
+            Bitmap bitmap = bitmaps.get(equal.getAttribute()).get(equal.getValue());
+            return bitmap == null ? new Bitmap() : bitmap;
+        } else if (query instanceof In) {
+            In<O, Long> in = (In<O, Long>) query;
+            LongObjectMap<Bitmap> byValue = bitmaps.get(in.getAttribute());
+            Bitmap result = new Bitmap();
+            for (Long value : in.getValues()) {
+                Bitmap bitmap = byValue.get(value);
+                if (bitmap != null) {
+                    result = result.or(bitmap);
+                }
+            }
+            return result;
+        } else if (query instanceof And) {
+            Bitmap result = null;
+            for (Query<O> child : ((And<O>) query).getChildQueries()) {
+                result = result == null ? evaluate(child) : result.and(evaluate(child));
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            return result;
+        } else if (query instanceof Or) {
+            Bitmap result = new Bitmap();
+            for (Query<O> child : ((Or<O>) query).getChildQueries()) {
+                result = result.or(evaluate(child));
+            }
+            return result;
+        }
+        throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<O> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        if (!query.getClass().equals(BitmapQuery.class)) {
+            throw new IllegalArgumentException("Unsupported query: " + query);
+        }
+        Bitmap result;
+        lock.readLock().lock();
+        try {
+            Query<O> bitmapQuery = ((BitmapQuery<O>) query).getQuery();
+            result = evaluate(bitmapQuery);
+            if (bitmapQuery instanceof Equal) {
+                result = result.copy();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new BitmapResultSet((BitmapQuery<O>) query, queryOptions, result);
+    }
+
+    @Override
+    public boolean addAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        lock.writeLock().lock();
+        try {
+            for (O object : objectSet) {
+                int row = row(object, queryOptions);
+                for (Map.Entry<Attribute<O, Long>, LongObjectMap<Bitmap>> entry : bitmaps.entrySet()) {
+                    for (Long value : entry.getKey().getValues(object, queryOptions)) {
+                        Bitmap bitmap = entry.getValue().get(value);
+                        if (bitmap == null) {
+                            bitmap = new Bitmap();
+                            entry.getValue().putIfAbsent(value, bitmap);
+                        }
+                        bitmap.add(row);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        lock.writeLock().lock();
+        try {
+            for (O object : objectSet) {
+                int row = row(object, queryOptions);
+                for (Map.Entry<Attribute<O, Long>, LongObjectMap<Bitmap>> entry : bitmaps.entrySet()) {
+                    for (Long value : entry.getKey().getValues(object, queryOptions)) {
+                        Bitmap bitmap = entry.getValue().get(value);
+                        if (bitmap != null) {
+                            bitmap.remove(row);
+                            if (bitmap.isEmpty()) {
+                                entry.getValue().remove(value, bitmap);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public void clear(QueryOptions queryOptions) {
+        lock.writeLock().lock();
+        try {
+            bitmaps.values().forEach(LongObjectMap::clear);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void init(ObjectStore<O> objectStore, QueryOptions queryOptions) {
+        addAll(ObjectSet.fromObjectStore(objectStore, queryOptions), queryOptions);
+    }
+
+    /**
+     * Query answered by a bitmap index, matches objects as the wrapped query does
+     */
+    public static class BitmapQuery<O> extends SimpleQuery<O, Long> {
+        private final Query<O> query;
+
+        BitmapQuery(Attribute<O, Long> attribute, Query<O> query) {
+            super(attribute);
+            this.query = query;
+        }
+
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        protected boolean matchesSimpleAttribute(SimpleAttribute<O, Long> attribute, O object, QueryOptions queryOptions) {
+            return query.matches(object, queryOptions);
+        }
+
+        @Override
+        protected boolean matchesNonSimpleAttribute(Attribute<O, Long> attribute, O object, QueryOptions queryOptions) {
+            return query.matches(object, queryOptions);
+        }
+
+        @Override
+        protected int calcHashCode() {
+            return 31 * attribute.hashCode() + query.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BitmapQuery)) {
+                return false;
+            }
+            BitmapQuery<?> that = (BitmapQuery<?>) o;
+            return attribute.equals(that.attribute) && query.equals(that.query);
+        }
+
+        @Override
+        public String toString() {
+            return attribute.getAttributeName() + "[" + query + "]";
+        }
+    }
+
+    private class BitmapResultSet extends ResultSet<O> {
+        private final BitmapQuery<O> query;
+        private final QueryOptions queryOptions;
+        private final Bitmap result;
+
+        BitmapResultSet(BitmapQuery<O> query, QueryOptions queryOptions, Bitmap result) {
+            this.query = query;
+            this.queryOptions = queryOptions;
+            this.result = result;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            PrimitiveIterator.OfInt ordinals = result.iterator();
+            return new UnmodifiableIterator<O>() {
+                private O next = advance();
+
+                private O advance() {
+                    while (ordinals.hasNext()) {
+                        // null if removed from the collection after retrieve
+                        O object = rows.apply(ordinals.nextInt());
+                        if (object != null) {
+                            return object;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public O next() {
+                    O result = next;
+                    if (result == null) {
+                        throw new NoSuchElementException();
+                    }
+                    next = advance();
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(O o) {
+            return o != null && result.contains(row(o, queryOptions));
+        }
+
+        @Override
+        public boolean matches(O o) {
+            return query.matches(o, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return result.cardinality();
+        }
+
+        @Override
+        public int size() {
+            return result.cardinality();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
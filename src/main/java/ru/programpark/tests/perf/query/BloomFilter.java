@@ -0,0 +1,110 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Blocked Bloom filter of longs: all bits of a key are in one cache line, i.e. a lookup reads one line.
+ * Keys are added without locks, keys cannot be removed. Size is fixed, false positives grow above the expected keys.
+ */
+public class BloomFilter {
+
+    // 512 bits, a cache line
+    private static final int BLOCK_LONGS = 8;
+    private static final int BLOCK_BITS_SHIFT = 9;
+
+    private final AtomicLongArray bits;
+    private final int blocks;
+    private final int hashes;
+
+    /**
+     * @param expectedKeys keys to add
+     * @param bitsPerKey   10 bits give about 1% false positives
+     */
+    public BloomFilter(int expectedKeys, int bitsPerKey) {
+        if (expectedKeys < 0 || bitsPerKey <= 0) {
+            throw new IllegalArgumentException("Expected keys and bits per key must be positive: " + expectedKeys + ", " + bitsPerKey);
+        }
+        long totalBits = Math.max(1L, (long) expectedKeys * bitsPerKey);
+        this.blocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_LONGS, (totalBits + (1 << BLOCK_BITS_SHIFT) - 1) >>> BLOCK_BITS_SHIFT);
+        this.bits = new AtomicLongArray(blocks * BLOCK_LONGS);
+        // optimal number of bits for the size, capped: bits of a block are not independent
+        this.hashes = Math.max(1, Math.min(8, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    private static long mix(long key) {
+        key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private int block(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_LONGS;
+    }
+
+    public void add(long key) {
+        long hash = mix(key);
+        int block = block(hash);
+        // 9 bits of a position in the block per hash, from the low word and a remix of it
+        long positions = hash * 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (positions >>> (64 - BLOCK_BITS_SHIFT));
+            positions = i == 6 ? mix(positions) : positions << BLOCK_BITS_SHIFT;
+            int word = block + (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                // retry, another key set a bit of the word
+            }
+        }
+    }
+
+    /**
+     * @return false if the key was never added
+     */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        int block = block(hash);
+        long positions = hash * 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (positions >>> (64 - BLOCK_BITS_SHIFT));
+            positions = i == 6 ? mix(positions) : positions << BLOCK_BITS_SHIFT;
+            if ((bits.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0);
+        }
+    }
+
+    /**
+     * @return size of the bits
+     */
+    public long bytes() {
+        return (long) bits.length() * Long.BYTES;
+    }
+
+    /**
+     * @return share of set bits, false positive rate is about fill ^ hashes
+     */
+    public double fill() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            set += Long.bitCount(bits.get(i));
+        }
+        return (double) set / (bits.length() * 64L);
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilter{" + bytes() + " bytes, " + hashes + " hashes, fill " + fill() + "}";
+    }
+}
@@ -0,0 +1,190 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.QueryFactory;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link BloomFilter} in front of an index on a long attribute, i.e. {@link com.googlecode.cqengine.index.unique.UniqueIndex}
+ * on ids or {@link com.googlecode.cqengine.index.hash.HashIndex} on a foreign key: equal() of a key that was never added
+ * returns an empty result set without probing the index, in() asks the index for the keys that pass the filter only.
+ * Added keys go to the filter before the index, removed ones stay there until {@link #clear}, i.e. they are false positives.
+ * <p>
+ * Add this index instead of the filtered one, it maintains both.
+ */
+public class BloomFilterIndex<O> extends AbstractAttributeIndex<Long, O> implements OnHeapTypeIndex {
+
+    // below the filtered indexes, misses probe nothing
+    protected static final int INDEX_RETRIEVAL_COST = 20;
+
+    private static final Set<Class<? extends Query>> SUPPORTED_QUERIES = Collections.unmodifiableSet(new HashSet<Class<? extends Query>>() {{
+        add(Equal.class);
+        add(In.class);
+    }});
+
+    private final SimpleAttribute<O, Long> attribute;
+    private final AttributeIndex<Long, O> index;
+    private final BloomFilter filter;
+
+    protected BloomFilterIndex(AttributeIndex<Long, O> index, int expectedKeys, int bitsPerKey) {
+        super(index.getAttribute(), SUPPORTED_QUERIES);
+        this.attribute = (SimpleAttribute<O, Long>) index.getAttribute();
+        this.index = index;
+        this.filter = new BloomFilter(expectedKeys, bitsPerKey);
+    }
+
+    /**
+     * @param index        index on a {@link SimpleAttribute} of longs
+     * @param expectedKeys distinct keys, false positives grow above it
+     * @param bitsPerKey   size of the filter, see {@link BloomFilter}
+     */
+    public static <O> BloomFilterIndex<O> onIndex(AttributeIndex<Long, O> index, int expectedKeys, int bitsPerKey) {
+        if (!(index.getAttribute() instanceof SimpleAttribute)) {
+            throw new IllegalArgumentException("Unsupported attribute: " + index.getAttribute());
+        }
+        return new BloomFilterIndex<>(index, expectedKeys, bitsPerKey);
+    }
+
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    public AttributeIndex<Long, O> getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return index.isMutable();
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<O> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        Class<?> queryClass = query.getClass();
+        if (queryClass.equals(Equal.class)) {
+            Long key = ((Equal<O, Long>) query).getValue();
+            return filter.mightContain(key) ? index.retrieve(query, queryOptions) : new EmptyResultSet(query, queryOptions);
+        } else if (queryClass.equals(In.class)) {
+            List<Long> keys = new ArrayList<>();
+            for (Long key : ((In<O, Long>) query).getValues()) {
+                if (filter.mightContain(key)) {
+                    keys.add(key);
+                }
+            }
+            if (keys.isEmpty()) {
+                return new EmptyResultSet(query, queryOptions);
+            }
+            return index.retrieve(keys.size() == ((In<O, Long>) query).getValues().size() ? query : QueryFactory.in(attribute, keys), queryOptions);
+        }
+        throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+
+    @Override
+    public boolean addAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        // keys go to the filter first: a concurrent reader must not miss rows already in the index
+        for (O object : objectSet) {
+            filter.add(LongAttribute.longValue(attribute, object, queryOptions));
+        }
+        return index.addAll(objectSet, queryOptions);
+    }
+
+    @Override
+    public boolean removeAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        return index.removeAll(objectSet, queryOptions);
+    }
+
+    @Override
+    public void clear(QueryOptions queryOptions) {
+        index.clear(queryOptions);
+        filter.clear();
+    }
+
+    @Override
+    public void init(ObjectStore<O> objectStore, QueryOptions queryOptions) {
+        for (O object : ObjectSet.fromObjectStore(objectStore, queryOptions)) {
+            filter.add(LongAttribute.longValue(attribute, object, queryOptions));
+        }
+        index.init(objectStore, queryOptions);
+    }
+
+    private class EmptyResultSet extends ResultSet<O> {
+        private final Query<O> query;
+        private final QueryOptions queryOptions;
+
+        EmptyResultSet(Query<O> query, QueryOptions queryOptions) {
+            this.query = query;
+            this.queryOptions = queryOptions;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public boolean contains(O o) {
+            return false;
+        }
+
+        @Override
+        public boolean matches(O o) {
+            return query.matches(o, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return 0;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
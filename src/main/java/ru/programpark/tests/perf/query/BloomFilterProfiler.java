@@ -0,0 +1,62 @@
+package ru.programpark.tests.perf.query;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports bytes per key and false positive rates of filters measured by setUp, see {@link #report}, as secondary
+ * results of each iteration:
+ * <pre>
+ * -prof ru.programpark.tests.perf.query.BloomFilterProfiler
+ * </pre>
+ */
+public class BloomFilterProfiler implements InternalProfiler {
+
+    // filter -> bytes per key, false positive rate
+    private static final Map<String, double[]> reported = new LinkedHashMap<>();
+
+    /**
+     * @param filter short name of the filter, i.e. of its attribute
+     */
+    public static void report(String filter, double bytesPerKey, double falsePositiveRate) {
+        synchronized (reported) {
+            reported.put(filter, new double[]{bytesPerKey, falsePositiveRate});
+        }
+    }
+
+    private static Map<String, double[]> reported() {
+        synchronized (reported) {
+            return new LinkedHashMap<>(reported);
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Bytes per key and false positive rates of Bloom filters";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        List<Result<?>> results = new ArrayList<>();
+        for (Map.Entry<String, double[]> filter : reported().entrySet()) {
+            results.add(new ScalarResult("·bloom." + filter.getKey() + ".bytes", filter.getValue()[0], "bytes/key", AggregationPolicy.AVG));
+            results.add(new ScalarResult("·bloom." + filter.getKey() + ".fpp", filter.getValue()[1] * 100, "%", AggregationPolicy.AVG));
+        }
+        return results;
+    }
+}
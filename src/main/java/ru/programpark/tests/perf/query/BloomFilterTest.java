@@ -0,0 +1,153 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static com.googlecode.cqengine.query.QueryFactory.existsIn;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Lookups by id and existsIn probes into oics by objId with a share of misses: UniqueIndex on VObject.id and HashIndex
+ * on ObjectInContext.objId without and with {@link BloomFilterIndex} in front of them. Misses of lookups are negative
+ * ids, misses of existsIn are objects without oics. Filter bytes per key and false positives are reported by
+ * {@link BloomFilterProfiler}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BloomFilterTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    // objects out of the collections, drawn by misses of existsIn
+    private static final int MISSING_OBJECTS = 1 << 16;
+
+    @Param({
+            "1000000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    // share of lookups of keys that do not exist
+    @Param({
+            "0", "0.1", "0.3", "0.5", "0.7", "0.9"
+    })
+    private double missRate;
+
+    // size of the filters, 0 - no filters
+    @Param({
+            "0", "10"
+    })
+    private int bitsPerKey;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<VObject>[] objectRows;
+    private ValueObject<VObject>[] missingRows;
+    private Long[] objIds;
+    private Workload keys;
+    private Query<ValueObject<VObject>> existsInOic;
+    private QueryOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ValueObject<Context>[] ctxes = (ValueObject<Context>[]) new ValueObject[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+        }
+        objectRows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        objIds = new Long[totalObjects];
+        List<ValueObject<ObjectInContext>> oicRows = new ArrayList<>(totalObjects * maxCtx);
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+            objectRows[i] = object;
+            objIds[i] = object.getId();
+            for (int j = 0; j < maxCtx; j++) {
+                oicRows.add(ObjectInContext.newObject(layout, object, random(ctxes)));
+            }
+        }
+        missingRows = (ValueObject<VObject>[]) new ValueObject[MISSING_OBJECTS];
+        for (int i = 0; i < MISSING_OBJECTS; i++) {
+            missingRows[i] = VObject.newObject(layout, totalConcepts);
+        }
+        objects = new ConcurrentIndexedCollection<>();
+        oics = new ConcurrentIndexedCollection<>();
+        Index<ValueObject<VObject>> idIndex = filtered(BulkLoad.uniqueIndex(getAttr(layout, VObject.id), totalObjects), totalObjects);
+        Index<ValueObject<ObjectInContext>> objIdIndex = filtered(BulkLoad.hashIndex(getAttr(layout, ObjectInContext.objId), totalObjects), totalObjects);
+        BulkLoad.load(objects, Arrays.asList(objectRows), Collections.singletonList(idIndex));
+        BulkLoad.load(oics, oicRows, Collections.singletonList(objIdIndex));
+        report("id", idIndex, totalObjects);
+        report("objId", objIdIndex, totalObjects);
+        keys = Workload.of("MISS:" + missRate, totalObjects);
+        existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId));
+        options = new QueryOptions();
+    }
+
+    private <O> Index<O> filtered(AttributeIndex<Long, O> index, int expectedKeys) {
+        return bitsPerKey == 0 ? index : BloomFilterIndex.onIndex(index, expectedKeys, bitsPerKey);
+    }
+
+    /**
+     * Bytes per distinct key and false positives of negative ids, which no object has; none without a filter
+     */
+    private static void report(String what, Index<?> index, int keys) {
+        if (!(index instanceof BloomFilterIndex)) {
+            return;
+        }
+        BloomFilter filter = ((BloomFilterIndex<?>) index).getFilter();
+        int falsePositives = 0;
+        for (long key = -1; key >= -MISSING_OBJECTS; key--) {
+            if (filter.mightContain(key)) {
+                falsePositives++;
+            }
+        }
+        BloomFilterProfiler.report(what, (double) filter.bytes() / keys, (double) falsePositives / MISSING_OBJECTS);
+    }
+
+    @Benchmark
+    public ValueObject<VObject> queryById() {
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal(getAttr(layout, VObject.id), keys.nextId(objIds)), options);
+        try {
+            return Sequence.first(rs);
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Probe of existsIn for an object, as for each row of objects
+     */
+    @Benchmark
+    public boolean existsInOic() {
+        return existsInOic.matches(keys.next(objectRows, missingRows), options);
+    }
+}
@@ -0,0 +1,34 @@
+package ru.programpark.tests.perf.query;
+
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+
+@DefaultSerializer(ValueObjectSerializer.class)
+public class BoxedValueObject<T extends Enum<T>> extends ValueObject<T> {
+
+    private final Object[] values;
+
+    public BoxedValueObject(int size) {
+        this.values = new Object[size];
+    }
+
+    Object[] values() {
+        return values;
+    }
+
+    @Override
+    public Long getId() {
+        return (Long) values[0];
+    }
+
+    @Override
+    public Object getValue(T name) {
+        return values[name.ordinal()];
+    }
+
+    @Override
+    public void setValue(T name, Object value) {
+        values[name.ordinal()] = value;
+    }
+
+}
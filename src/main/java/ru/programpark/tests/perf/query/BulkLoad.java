@@ -0,0 +1,71 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.persistence.onheap.OnHeapPersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Cold start loading: objects go to the store first, then every index is built from the store by a fork-join task
+ * of its own, instead of updating all indexes on each add.
+ * <p>
+ * CQEngine registers indexes of the same attribute non-atomically, so they are built by the same task.
+ * Immutable indexes are added last, as adding an index updates a shared mutability flag.
+ */
+public class BulkLoad {
+
+    public static <O> void load(IndexedCollection<O> collection, Collection<O> objects, Collection<? extends Index<O>> indexes) {
+        load(collection, objects, indexes, ForkJoinPool.commonPool());
+    }
+
+    public static <O> void load(IndexedCollection<O> collection, Collection<O> objects, Collection<? extends Index<O>> indexes,
+                                ForkJoinPool pool) {
+        collection.addAll(objects);
+        Map<Object, List<Index<O>>> byAttribute = new LinkedHashMap<>();
+        List<Index<O>> immutable = new ArrayList<>();
+        for (Index<O> index : indexes) {
+            if (!index.isMutable()) {
+                immutable.add(index);
+            } else {
+                Object key = index instanceof AttributeIndex ? ((AttributeIndex) index).getAttribute() : index;
+                byAttribute.computeIfAbsent(key, k -> new ArrayList<>()).add(index);
+            }
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(byAttribute.size());
+        for (List<Index<O>> group : byAttribute.values()) {
+            tasks.add(pool.submit(() -> group.forEach(collection::addIndex)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        immutable.forEach(collection::addIndex);
+    }
+
+    /**
+     * On heap object store sized for expected objects
+     */
+    public static <O> OnHeapPersistence<O, Long> persistence(SimpleAttribute<O, Long> primaryKey, int expectedSize) {
+        return new OnHeapPersistence<>(primaryKey, expectedSize, 0.75f, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static <A, O> HashIndex<A, O> hashIndex(Attribute<O, A> attribute, int expectedKeys) {
+        return HashIndex.onAttribute(() -> new ConcurrentHashMap<>(expectedKeys), new HashIndex.DefaultValueSetFactory<>(), attribute);
+    }
+
+    public static <A, O> UniqueIndex<A, O> uniqueIndex(Attribute<O, A> attribute, int expectedSize) {
+        return UniqueIndex.onAttribute(() -> new ConcurrentHashMap<>(expectedSize), attribute);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.programpark.tests.perf.query;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports hit rates, evictions and invalidations of caches registered by {@link #register} as secondary results of
+ * each iteration, stats are reset before it:
+ * <pre>
+ * -prof ru.programpark.tests.perf.query.CacheProfiler
+ * </pre>
+ */
+public class CacheProfiler implements InternalProfiler {
+
+    private static final Map<String, CachingCollection<?>> caches = new LinkedHashMap<>();
+
+    /**
+     * @param name short name of the cached collection, replaces a cache registered by a previous trial. Caches are
+     *             not unregistered at teardown, which JMH runs before profilers see the last iteration
+     */
+    public static void register(String name, CachingCollection<?> cache) {
+        synchronized (caches) {
+            caches.put(name, cache);
+        }
+    }
+
+    private static Map<String, CachingCollection<?>> registered() {
+        synchronized (caches) {
+            return new LinkedHashMap<>(caches);
+        }
+    }
+
+    @Override
+    public String getDescription() {
+        return "Hit rates of cached collections";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        for (CachingCollection<?> cache : registered().values()) {
+            cache.resetStats();
+        }
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        List<Result<?>> results = new ArrayList<>();
+        for (Map.Entry<String, CachingCollection<?>> cache : registered().entrySet()) {
+            String prefix = "·cache." + cache.getKey();
+            results.add(new ScalarResult(prefix + ".hitRate", cache.getValue().hitRate() * 100, "%", AggregationPolicy.AVG));
+            results.add(new ScalarResult(prefix + ".evictions", cache.getValue().evictions(), "#", AggregationPolicy.AVG));
+            results.add(new ScalarResult(prefix + ".invalidations", cache.getValue().invalidations(), "#", AggregationPolicy.AVG));
+        }
+        return results;
+    }
+}
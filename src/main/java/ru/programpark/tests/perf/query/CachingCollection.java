@@ -0,0 +1,610 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.DeduplicationOption;
+import com.googlecode.cqengine.query.option.OrderByOption;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.ExistsIn;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Indexed collection caching materialized results of retrieve() by query equality.
+ * <p>
+ * The cache is bounded by the number of queries and evicts the least recently used one. With TinyLFU admission
+ * a new query replaces the victim only if it was seen more often, so one-off queries do not flush hot ones.
+ * Query frequencies are kept in a count-min sketch of 4-bit counters, halved periodically. Hits do not take the
+ * eviction lock: they are recorded in read buffers striped by thread and replayed on the LRU order and the sketch by
+ * whoever holds the lock next, accesses to a full buffer are dropped.
+ * <p>
+ * Writes through this collection invalidate exactly the cached queries matching a written object. Candidates are
+ * found by an anchor of the query: values of an equal() or in() every matching object must have, queries without
+ * anchors are checked on every write. Queries with existsIn() depend on another collection and ordered queries
+ * depend on options, both are not cached. Options are checked before a hit is served. Writes to the underlying
+ * collection are not seen.
+ */
+public class CachingCollection<O> extends AbstractSet<O> implements IndexedCollection<O> {
+
+    public enum Eviction {
+        LRU, TINY_LFU
+    }
+
+    private final IndexedCollection<O> collection;
+    private final int maximumSize;
+    private final FrequencySketch frequency;
+    private final Map<Query<O>, Entry<O>> entries = new ConcurrentHashMap<>();
+    // guards order, frequency and draining of the read buffers
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // in access order
+    private final LinkedHashMap<Query<O>, Entry<O>> order = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReadBuffer<O>[] readBuffers;
+    private final Map<Attribute<O, ?>, Map<Object, Set<Entry<O>>>> anchors = new ConcurrentHashMap<>();
+    private final Set<Entry<O>> unanchored = ConcurrentHashMap.newKeySet();
+    private final QueryOptions matchOptions = new QueryOptions();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public CachingCollection(IndexedCollection<O> collection, int maximumSize, Eviction eviction) {
+        this.collection = collection;
+        this.maximumSize = maximumSize;
+        this.frequency = eviction == Eviction.TINY_LFU ? new FrequencySketch(maximumSize) : null;
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        ReadBuffer<O>[] readBuffers = new ReadBuffer[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)];
+        this.readBuffers = readBuffers;
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query) {
+        return retrieve(query, null);
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        if (!cacheable(queryOptions)) {
+            misses.increment();
+            return retrieveUncached(query, queryOptions);
+        }
+        Entry<O> entry = entries.get(query);
+        if (entry != null && entry.results != null) {
+            hits.increment();
+            ReadBuffer<O> buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+            if (!buffer.offer(entry) && evictionLock.tryLock()) {
+                try {
+                    drainReadBuffers();
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            return new CachedResultSet<>(entry.results, query, queryOptions);
+        }
+        misses.increment();
+        if (hasExistsIn(query) || !admit(query)) {
+            return retrieveUncached(query, queryOptions);
+        }
+        Entry<O> created = new Entry<>(query, anchors(query));
+        if (entries.putIfAbsent(query, created) != null) {
+            return retrieveUncached(query, queryOptions);
+        }
+        // visible to writers before reading, so a concurrent write either invalidates it or is read
+        register(created);
+        List<Entry<O>> evicted = new ArrayList<>();
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            order.put(query, created);
+            for (Iterator<Entry<O>> i = order.values().iterator(); order.size() > maximumSize && i.hasNext(); ) {
+                evicted.add(i.next());
+                i.remove();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        for (Entry<O> victim : evicted) {
+            evictions.increment();
+            remove(victim);
+        }
+        Set<O> results = new HashSet<>();
+        try (ResultSet<O> rs = retrieveUncached(query, queryOptions)) {
+            for (O object : rs) {
+                results.add(object);
+            }
+        }
+        created.results = Collections.unmodifiableSet(results);
+        return new CachedResultSet<>(created.results, query, queryOptions);
+    }
+
+    private ResultSet<O> retrieveUncached(Query<O> query, QueryOptions queryOptions) {
+        return queryOptions == null ? collection.retrieve(query) : collection.retrieve(query, queryOptions);
+    }
+
+    /**
+     * Results of ordered and deduplicated queries depend on options, they are neither cached nor served from the cache
+     */
+    private static boolean cacheable(QueryOptions queryOptions) {
+        return queryOptions == null || queryOptions.get(OrderByOption.class) == null && queryOptions.get(DeduplicationOption.class) == null;
+    }
+
+    private static boolean hasExistsIn(Query<?> query) {
+        if (query instanceof ExistsIn) {
+            return true;
+        }
+        if (query instanceof LogicalQuery) {
+            for (Query<?> child : ((LogicalQuery<?>) query).getChildQueries()) {
+                if (hasExistsIn(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * TinyLFU: a new query evicts the least recently used one only if it is more frequent
+     */
+    private boolean admit(Query<O> query) {
+        if (frequency == null) {
+            return true;
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            frequency.increment(query);
+            if (order.size() < maximumSize) {
+                return true;
+            }
+            Iterator<Query<O>> eldest = order.keySet().iterator();
+            if (!eldest.hasNext() || frequency.frequency(query) > frequency.frequency(eldest.next())) {
+                return true;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Replays hits recorded since the last drain on the LRU order and the sketch, called under the eviction lock
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<O> buffer : readBuffers) {
+            for (Entry<O> entry = buffer.poll(); entry != null; entry = buffer.poll()) {
+                // moves the entry to the end unless it was evicted or invalidated meanwhile
+                order.get(entry.query);
+                if (frequency != null) {
+                    frequency.increment(entry.query);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return attribute values every object matching the query has one of, null if there are none
+     */
+    private static <O> List<Anchor<O>> anchors(Query<O> query) {
+        if (query instanceof Equal) {
+            Equal<O, ?> equal = (Equal<O, ?>) query;
+            return Collections.singletonList(new Anchor<>(equal.getAttribute(), equal.getValue()));
+        } else if (query instanceof In) {
+            In<O, ?> in = (In<O, ?>) query;
+            List<Anchor<O>> result = new ArrayList<>(in.getValues().size());
+            for (Object value : in.getValues()) {
+                result.add(new Anchor<>(in.getAttribute(), value));
+            }
+            return result;
+        } else if (query instanceof And) {
+            for (Query<O> child : ((And<O>) query).getChildQueries()) {
+                List<Anchor<O>> result = anchors(child);
+                if (result != null) {
+                    return result;
+                }
+            }
+        } else if (query instanceof Or) {
+            List<Anchor<O>> result = new ArrayList<>();
+            for (Query<O> child : ((Or<O>) query).getChildQueries()) {
+                List<Anchor<O>> anchors = anchors(child);
+                if (anchors == null) {
+                    return null;
+                }
+                result.addAll(anchors);
+            }
+            return result;
+        }
+        return null;
+    }
+
+    private void register(Entry<O> entry) {
+        if (entry.anchors == null) {
+            unanchored.add(entry);
+            return;
+        }
+        for (Anchor<O> anchor : entry.anchors) {
+            anchors.computeIfAbsent(anchor.attribute, a -> new ConcurrentHashMap<>()).compute(anchor.value, (value, set) -> {
+                Set<Entry<O>> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+                result.add(entry);
+                return result;
+            });
+        }
+    }
+
+    private void remove(Entry<O> entry) {
+        entries.remove(entry.query, entry);
+        if (entry.anchors == null) {
+            unanchored.remove(entry);
+            return;
+        }
+        for (Anchor<O> anchor : entry.anchors) {
+            Map<Object, Set<Entry<O>>> byValue = anchors.get(anchor.attribute);
+            if (byValue != null) {
+                byValue.computeIfPresent(anchor.value, (value, set) -> {
+                    set.remove(entry);
+                    return set.isEmpty() ? null : set;
+                });
+            }
+        }
+    }
+
+    private void invalidate(Entry<O> entry) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            if (!order.remove(entry.query, entry)) {
+                return;
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        invalidations.increment();
+        remove(entry);
+    }
+
+    /**
+     * Drops cached queries the object matches, called after the object is added or removed
+     */
+    private void invalidate(O object) {
+        for (Map.Entry<Attribute<O, ?>, Map<Object, Set<Entry<O>>>> byAttribute : anchors.entrySet()) {
+            for (Object value : byAttribute.getKey().getValues(object, matchOptions)) {
+                Set<Entry<O>> candidates = byAttribute.getValue().get(value);
+                if (candidates != null) {
+                    for (Entry<O> entry : candidates) {
+                        if (entry.query.matches(object, matchOptions)) {
+                            invalidate(entry);
+                        }
+                    }
+                }
+            }
+        }
+        for (Entry<O> entry : unanchored) {
+            if (entry.query.matches(object, matchOptions)) {
+                invalidate(entry);
+            }
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        long hits = hits();
+        long total = hits + misses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        rejected.reset();
+        evictions.reset();
+        invalidations.reset();
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd) {
+        return update(objectsToRemove, objectsToAdd, null);
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd, QueryOptions queryOptions) {
+        boolean modified = queryOptions == null
+                ? collection.update(objectsToRemove, objectsToAdd)
+                : collection.update(objectsToRemove, objectsToAdd, queryOptions);
+        if (modified) {
+            objectsToRemove.forEach(this::invalidate);
+            objectsToAdd.forEach(this::invalidate);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean add(O object) {
+        return update(Collections.emptySet(), Collections.singleton(object));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object object) {
+        return update(Collections.singleton((O) object), Collections.emptySet());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends O> objects) {
+        return update(Collections.emptySet(), (Collection<O>) objects);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean removeAll(Collection<?> objects) {
+        return update((Collection<O>) objects, Collections.emptySet());
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        List<O> toRemove = new ArrayList<>();
+        for (O object : collection) {
+            if (!objects.contains(object)) {
+                toRemove.add(object);
+            }
+        }
+        return removeAll(toRemove);
+    }
+
+    @Override
+    public void clear() {
+        removeAll(new ArrayList<>(collection));
+    }
+
+    /**
+     * Iterator of the underlying collection, removal through it does not invalidate the cache
+     */
+    @Override
+    public Iterator<O> iterator() {
+        Iterator<O> iterator = collection.iterator();
+        return new Iterator<O>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public O next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return collection.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return collection.contains(o);
+    }
+
+    @Override
+    public void addIndex(Index<O> index) {
+        collection.addIndex(index);
+    }
+
+    @Override
+    public void addIndex(Index<O> index, QueryOptions queryOptions) {
+        collection.addIndex(index, queryOptions);
+    }
+
+    @Override
+    public Iterable<Index<O>> getIndexes() {
+        return collection.getIndexes();
+    }
+
+    private static class Anchor<O> {
+        private final Attribute<O, ?> attribute;
+        private final Object value;
+
+        Anchor(Attribute<O, ?> attribute, Object value) {
+            this.attribute = attribute;
+            this.value = value;
+        }
+    }
+
+    private static class Entry<O> {
+        private final Query<O> query;
+        private final List<Anchor<O>> anchors;
+        // null while the query is retrieved
+        private volatile Set<O> results;
+
+        Entry(Query<O> query, List<Anchor<O>> anchors) {
+            this.query = query;
+            this.anchors = anchors;
+        }
+    }
+
+    /**
+     * Ring of hits written by any thread and read under the eviction lock. A writer claims a slot by the counter of
+     * writes and publishes the entry after, the reader stops at a claimed slot not published yet and takes it next time.
+     */
+    private static class ReadBuffer<O> {
+        private static final int SIZE = 16;
+
+        private final AtomicReferenceArray<Entry<O>> slots = new AtomicReferenceArray<>(SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        // written under the eviction lock
+        private volatile long reads;
+
+        /**
+         * @return false if the buffer is full or the slot was claimed concurrently, the hit is not recorded
+         */
+        boolean offer(Entry<O> entry) {
+            long write = writes.get();
+            if (write - reads >= SIZE || !writes.compareAndSet(write, write + 1)) {
+                return false;
+            }
+            slots.lazySet((int) write & (SIZE - 1), entry);
+            return true;
+        }
+
+        Entry<O> poll() {
+            long read = reads;
+            if (read == writes.get()) {
+                return null;
+            }
+            int slot = (int) read & (SIZE - 1);
+            Entry<O> entry = slots.get(slot);
+            if (entry != null) {
+                slots.lazySet(slot, null);
+                reads = read + 1;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 rows of 4-bit counters, all halved after 10 increments per counter of a row
+     */
+    private static class FrequencySketch {
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(maximumSize, 16) * 2 - 1);
+            counters = new byte[4 * width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash + row * 0x9E3779B9) * 0x85EBCA6B;
+            return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < 4; row++) {
+                int i = index(hash, row);
+                if (counters[i] < 15) {
+                    counters[i]++;
+                }
+            }
+            if (++increments == sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int result = 15;
+            for (int row = 0; row < 4; row++) {
+                result = Math.min(result, counters[index(hash, row)]);
+            }
+            return result;
+        }
+    }
+
+    private static class CachedResultSet<O> extends ResultSet<O> {
+        private final Set<O> results;
+        private final Query<O> query;
+        private final QueryOptions queryOptions;
+
+        CachedResultSet(Set<O> results, Query<O> query, QueryOptions queryOptions) {
+            this.results = results;
+            this.query = query;
+            this.queryOptions = queryOptions;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return results.iterator();
+        }
+
+        @Override
+        public boolean contains(O object) {
+            return results.contains(object);
+        }
+
+        @Override
+        public boolean matches(O object) {
+            return query.matches(object, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return 0;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return results.size();
+        }
+
+        @Override
+        public int size() {
+            return results.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Concurrent lookups by id, retrieve of equal() by each thread: the baseline of {@link CoalescingTest}.
+ * Sample time shows latency percentiles, throughput is threads / mean time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class CoalescingBaselineTest {
+
+    static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "1000000"
+    })
+    private int totalObjects;
+
+    // ids of lookups, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private Long[] ids;
+    private Workload keys;
+    private SimpleAttribute<ValueObject<VObject>, Long> id;
+    private QueryOptions options;
+
+    /**
+     * @param ids filled with ids of the objects
+     * @return objects with a unique index on id
+     */
+    static IndexedCollection<ValueObject<VObject>> load(Long[] ids) {
+        IndexedCollection<ValueObject<VObject>> objects = new ConcurrentIndexedCollection<>();
+        objects.addIndex(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+        for (int i = 0; i < ids.length; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, 1000);
+            objects.add(object);
+            ids[i] = object.getId();
+        }
+        return objects;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        id = getAttr(layout, VObject.id);
+        ids = new Long[totalObjects];
+        objects = load(ids);
+        keys = Workload.of(distribution, totalObjects);
+        options = new QueryOptions();
+    }
+
+    private ValueObject<VObject> direct() {
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal(id, keys.nextId(ids)), options);
+        try {
+            Iterator<ValueObject<VObject>> iterator = rs.iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        } finally {
+            rs.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ValueObject<VObject> direct1() {
+        return direct();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ValueObject<VObject> direct4() {
+        return direct();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ValueObject<VObject> direct16() {
+        return direct();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public ValueObject<VObject> direct64() {
+        return direct();
+    }
+}
@@ -0,0 +1,204 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.googlecode.cqengine.query.QueryFactory.in;
+
+/**
+ * Asynchronous lookups by a long key coalesced into batches: concurrent {@link #get} calls join the open batch,
+ * which is closed when it reaches the batch size or when the window since its first lookup expires.
+ * A closed batch is resolved on the executor with a single retrieve of in(key, distinct keys).
+ * <p>
+ * A lone caller waits for the whole window, coalescing pays off when lookups arrive faster than the window.
+ * Futures complete on the executor, i.e. dependent stages run there unless they are async.
+ * <p>
+ * Joining is lock free: a lookup is published into the next slot of the batch before the count of published slots
+ * is advanced, by its caller or by whoever sees the slot taken. The window closes a batch by marking the next free
+ * slot, so a closed batch has exactly its counted lookups and no one waits for a slot to be written.
+ */
+public class CoalescingLookup<O> implements Closeable {
+
+    private final IndexedCollection<O> collection;
+    private final SimpleAttribute<O, Long> key;
+    private final QueryOptions options;
+    private final int batchSize;
+    private final long windowNanos;
+    private final Executor executor;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicReference<Batch<O>> open;
+    // marks the slot the window closed a batch at
+    private final Lookup<O> closed = new Lookup<>(0);
+
+    /**
+     * @param executor resolves batches and completes futures, e.g. {@link #virtualThreads()} or Runnable::run
+     *                 to resolve on the thread closing the batch
+     */
+    public CoalescingLookup(IndexedCollection<O> collection, SimpleAttribute<O, Long> key, QueryOptions options,
+                            int batchSize, long window, TimeUnit unit, Executor executor) {
+        if (batchSize < 1 || window <= 0) {
+            throw new IllegalArgumentException("Batch size and window must be positive: " + batchSize + ", " + window);
+        }
+        this.collection = collection;
+        this.key = key;
+        this.options = options;
+        this.batchSize = batchSize;
+        this.windowNanos = unit.toNanos(window);
+        this.executor = executor;
+        this.open = new AtomicReference<>(new Batch<>(batchSize));
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "lookup window " + key.getAttributeName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Executor starting a virtual thread per task if the JVM has them, the common pool otherwise
+     */
+    public static Executor virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return ForkJoinPool.commonPool();
+        }
+    }
+
+    /**
+     * @return future of the object with the key, completed with null if there is none
+     */
+    public CompletableFuture<O> get(long value) {
+        Lookup<O> lookup = new Lookup<>(value);
+        while (true) {
+            Batch<O> batch = open.get();
+            int slot = batch.published.get();
+            if (slot >= batchSize || batch.lookups.get(slot) == closed) {
+                // closed by the last slot or by the window, replaced by whoever sees it first
+                replace(batch);
+                continue;
+            }
+            if (!batch.lookups.compareAndSet(slot, null, lookup)) {
+                // taken by another lookup, which may not have counted it yet, or closed
+                if (batch.lookups.get(slot) != closed) {
+                    batch.published.compareAndSet(slot, slot + 1);
+                }
+                continue;
+            }
+            batch.published.compareAndSet(slot, slot + 1);
+            if (slot == 0 && batchSize > 1) {
+                batch.timeout = timer.schedule(() -> closeWindow(batch), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            if (slot == batchSize - 1) {
+                replace(batch);
+                ScheduledFuture<?> timeout = batch.timeout;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                executor.execute(() -> resolve(batch, batchSize));
+            }
+            return lookup;
+        }
+    }
+
+    private void replace(Batch<O> closed) {
+        if (open.get() == closed) {
+            open.compareAndSet(closed, new Batch<>(batchSize));
+        }
+    }
+
+    private void closeWindow(Batch<O> batch) {
+        while (true) {
+            int size = batch.published.get();
+            if (size >= batchSize) {
+                // resolved by the lookup of the last slot
+                return;
+            }
+            if (batch.lookups.compareAndSet(size, null, closed)) {
+                replace(batch);
+                executor.execute(() -> resolve(batch, size));
+                return;
+            }
+            batch.published.compareAndSet(size, size + 1);
+        }
+    }
+
+    private void resolve(Batch<O> batch, int size) {
+        List<Lookup<O>> lookups = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            lookups.add(batch.lookups.get(i));
+        }
+        try {
+            LongHashSet distinct = new LongHashSet(size);
+            List<Long> keys = new ArrayList<>(size);
+            for (Lookup<O> lookup : lookups) {
+                if (distinct.add(lookup.key)) {
+                    keys.add(lookup.key);
+                }
+            }
+            LongObjectMap<O> found = new LongObjectMap<>(keys.size());
+            ResultSet<O> rs = collection.retrieve(in(key, keys), options);
+            try {
+                for (O object : rs) {
+                    found.putIfAbsent(key.getValue(object, options), object);
+                }
+            } finally {
+                rs.close();
+            }
+            for (Lookup<O> lookup : lookups) {
+                lookup.complete(found.get(lookup.key));
+            }
+        } catch (RuntimeException e) {
+            for (Lookup<O> lookup : lookups) {
+                lookup.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stops the window timer, lookups of the open batch complete only if it fills up
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Future of a lookup with its key
+     */
+    private static final class Lookup<O> extends CompletableFuture<O> {
+        final long key;
+
+        Lookup(long key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Batch<O> {
+        // lookups in slots before it are published
+        final AtomicInteger published = new AtomicInteger();
+        final AtomicReferenceArray<Lookup<O>> lookups;
+        volatile ScheduledFuture<?> timeout;
+
+        Batch(int size) {
+            lookups = new AtomicReferenceArray<>(size);
+        }
+    }
+}
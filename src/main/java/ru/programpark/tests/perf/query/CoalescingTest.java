@@ -0,0 +1,120 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Concurrent lookups by id in {@link CoalescingLookup} batches, retrieve of equal() by each thread is
+ * {@link CoalescingBaselineTest}. Sample time shows latency percentiles, throughput is threads / mean time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class CoalescingTest {
+
+    @Param({
+            "1000000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "8", "64"
+    })
+    private int batchSize;
+
+    @Param({
+            "20"
+    })
+    private int windowMicros;
+
+    @Param({
+            "CALLER", "POOL", "VIRTUAL"
+    })
+    private LookupExecutor executor;
+
+    // ids of lookups, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private Long[] ids;
+    private Workload keys;
+    private SimpleAttribute<ValueObject<VObject>, Long> id;
+    private CoalescingLookup<ValueObject<VObject>> lookup;
+    private QueryOptions options;
+
+    public enum LookupExecutor {
+        // thread closing the batch
+        CALLER,
+        POOL,
+        // common pool if the JVM has no virtual threads
+        VIRTUAL;
+
+        Executor create() {
+            switch (this) {
+                case CALLER:
+                    return Runnable::run;
+                case POOL:
+                    return ForkJoinPool.commonPool();
+                default:
+                    return CoalescingLookup.virtualThreads();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        id = getAttr(CoalescingBaselineTest.layout, VObject.id);
+        ids = new Long[totalObjects];
+        objects = CoalescingBaselineTest.load(ids);
+        keys = Workload.of(distribution, totalObjects);
+        options = new QueryOptions();
+        lookup = new CoalescingLookup<>(objects, id, options, batchSize, windowMicros, TimeUnit.MICROSECONDS, executor.create());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lookup.close();
+    }
+
+    private ValueObject<VObject> coalesced() {
+        return lookup.get(keys.nextId(ids)).join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ValueObject<VObject> coalesced1() {
+        return coalesced();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ValueObject<VObject> coalesced4() {
+        return coalesced();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ValueObject<VObject> coalesced16() {
+        return coalesced();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public ValueObject<VObject> coalesced64() {
+        return coalesced();
+    }
+}
@@ -0,0 +1,255 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.iterator.UnmodifiableIterator;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Answers equal queries on an unindexed field by scanning its {@link ColumnStore} column
+ * instead of extracting attribute values from every object of the collection.
+ * The column itself is the index, the index keeps a bit per row of the store in the collection only, so that scans
+ * skip rows never added to the collection or removed from it. Objects of the collection must be rows of the store.
+ */
+public class ColumnScanIndex<A, T extends Enum<T>> extends AbstractAttributeIndex<A, ValueObject<T>> implements OnHeapTypeIndex {
+
+    // more than any hash index, less than the fallback full scan
+    protected static final int INDEX_RETRIEVAL_COST = 100;
+    // share of rows assumed to match an equal, the merge cost must not scan the column
+    private static final double ASSUMED_SELECTIVITY = 0.01;
+
+    private final ColumnStore<T> store;
+    private final int slot;
+    private final boolean longSlot;
+    // rows in the collection, replaced when growing under the lock of the index
+    private volatile AtomicLongArray members = new AtomicLongArray(1);
+    private volatile int memberCount;
+
+    protected ColumnScanIndex(ColumnStore<T> store, T field) {
+        super(Fields.getColumnAttr(field), Collections.<Class<? extends Query>>singleton(Equal.class));
+        this.store = store;
+        this.slot = store.getSlots().slot(field);
+        this.longSlot = store.getSlots().isLong(field);
+    }
+
+    public static <A, T extends Enum<T>> ColumnScanIndex<A, T> onField(ColumnStore<T> store, T field) {
+        return new ColumnScanIndex<>(store, field);
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<ValueObject<T>> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<ValueObject<T>> retrieve(Query<ValueObject<T>> query, QueryOptions queryOptions) {
+        Class<?> queryClass = query.getClass();
+        if (queryClass.equals(Equal.class)) {
+            return new ScanResultSet((Equal<ValueObject<T>, A>) query, queryOptions);
+        }
+        throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+
+    private boolean isMember(int row) {
+        AtomicLongArray members = this.members;
+        int word = row >>> 6;
+        return word < members.length() && (members.get(word) & (1L << row)) != 0;
+    }
+
+    /**
+     * @return whether all rows of the store are in the collection, so that columns are counted without the bits
+     */
+    private boolean allMembers() {
+        return memberCount == store.size();
+    }
+
+    private int row(ValueObject<T> object) {
+        if (!(object instanceof ColumnValueObject) || ((ColumnValueObject<T>) object).getStore() != store) {
+            throw new IllegalArgumentException("Not a row of the store: " + object);
+        }
+        return ((ColumnValueObject<T>) object).getRow();
+    }
+
+    @Override
+    public synchronized boolean addAll(ObjectSet<ValueObject<T>> objectSet, QueryOptions queryOptions) {
+        boolean modified = false;
+        for (ValueObject<T> object : objectSet) {
+            int row = row(object);
+            int word = row >>> 6;
+            if (word >= members.length()) {
+                AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, members.length() * 2));
+                for (int i = 0; i < members.length(); i++) {
+                    grown.set(i, members.get(i));
+                }
+                members = grown;
+            }
+            long bit = 1L << row;
+            if ((members.getAndAccumulate(word, bit, (bits, set) -> bits | set) & bit) == 0) {
+                memberCount++;
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized boolean removeAll(ObjectSet<ValueObject<T>> objectSet, QueryOptions queryOptions) {
+        boolean modified = false;
+        for (ValueObject<T> object : objectSet) {
+            int row = row(object);
+            int word = row >>> 6;
+            long bit = 1L << row;
+            if (word < members.length() && (members.getAndAccumulate(word, bit, (bits, clear) -> bits & ~clear) & bit) != 0) {
+                memberCount--;
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized void clear(QueryOptions queryOptions) {
+        members = new AtomicLongArray(1);
+        memberCount = 0;
+    }
+
+    @Override
+    public void init(ObjectStore<ValueObject<T>> objectStore, QueryOptions queryOptions) {
+        addAll(ObjectSet.fromObjectStore(objectStore, queryOptions), queryOptions);
+    }
+
+    private class ScanResultSet extends ResultSet<ValueObject<T>> {
+        private final Equal<ValueObject<T>, A> equal;
+        private final QueryOptions queryOptions;
+        private final Object value;
+        private final long longValue;
+        private int size = -1;
+
+        ScanResultSet(Equal<ValueObject<T>, A> equal, QueryOptions queryOptions) {
+            this.equal = equal;
+            this.queryOptions = queryOptions;
+            this.value = equal.getValue();
+            this.longValue = longSlot ? (Long) value : 0;
+        }
+
+        private int nextRow(int from) {
+            return longSlot ? store.nextEqual(slot, longValue, from) : store.nextEqual(slot, value, from);
+        }
+
+        @Override
+        public Iterator<ValueObject<T>> iterator() {
+            return new UnmodifiableIterator<ValueObject<T>>() {
+                private int row = -1;
+                private ColumnValueObject<T> next = advance();
+
+                private ColumnValueObject<T> advance() {
+                    ColumnValueObject<T> handle = null;
+                    while (handle == null) {
+                        row = nextRow(row + 1);
+                        if (row < 0) {
+                            return null;
+                        }
+                        handle = isMember(row) ? store.handle(row) : null;
+                    }
+                    return handle;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public ValueObject<T> next() {
+                    ColumnValueObject<T> result = next;
+                    if (result == null) {
+                        throw new NoSuchElementException();
+                    }
+                    next = advance();
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(ValueObject<T> object) {
+            if (!(object instanceof ColumnValueObject)) {
+                return false;
+            }
+            ColumnValueObject<T> handle = (ColumnValueObject<T>) object;
+            if (handle.getStore() != store || store.handle(handle.getRow()) != handle || !isMember(handle.getRow())) {
+                return false;
+            }
+            return longSlot ? handle.getLong(slot) == longValue : value.equals(handle.getRef(slot));
+        }
+
+        @Override
+        public boolean matches(ValueObject<T> object) {
+            return equal.matches(object, queryOptions);
+        }
+
+        @Override
+        public Query<ValueObject<T>> getQuery() {
+            return equal;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        /**
+         * Estimated from the rows in the collection, the exact size is counted by {@link #size()} only
+         */
+        @Override
+        public int getMergeCost() {
+            return size >= 0 ? size : (int) Math.max(1, memberCount * ASSUMED_SELECTIVITY);
+        }
+
+        @Override
+        public int size() {
+            if (size < 0) {
+                if (store.hasRemoved() || !allMembers()) {
+                    int count = 0;
+                    for (Iterator<ValueObject<T>> iterator = iterator(); iterator.hasNext(); iterator.next()) {
+                        count++;
+                    }
+                    size = count;
+                } else {
+                    size = longSlot ? store.countEqual(slot, longValue) : store.countEqual(slot, value);
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+import static ru.programpark.tests.perf.query.Sequence.randomObject;
+
+/**
+ * Equal filters on unindexed lvalue and svalue: row objects scanned by CQEngine vs {@link ColumnStore} scans
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ColumnScanTest {
+
+    // svalue of misses
+    private static final String MISSING = "missing";
+
+    @Param({
+            "100000", "1000000", "5000000"
+    })
+    private int totalRows;
+
+    // false - BOXED row objects, true - ColumnStore handles with ColumnScanIndex on lvalue and svalue
+    @Param({
+            "false", "true"
+    })
+    private boolean columns;
+
+    // values of filters, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private ValueObject<VObject>[] rows;
+    private ColumnStore<VObject> store;
+    private Long[] lvalues;
+    private String[] svalues;
+    private Workload lvalueKeys;
+    private Workload svalueKeys;
+    private QueryOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        objects = new ConcurrentIndexedCollection<>();
+        objects.addIndex(UniqueIndex.onAttribute(attr(VObject.id)));
+        svalues = generate("s", totalRows / 1000);
+        lvalues = generate(totalRows / 100);
+        lvalueKeys = Workload.of(distribution, lvalues.length);
+        svalueKeys = Workload.of(distribution, svalues.length);
+        rows = (ValueObject<VObject>[]) new ValueObject[totalRows];
+        long heap = Heap.used();
+        if (columns) {
+            store = new ColumnStore<>(slotsOf(VObject.class), totalRows);
+            objects.addIndex(ColumnScanIndex.onField(store, VObject.lvalue));
+            objects.addIndex(ColumnScanIndex.onField(store, VObject.svalue));
+        }
+        for (int i = 0; i < totalRows; i++) {
+            ValueObject<VObject> object = columns ? store.add() : ValueObject.Layout.BOXED.newObject(slotsOf(VObject.class));
+            object.setValue(VObject.id, nextKey());
+            object.setValue(VObject.cncId, (long) Sequence.random(totalRows / 10));
+            object.setValue(VObject.lvalue, randomObject(lvalues));
+            object.setValue(VObject.svalue, randomObject(svalues));
+            rows[i] = object;
+        }
+        Heap.report("rows", heap, totalRows);
+        for (ValueObject<VObject> row : rows) {
+            objects.add(row);
+        }
+        options = new QueryOptions();
+    }
+
+    private <A> SimpleAttribute<ValueObject<VObject>, A> attr(VObject field) {
+        return columns ? getColumnAttr(field) : getAttr(field);
+    }
+
+    @Benchmark
+    public void scanLvalue(Blackhole bh) {
+        Long lvalue = lvalueKeys.nextId(lvalues);
+        if (columns) {
+            bh.consume(store.countEqual(store.getSlots().slot(VObject.lvalue), (long) lvalue));
+        } else {
+            int count = 0;
+            for (ValueObject<VObject> row : rows) {
+                if (lvalue.equals(row.getValue(VObject.lvalue))) {
+                    count++;
+                }
+            }
+            bh.consume(count);
+        }
+    }
+
+    @Benchmark
+    public void countByLvalue(Blackhole bh) {
+        Query<ValueObject<VObject>> query = equal(attr(VObject.lvalue), lvalueKeys.nextId(lvalues));
+        bh.consume(objects.retrieve(query, options).size());
+    }
+
+    @Benchmark
+    public void countBySvalue(Blackhole bh) {
+        Query<ValueObject<VObject>> query = equal(attr(VObject.svalue), svalueKeys.next(svalues, MISSING));
+        bh.consume(objects.retrieve(query, options).size());
+    }
+
+    @Benchmark
+    public void queryByLvalueAndSvalue(Blackhole bh) {
+        Query<ValueObject<VObject>> query = and(
+                equal(attr(VObject.lvalue), lvalueKeys.nextId(lvalues)),
+                equal(attr(VObject.svalue), svalueKeys.next(svalues, MISSING))
+        );
+        for (ValueObject<VObject> object : objects.retrieve(query, options)) {
+            bh.consume(object);
+        }
+    }
+
+    @Benchmark
+    public void queryFirstBySvalue(Blackhole bh) {
+        Query<ValueObject<VObject>> query = equal(attr(VObject.svalue), svalueKeys.next(svalues, MISSING));
+        bh.consume(Sequence.asStream(objects, query, options).findFirst());
+    }
+}
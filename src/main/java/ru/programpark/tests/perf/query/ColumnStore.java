@@ -0,0 +1,154 @@
+package ru.programpark.tests.perf.query;
+
+import ru.programpark.tests.perf.query.ValueObject.Slots;
+
+import java.util.Arrays;
+
+/**
+ * Struct of arrays storage: one array per field of T, rows are exposed as {@link ColumnValueObject} handles.
+ * Writes are serialized with growing of the columns, so none of them lands in a discarded array. Columns are
+ * published through volatile fields, readers see rows up to published size.
+ */
+public class ColumnStore<T extends Enum<T>> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Slots slots;
+    private volatile long[][] longs;
+    private volatile Object[][] refs;
+    // handle per row, null for removed rows
+    private volatile ColumnValueObject<T>[] handles;
+    private volatile int size;
+    private volatile int removed;
+
+    public ColumnStore(Slots slots) {
+        this(slots, MIN_CAPACITY);
+    }
+
+    public ColumnStore(Slots slots, int capacity) {
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        this.slots = slots;
+        this.longs = new long[slots.longs()][capacity];
+        this.refs = new Object[slots.refs()][capacity];
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        ColumnValueObject<T>[] handles = new ColumnValueObject[capacity];
+        this.handles = handles;
+    }
+
+    public synchronized ColumnValueObject<T> add() {
+        int row = size;
+        if (row == handles.length) {
+            grow(row * 2);
+        }
+        ColumnValueObject<T> handle = new ColumnValueObject<>(this, row);
+        handles[row] = handle;
+        size = row + 1;
+        return handle;
+    }
+
+    public synchronized boolean remove(ColumnValueObject<T> handle) {
+        int row = handle.getRow();
+        if (handle.getStore() != this || handles[row] != handle) {
+            return false;
+        }
+        handles[row] = null;
+        removed++;
+        return true;
+    }
+
+    private void grow(int capacity) {
+        long[][] longs = new long[this.longs.length][];
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = Arrays.copyOf(this.longs[i], capacity);
+        }
+        Object[][] refs = new Object[this.refs.length][];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = Arrays.copyOf(this.refs[i], capacity);
+        }
+        this.handles = Arrays.copyOf(handles, capacity);
+        this.longs = longs;
+        this.refs = refs;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean hasRemoved() {
+        return removed > 0;
+    }
+
+    public Slots getSlots() {
+        return slots;
+    }
+
+    public ColumnValueObject<T> handle(int row) {
+        return handles[row];
+    }
+
+    public long getLong(int slot, int row) {
+        return longs[slot][row];
+    }
+
+    public synchronized void setLong(int slot, int row, long value) {
+        longs[slot][row] = value;
+    }
+
+    public Object getRef(int slot, int row) {
+        return refs[slot][row];
+    }
+
+    public synchronized void setRef(int slot, int row, Object value) {
+        refs[slot][row] = value;
+    }
+
+    /**
+     * Counts rows with given long value including removed ones. Branch free loop is vectorized by C2.
+     */
+    public int countEqual(int slot, long value) {
+        int size = this.size;
+        long[] column = longs[slot];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            count += column[i] == value ? 1 : 0;
+        }
+        return count;
+    }
+
+    public int countEqual(int slot, Object value) {
+        int size = this.size;
+        Object[] column = refs[slot];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            Object v = column[i];
+            count += v == value || value.equals(v) ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * @return first row starting from given one with the value or -1
+     */
+    public int nextEqual(int slot, long value, int from) {
+        int size = this.size;
+        long[] column = longs[slot];
+        for (int i = from; i < size; i++) {
+            if (column[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int nextEqual(int slot, Object value, int from) {
+        int size = this.size;
+        Object[] column = refs[slot];
+        for (int i = from; i < size; i++) {
+            Object v = column[i];
+            if (v == value || value.equals(v)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,61 @@
+package ru.programpark.tests.perf.query;
+
+import ru.programpark.tests.perf.query.ValueObject.Slots;
+
+/**
+ * Handle of a {@link ColumnStore} row. Unset long fields read as 0.
+ */
+public class ColumnValueObject<T extends Enum<T>> extends ValueObject<T> {
+
+    private final ColumnStore<T> store;
+    private final int row;
+
+    ColumnValueObject(ColumnStore<T> store, int row) {
+        this.store = store;
+        this.row = row;
+    }
+
+    public ColumnStore<T> getStore() {
+        return store;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    public Long getId() {
+        return store.getLong(0, row);
+    }
+
+    public long getLong(int slot) {
+        return store.getLong(slot, row);
+    }
+
+    public Object getRef(int slot) {
+        return store.getRef(slot, row);
+    }
+
+    @Override
+    public Object getValue(T name) {
+        Slots slots = store.getSlots();
+        int slot = slots.slot(name);
+        return slots.isLong(name) ? (Object) store.getLong(slot, row) : store.getRef(slot, row);
+    }
+
+    @Override
+    public void setLong(T name, long value) {
+        store.setLong(store.getSlots().slot(name), row, value);
+    }
+
+    @Override
+    public void setValue(T name, Object value) {
+        Slots slots = store.getSlots();
+        int slot = slots.slot(name);
+        if (slots.isLong(name)) {
+            store.setLong(slot, row, value == null ? 0 : (Long) value);
+        } else {
+            store.setRef(slot, row, value);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.ObjectLockingIndexedCollection;
+import com.googlecode.cqengine.TransactionalIndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Readers run the queries of {@link QueryTest} and {@link QueryExistsInTest} on objects and oics while writers
+ * replace objects with their oics. Groups are named by thread count, a quarter of the threads are writers.
+ * Each thread has its own {@link SplittableRandom} and range of ids, see {@link Worker}, and reads keys of
+ * the {@link Workload} from its own position.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ContentionTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    // objects added by a writer before it removes its oldest ones
+    private static final int OWN_OBJECTS = 1000;
+
+    @Param({
+            "100000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    @Param({
+            "CONCURRENT", "OBJECT_LOCKING", "TRANSACTIONAL"
+    })
+    private CollectionType collection;
+
+    // ids, contexts and concepts of reads, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<Context>[] ctxes;
+    private Long[] objIds;
+    private Long[] ctxIds;
+    private Workload idKeys;
+    private Workload ctxKeys;
+    private Workload cncKeys;
+    private QueryOptions options;
+    private final SplittableRandom seeds = new SplittableRandom();
+    private final AtomicInteger workers = new AtomicInteger();
+
+    public enum CollectionType {
+        CONCURRENT, OBJECT_LOCKING, TRANSACTIONAL;
+
+        <O> IndexedCollection<O> create() {
+            switch (this) {
+                case CONCURRENT:
+                    return new ConcurrentIndexedCollection<>();
+                case OBJECT_LOCKING:
+                    return new ObjectLockingIndexedCollection<>();
+                default:
+                    return new TransactionalIndexedCollection<>((Class<O>) ValueObject.class);
+            }
+        }
+    }
+
+    /**
+     * Random state and ids of a thread: ids of objects and oics added by the thread start from (thread number + 1) << 40,
+     * far above ids of the initial objects
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+        private SplittableRandom random;
+        private long nextId;
+        private final ArrayDeque<ValueObject<VObject>> own = new ArrayDeque<>();
+        private final ArrayDeque<List<ValueObject<ObjectInContext>>> ownOics = new ArrayDeque<>();
+
+        @Setup(Level.Trial)
+        public void setUp(ContentionTest test) {
+            synchronized (test.seeds) {
+                random = test.seeds.split();
+            }
+            nextId = (long) (test.workers.incrementAndGet()) << 40;
+        }
+
+        long nextId() {
+            return nextId++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        objects = collection.create();
+        oics = collection.create();
+        ctxes = new ValueObject[totalContexts];
+        ctxIds = new Long[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+            ctxIds[i] = ctxes[i].getId();
+        }
+        objIds = new Long[totalObjects];
+        List<ValueObject<VObject>> batch = new ArrayList<>(totalObjects);
+        List<ValueObject<ObjectInContext>> oicBatch = new ArrayList<>(totalObjects * maxCtx);
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+            batch.add(object);
+            objIds[i] = object.getId();
+            for (int j = 0; j < maxCtx; j++) {
+                oicBatch.add(ObjectInContext.newObject(layout, object, Sequence.randomObject(ctxes)));
+            }
+        }
+        BulkLoad.load(objects, batch, Collections.<Index<ValueObject<VObject>>>singletonList(
+                UniqueIndex.onAttribute(getAttr(layout, VObject.id))));
+        BulkLoad.load(oics, oicBatch, Arrays.<Index<ValueObject<ObjectInContext>>>asList(
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.cncId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.objId))));
+        idKeys = Workload.of(distribution, totalObjects);
+        ctxKeys = Workload.of(distribution, totalContexts);
+        cncKeys = Workload.of(distribution, totalConcepts);
+        options = new QueryOptions();
+    }
+
+    private Query<ValueObject<ObjectInContext>> oicQuery() {
+        return and(
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxKeys.nextId(ctxIds)),
+                // concepts are 0..totalConcepts - 1, misses are negative
+                equal(getAttr(layout, ObjectInContext.cncId), (long) cncKeys.next()));
+    }
+
+    /**
+     * Lookup through the collection, i.e. seeing only committed objects of TRANSACTIONAL
+     */
+    private ValueObject<VObject> objectById(long id) {
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal(getAttr(layout, VObject.id), id), options);
+        try {
+            Iterator<ValueObject<VObject>> iterator = rs.iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * One of: unique lookup as in {@link QueryTest}, countOic and joinFirstByOic as in {@link QueryExistsInTest}.
+     * queryFirstByOic scans all objects when no oic matches and would stall the other readers.
+     */
+    private void read(Worker worker, Blackhole bh) {
+        switch (worker.random.nextInt(3)) {
+            case 0:
+                bh.consume(objectById(idKeys.nextId(objIds)));
+                break;
+            case 1:
+                // TRANSACTIONAL result sets hold a read lock until closed
+                ResultSet<ValueObject<ObjectInContext>> rs = oics.retrieve(oicQuery(), options);
+                try {
+                    bh.consume(rs.size());
+                } finally {
+                    rs.close();
+                }
+                break;
+            default:
+                bh.consume(HashJoin.existsIn(this::objectById, oics, getAttr(layout, ObjectInContext.objId),
+                        oicQuery(), options).findFirst());
+        }
+    }
+
+    /**
+     * Adds an object with oics in the thread's id range, removes the oldest object of the thread with its oics
+     * once the thread has {@link #OWN_OBJECTS}
+     */
+    private ValueObject<VObject> write(Worker worker) {
+        ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+        object.setValue(VObject.id, worker.nextId());
+        object.setValue(VObject.cncId, (long) worker.random.nextInt(totalConcepts));
+        List<ValueObject<ObjectInContext>> objectOics = new ArrayList<>(maxCtx);
+        for (int j = 0; j < maxCtx; j++) {
+            ValueObject<ObjectInContext> oic = ObjectInContext.newObject(layout, object, ctxes[worker.random.nextInt(ctxes.length)]);
+            oic.setValue(ObjectInContext.id, worker.nextId());
+            objectOics.add(oic);
+        }
+        boolean full = worker.own.size() >= OWN_OBJECTS;
+        objects.update(full ? Collections.singleton(worker.own.poll()) : Collections.emptySet(), Collections.singleton(object));
+        oics.update(full ? worker.ownOics.poll() : Collections.emptySet(), objectOics);
+        worker.own.add(object);
+        worker.ownOics.add(objectOics);
+        return object;
+    }
+
+    @Benchmark
+    @Group("threads1")
+    public void read1(Worker worker, Blackhole bh) {
+        read(worker, bh);
+    }
+
+    @Benchmark
+    @Group("threads4")
+    @GroupThreads(3)
+    public void read4(Worker worker, Blackhole bh) {
+        read(worker, bh);
+    }
+
+    @Benchmark
+    @Group("threads4")
+    public ValueObject<VObject> write4(Worker worker) {
+        return write(worker);
+    }
+
+    @Benchmark
+    @Group("threads16")
+    @GroupThreads(12)
+    public void read16(Worker worker, Blackhole bh) {
+        read(worker, bh);
+    }
+
+    @Benchmark
+    @Group("threads16")
+    @GroupThreads(4)
+    public ValueObject<VObject> write16(Worker worker) {
+        return write(worker);
+    }
+
+    @Benchmark
+    @Group("threads64")
+    @GroupThreads(48)
+    public void read64(Worker worker, Blackhole bh) {
+        read(worker, bh);
+    }
+
+    @Benchmark
+    @Group("threads64")
+    @GroupThreads(16)
+    public ValueObject<VObject> write64(Worker worker) {
+        return write(worker);
+    }
+}
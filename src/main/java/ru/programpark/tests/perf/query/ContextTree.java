@@ -0,0 +1,171 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import ru.programpark.tests.perf.query.Fields.Context;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.googlecode.cqengine.query.QueryFactory.between;
+import static com.googlecode.cqengine.query.QueryFactory.none;
+
+/**
+ * Nested set labeling of the context hierarchy by {@link Context#parent}: a context is labeled by its number in
+ * preorder, descendants of a context have the labels from its own to the last one of its subtree.
+ * Ancestor and descendant checks compare two labels, a subtree of any size is a single range of labels.
+ * <p>
+ * Objects referencing contexts are indexed by {@link #label} of the reference with a navigable index,
+ * {@link #inSubtree} retrieves them with one range query instead of in() with every context of the subtree.
+ * Labels are assigned once, new contexts need a new tree and reindexing.
+ */
+public class ContextTree {
+
+    private final LongObjectMap<Node> nodes;
+    private final int size;
+
+    private ContextTree(LongObjectMap<Node> nodes, int size) {
+        this.nodes = nodes;
+        this.size = size;
+    }
+
+    /**
+     * @param contexts contexts without parent or with parent out of the contexts are roots
+     */
+    public static ContextTree build(Iterable<ValueObject<Context>> contexts) {
+        Map<Long, List<Long>> children = new HashMap<>();
+        List<Long> roots = new ArrayList<>();
+        LongHashSet ids = new LongHashSet();
+        for (ValueObject<Context> ctx : contexts) {
+            ids.add(ctx.getId());
+        }
+        for (ValueObject<Context> ctx : contexts) {
+            Long parent = (Long) ctx.getValue(Context.parent);
+            if (parent == null || !ids.contains(parent)) {
+                roots.add(ctx.getId());
+            } else {
+                children.computeIfAbsent(parent, p -> new ArrayList<>()).add(ctx.getId());
+            }
+        }
+        // preorder, parents before children
+        int n = ids.size();
+        long[] order = new long[n];
+        int[] parents = new int[n];
+        int[] depths = new int[n];
+        int label = 0;
+        Deque<long[]> stack = new ArrayDeque<>();
+        for (int i = roots.size() - 1; i >= 0; i--) {
+            stack.push(new long[]{roots.get(i), -1, 0});
+        }
+        while (!stack.isEmpty()) {
+            long[] entry = stack.pop();
+            order[label] = entry[0];
+            parents[label] = (int) entry[1];
+            depths[label] = (int) entry[2];
+            List<Long> childIds = children.getOrDefault(entry[0], Collections.emptyList());
+            for (int i = childIds.size() - 1; i >= 0; i--) {
+                stack.push(new long[]{childIds.get(i), label, entry[2] + 1});
+            }
+            label++;
+        }
+        // subtree sizes, children before parents
+        int[] sizes = new int[label];
+        LongObjectMap<Node> nodes = new LongObjectMap<>(label);
+        for (int i = label - 1; i >= 0; i--) {
+            sizes[i]++;
+            if (parents[i] >= 0) {
+                sizes[parents[i]] += sizes[i];
+            }
+            nodes.putIfAbsent(order[i], new Node(i, i + sizes[i] - 1, depths[i]));
+        }
+        return new ContextTree(nodes, label);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long ctxId) {
+        return nodes.containsKey(ctxId);
+    }
+
+    /**
+     * @return ctxId is ancestorId or one of its descendants
+     */
+    public boolean isDescendant(long ctxId, long ancestorId) {
+        Node node = nodes.get(ctxId);
+        Node ancestor = nodes.get(ancestorId);
+        return node != null && ancestor != null && ancestor.left <= node.left && node.left <= ancestor.right;
+    }
+
+    public boolean isAncestor(long ancestorId, long ctxId) {
+        return isDescendant(ctxId, ancestorId);
+    }
+
+    /**
+     * @return 0 for roots, -1 for unknown contexts
+     */
+    public int depth(long ctxId) {
+        Node node = nodes.get(ctxId);
+        return node == null ? -1 : node.depth;
+    }
+
+    /**
+     * @return number of contexts in the subtree including the context itself
+     */
+    public int subtreeSize(long ctxId) {
+        Node node = nodes.get(ctxId);
+        return node == null ? 0 : node.right - node.left + 1;
+    }
+
+    /**
+     * @return label of the context or -1 for unknown contexts
+     */
+    public long label(long ctxId) {
+        Node node = nodes.get(ctxId);
+        return node == null ? -1 : node.left;
+    }
+
+    /**
+     * @param ctxId reference to a context
+     * @return label of the referenced context, a new attribute for each call
+     */
+    public <O> SimpleAttribute<O, Long> label(SimpleAttribute<O, Long> ctxId) {
+        return new SimpleAttribute<O, Long>(ctxId.getObjectType(), Long.class, ctxId.getAttributeName() + ".label") {
+            @Override
+            public Long getValue(O object, QueryOptions queryOptions) {
+                return label(ctxId.getValue(object, queryOptions));
+            }
+        };
+    }
+
+    /**
+     * @param label attribute returned by {@link #label(SimpleAttribute)}
+     * @return objects referencing the context or its descendants
+     */
+    public <O> Query<O> inSubtree(SimpleAttribute<O, Long> label, long ctxId) {
+        Node node = nodes.get(ctxId);
+        if (node == null) {
+            return none(label.getObjectType());
+        }
+        return between(label, (long) node.left, true, (long) node.right, true);
+    }
+
+    private static final class Node {
+        private final int left;
+        private final int right;
+        private final int depth;
+
+        Node(int left, int right, int depth) {
+            this.left = left;
+            this.right = right;
+            this.depth = depth;
+        }
+    }
+}
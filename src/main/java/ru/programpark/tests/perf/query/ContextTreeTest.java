@@ -0,0 +1,187 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Objects in a context or any of its descendants: in(ctxId) with the subtree expanded by parent vs a range of
+ * {@link ContextTree} labels. Contexts form a tree of the given depth, level sizes grow by the same fanout,
+ * queried contexts are taken from a random level, i.e. subtrees range from a leaf to the whole tree.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ContextTreeTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "100000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    @Param({
+            "3", "5", "7", "10"
+    })
+    private int depth;
+
+    // queried contexts within a level, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<Context>> contexts;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<Context>[][] levels;
+    private Long[][] levelIds;
+    private Workload[] levelKeys;
+    private ContextTree tree;
+    private SimpleAttribute<ValueObject<ObjectInContext>, Long> ctxLabel;
+    private LongFunction<ValueObject<Context>> contextById;
+    private QueryOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // fanout f: 1 + f + ... + f^(depth - 1) = totalContexts
+        double low = 1;
+        double high = totalContexts;
+        for (int i = 0; i < 100; i++) {
+            double fanout = (low + high) / 2;
+            double sum = 0;
+            for (int level = 0; level < depth; level++) {
+                sum += Math.pow(fanout, level);
+            }
+            if (sum < totalContexts) {
+                low = fanout;
+            } else {
+                high = fanout;
+            }
+        }
+        levels = new ValueObject[depth][];
+        List<ValueObject<Context>> ctxes = new ArrayList<>(totalContexts);
+        for (int level = 0; level < depth; level++) {
+            levels[level] = new ValueObject[(int) Math.max(1, Math.round(Math.pow(low, level)))];
+            for (int i = 0; i < levels[level].length; i++) {
+                ValueObject<Context> parent = level == 0 ? null : random(levels[level - 1]);
+                levels[level][i] = Context.newObject(layout, parent, "ctx" + level + "." + i);
+                ctxes.add(levels[level][i]);
+            }
+        }
+        tree = ContextTree.build(ctxes);
+        levelIds = new Long[depth][];
+        levelKeys = new Workload[depth];
+        for (int level = 0; level < depth; level++) {
+            levelIds[level] = Arrays.stream(levels[level]).map(ValueObject::getId).toArray(Long[]::new);
+            levelKeys[level] = Workload.of(distribution, levelIds[level].length);
+        }
+        ValueObject<Context>[] all = ctxes.toArray(new ValueObject[ctxes.size()]);
+        List<ValueObject<ObjectInContext>> oicRows = new ArrayList<>(totalObjects * maxCtx);
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, 1000);
+            for (int j = 0; j < maxCtx; j++) {
+                oicRows.add(ObjectInContext.newObject(layout, object, random(all)));
+            }
+        }
+        ctxLabel = tree.label(getAttr(layout, ObjectInContext.ctxId));
+        contexts = new ConcurrentIndexedCollection<>();
+        oics = new ConcurrentIndexedCollection<>();
+        BulkLoad.load(contexts, ctxes, Arrays.<Index<ValueObject<Context>>>asList(
+                UniqueIndex.onAttribute(getAttr(layout, Context.id)),
+                HashIndex.onAttribute(getAttr(layout, Context.parent))));
+        BulkLoad.load(oics, oicRows, Arrays.<Index<ValueObject<ObjectInContext>>>asList(
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)),
+                NavigableIndex.onAttribute(ctxLabel)));
+        contextById = HashJoin.uniqueLookup(contexts, getAttr(layout, Context.id), options = new QueryOptions());
+    }
+
+    private long randomContextId() {
+        int level = Sequence.random(depth);
+        return levelKeys[level].nextId(levelIds[level]);
+    }
+
+    /**
+     * Subtree expanded level by level through the parent index
+     */
+    private List<Long> expand(long ctxId) {
+        List<Long> ids = new ArrayList<>();
+        ids.add(ctxId);
+        for (int i = 0; i < ids.size(); i++) {
+            ResultSet<ValueObject<Context>> children = contexts.retrieve(equal(getAttr(layout, Context.parent), ids.get(i)), options);
+            try {
+                for (ValueObject<Context> child : children) {
+                    ids.add(child.getId());
+                }
+            } finally {
+                children.close();
+            }
+        }
+        return ids;
+    }
+
+    @Benchmark
+    public void countBySubtreeIn(Blackhole bh) {
+        bh.consume(oics.retrieve(in(getAttr(layout, ObjectInContext.ctxId), expand(randomContextId())), options).size());
+    }
+
+    @Benchmark
+    public void countBySubtreeLabels(Blackhole bh) {
+        bh.consume(oics.retrieve(tree.inSubtree(ctxLabel, randomContextId()), options).size());
+    }
+
+    /**
+     * Walks up the parents of a random leaf
+     */
+    @Benchmark
+    public boolean isDescendantByParents() {
+        long ancestorId = randomContextId();
+        ValueObject<Context> ctx = random(levels[depth - 1]);
+        while (ctx != null) {
+            if (ctx.getId() == ancestorId) {
+                return true;
+            }
+            Long parent = (Long) ctx.getValue(Context.parent);
+            // roots have no parent, null in the boxed layout and 0 in the primitive ones
+            if (parent == null || parent == 0) {
+                return false;
+            }
+            ctx = contextById.apply(parent);
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean isDescendantByLabels() {
+        long ancestorId = randomContextId();
+        return tree.isDescendant(random(levels[depth - 1]).getId(), ancestorId);
+    }
+}
@@ -0,0 +1,66 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Codes of strings, shared by all rows of {@link ValueObject.Layout#DICTIONARY}: rows keep int codes instead of
+ * references to their own copies of strings, indices and filters compare codes. Codes start from 1, 0 is null.
+ * Codes are not persisted, i.e. they are valid in the process that assigned them.
+ */
+public class Dictionary {
+
+    public static final Dictionary STRINGS = new Dictionary();
+
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private int size = 1;
+
+    /**
+     * @return code of the value, new values get new codes
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer code = codes.get(value);
+        return code != null ? code : add(value);
+    }
+
+    private synchronized int add(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        String[] values = this.values;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        // publish the value before the code
+        this.values = values;
+        codes.put(value, size);
+        return size++;
+    }
+
+    /**
+     * Translates predicate values, does not add them
+     *
+     * @return code of the value or -1 if it has none
+     */
+    public int code(String value) {
+        if (value == null) {
+            return 0;
+        }
+        Integer code = codes.get(value);
+        return code == null ? -1 : code;
+    }
+
+    public String decode(int code) {
+        return values[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+}
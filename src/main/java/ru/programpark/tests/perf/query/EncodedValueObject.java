@@ -0,0 +1,34 @@
+package ru.programpark.tests.perf.query;
+
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+
+/**
+ * Keeps long fields unboxed and string fields as {@link Dictionary#STRINGS} codes in long slots after the longs,
+ * see {@link ValueObject.Slots#encoded()}. Long fields have the same slots as in {@link PrimitiveValueObject}.
+ */
+@DefaultSerializer(ValueObjectSerializer.class)
+public class EncodedValueObject<T extends Enum<T>> extends PrimitiveValueObject<T> {
+
+    /**
+     * @param slots slots of the type or their encoded form
+     */
+    public EncodedValueObject(Slots slots) {
+        super(slots.encoded());
+    }
+
+    @Override
+    public Object getValue(T name) {
+        int slot = slots().slot(name);
+        return slots().isEncoded(name) ? Dictionary.STRINGS.decode((int) longs()[slot]) : (Object) longs()[slot];
+    }
+
+    @Override
+    public void setValue(T name, Object value) {
+        if (slots().isEncoded(name)) {
+            longs()[slots().slot(name)] = Dictionary.STRINGS.encode((String) value);
+        } else {
+            super.setValue(name, value);
+        }
+    }
+}
@@ -2,10 +2,12 @@ package ru.programpark.tests.perf.query;
 
 import com.googlecode.cqengine.attribute.Attribute;
 import com.googlecode.cqengine.attribute.SimpleAttribute;
-import com.googlecode.cqengine.index.compound.support.CompoundAttribute;
 import com.googlecode.cqengine.query.option.QueryOptions;
+import ru.programpark.tests.perf.query.ValueObject.Layout;
+import ru.programpark.tests.perf.query.ValueObject.Slots;
 
-import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.IntStream;
@@ -16,24 +18,32 @@ import java.util.stream.IntStream;
 public class Fields {
 
 
-    private static final Map<Enum, Attribute> attributes = new HashMap<>();
+    private static final Map<Layout, Map<Enum<?>, Attribute<?, ?>>> attributes = new EnumMap<>(Layout.class);
+    private static final Map<Enum<?>, Attribute<?, ?>> columnAttributes = new HashMap<>();
+    private static final Map<Class<?>, Slots> slots = new HashMap<>();
 
     static {
+        for (Layout layout : Layout.values()) {
+            attributes.put(layout, new HashMap<>());
+        }
+        slots.put(Context.class, Slots.of(Context.class,
+                EnumSet.of(Context.id, Context.parent), EnumSet.of(Context.name)));
+        slots.put(ObjectInContext.class, Slots.of(ObjectInContext.class,
+                EnumSet.of(ObjectInContext.id, ObjectInContext.objId, ObjectInContext.cncId, ObjectInContext.ctxId),
+                EnumSet.noneOf(ObjectInContext.class)));
+        slots.put(VObject.class, Slots.of(VObject.class,
+                EnumSet.of(VObject.id, VObject.cncId, VObject.lvalue), EnumSet.of(VObject.svalue)));
+
         createLongAttr(ObjectInContext.id);
         createLongAttr(ObjectInContext.cncId);
         createLongAttr(ObjectInContext.objId);
         createLongAttr(ObjectInContext.ctxId);
-        attributes.put(ObjectInContext.compound, new CompoundAttribute<>(
-                Arrays.asList(
-                        getAttr(ObjectInContext.cncId),
-                        getAttr(ObjectInContext.ctxId)
-                )
-        ));
         createLongAttr(VObject.id);
         createLongAttr(VObject.cncId);
         createLongAttr(VObject.lvalue);
         createStringAttr(VObject.svalue);
         createLongAttr(Context.id);
+        createLongAttr(Context.parent);
         createIdentityAttr(Identity.id, Long.class);
         createStringAttr(Context.name);
     }
@@ -64,46 +74,156 @@ public class Fields {
         return values[Sequence.random(values.length)];
     }
 
-    public static Attribute getAttr(Enum key) {
-        return attributes.get(key);
+    public static <T extends Enum<T>, A> SimpleAttribute<ValueObject<T>, A> getAttr(T key) {
+        return getAttr(Layout.BOXED, key);
+    }
+
+    /**
+     * @return attribute of the field of rows of the layout, A is Long for long fields, String or Integer for
+     * string fields, see {@link #encode}
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Enum<T>, A> SimpleAttribute<ValueObject<T>, A> getAttr(Layout layout, T key) {
+        return (SimpleAttribute<ValueObject<T>, A>) attributes.get(layout).get(key);
+    }
+
+    /**
+     * @return attribute of a long field, where the type of the attribute can not be inferred
+     */
+    public static <T extends Enum<T>> SimpleAttribute<ValueObject<T>, Long> getLongAttr(Layout layout, T key) {
+        return getAttr(layout, key);
+    }
+
+    /**
+     * @return value of a query on the attribute of the layout: code of a string for {@link Layout#DICTIONARY},
+     * the value itself otherwise
+     */
+    public static Object encode(Layout layout, Object value) {
+        return layout == Layout.DICTIONARY && value instanceof String ? Dictionary.STRINGS.code((String) value) : value;
+    }
+
+    /**
+     * @return attribute of {@link ColumnValueObject} rows
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Enum<T>, A> SimpleAttribute<ValueObject<T>, A> getColumnAttr(T key) {
+        return (SimpleAttribute<ValueObject<T>, A>) columnAttributes.get(key);
+    }
+
+    static Slots slotsOf(Class<?> type) {
+        return slots.get(type);
     }
 
-    private static void createLongAttr(Enum e) {
-        SimpleAttribute<ValueObject, Long> simpleAttribute = new SimpleAttribute<ValueObject, Long>(ValueObject.class, Long.class, e.name()) {
+    @SuppressWarnings("unchecked")
+    private static <T extends Enum<T>> Class<ValueObject<T>> rowType() {
+        return (Class<ValueObject<T>>) (Class<?>) ValueObject.class;
+    }
+
+    private static <T extends Enum<T>> void createLongAttr(T e) {
+        SimpleAttribute<ValueObject<T>, Long> simpleAttribute = new SimpleAttribute<ValueObject<T>, Long>(rowType(), Long.class, e.name()) {
             @Override
-            public Long getValue(ValueObject o, QueryOptions queryOptions) {
+            public Long getValue(ValueObject<T> o, QueryOptions queryOptions) {
                 return (Long) o.getValue(e);
             }
         };
-        attributes.put(e, simpleAttribute);
+        attributes.get(Layout.BOXED).put(e, simpleAttribute);
+        createPrimitiveLongAttr(e);
+    }
+
+    private static <T extends Enum<T>> void createPrimitiveLongAttr(T e) {
+        final int slot = slotsOf(e.getDeclaringClass()).slot(e);
+        SimpleAttribute<ValueObject<T>, Long> simpleAttribute = new LongAttribute<ValueObject<T>>(rowType(), e.name()) {
+            @Override
+            public long getLong(ValueObject<T> o, QueryOptions queryOptions) {
+                return ((PrimitiveValueObject<T>) o).getLong(slot);
+            }
+        };
+        attributes.get(Layout.PRIMITIVE).put(e, simpleAttribute);
+        // encoded slots keep long fields in place
+        attributes.get(Layout.DICTIONARY).put(e, simpleAttribute);
+        createColumnLongAttr(e, slot);
+    }
+
+    private static <T extends Enum<T>> void createColumnLongAttr(T e, int slot) {
+        SimpleAttribute<ValueObject<T>, Long> simpleAttribute = new LongAttribute<ValueObject<T>>(rowType(), e.name()) {
+            @Override
+            public long getLong(ValueObject<T> o, QueryOptions queryOptions) {
+                return ((ColumnValueObject<T>) o).getLong(slot);
+            }
+        };
+        columnAttributes.put(e, simpleAttribute);
     }
 
-    private static <T> void createIdentityAttr(Enum e, Class<T> c) {
+    private static <T> void createIdentityAttr(Enum<?> e, Class<T> c) {
         SimpleAttribute<T, T> simpleAttribute = new SimpleAttribute<T, T>(c, c, e.name()) {
             @Override
             public T getValue(T o, QueryOptions queryOptions) {
                 return o;
             }
         };
-        attributes.put(e, simpleAttribute);
+        for (Layout layout : Layout.values()) {
+            attributes.get(layout).put(e, simpleAttribute);
+        }
     }
 
-    private static void createStringAttr(Enum e) {
-        SimpleAttribute<ValueObject, String> simpleAttribute = new SimpleAttribute<ValueObject, String>(ValueObject.class, String.class, e.name()) {
+    private static <T extends Enum<T>> void createStringAttr(T e) {
+        SimpleAttribute<ValueObject<T>, String> simpleAttribute = new SimpleAttribute<ValueObject<T>, String>(rowType(), String.class, e.name()) {
             @Override
-            public String getValue(ValueObject o, QueryOptions queryOptions) {
+            public String getValue(ValueObject<T> o, QueryOptions queryOptions) {
                 return (String) o.getValue(e);
             }
         };
-        attributes.put(e, simpleAttribute);
+        attributes.get(Layout.BOXED).put(e, simpleAttribute);
+        createPrimitiveStringAttr(e);
+    }
+
+    private static <T extends Enum<T>> void createPrimitiveStringAttr(T e) {
+        final int slot = slotsOf(e.getDeclaringClass()).slot(e);
+        SimpleAttribute<ValueObject<T>, String> simpleAttribute = new SimpleAttribute<ValueObject<T>, String>(rowType(), String.class, e.name()) {
+            @Override
+            public String getValue(ValueObject<T> o, QueryOptions queryOptions) {
+                return (String) ((PrimitiveValueObject<T>) o).getRef(slot);
+            }
+        };
+        attributes.get(Layout.PRIMITIVE).put(e, simpleAttribute);
+        createEncodedStringAttr(e);
+        createColumnStringAttr(e, slot);
+    }
+
+    /**
+     * Attribute of {@link Layout#DICTIONARY} rows is the code of the string, see {@link #encode}
+     */
+    private static <T extends Enum<T>> void createEncodedStringAttr(T e) {
+        final int slot = slotsOf(e.getDeclaringClass()).encoded().slot(e);
+        SimpleAttribute<ValueObject<T>, Integer> simpleAttribute = new SimpleAttribute<ValueObject<T>, Integer>(rowType(), Integer.class, e.name()) {
+            @Override
+            public Integer getValue(ValueObject<T> o, QueryOptions queryOptions) {
+                return (int) ((PrimitiveValueObject<T>) o).getLong(slot);
+            }
+        };
+        attributes.get(Layout.DICTIONARY).put(e, simpleAttribute);
+    }
+
+    private static <T extends Enum<T>> void createColumnStringAttr(T e, int slot) {
+        SimpleAttribute<ValueObject<T>, String> simpleAttribute = new SimpleAttribute<ValueObject<T>, String>(rowType(), String.class, e.name()) {
+            @Override
+            public String getValue(ValueObject<T> o, QueryOptions queryOptions) {
+                return (String) ((ColumnValueObject<T>) o).getRef(slot);
+            }
+        };
+        columnAttributes.put(e, simpleAttribute);
     }
 
     enum Context {
         id, parent, name;
 
         public static ValueObject<Context> newObject(ValueObject<Context> parent, String name) {
-            ValueObject<Context> res = new ValueObject(3);
-            res.setValue(Context.id, nextKey());
+            return newObject(Layout.BOXED, parent, name);
+        }
+
+        public static ValueObject<Context> newObject(Layout layout, ValueObject<Context> parent, String name) {
+            ValueObject<Context> res = layout.newObject(slotsOf(Context.class));
+            res.setLong(Context.id, nextKey());
             res.setValue(Context.name, name);
             if (parent != null) {
                 res.setValue(Context.parent, parent.getId());
@@ -114,11 +234,15 @@ public class Fields {
     }
 
     enum ObjectInContext {
-        id, objId, cncId, ctxId, compound;
+        id, objId, cncId, ctxId;
 
         public static ValueObject<ObjectInContext> newObject(ValueObject<VObject> obj, ValueObject<Context> ctx) {
-            ValueObject<ObjectInContext> res = new ValueObject(4);
-            res.setValue(id, nextKey());
+            return newObject(Layout.BOXED, obj, ctx);
+        }
+
+        public static ValueObject<ObjectInContext> newObject(Layout layout, ValueObject<VObject> obj, ValueObject<Context> ctx) {
+            ValueObject<ObjectInContext> res = layout.newObject(slotsOf(ObjectInContext.class));
+            res.setLong(id, nextKey());
             res.setValue(cncId, obj.getValue(VObject.cncId));
             res.setValue(objId, obj.getId());
             res.setValue(ctxId, ctx.getId());
@@ -130,9 +254,13 @@ public class Fields {
         id, cncId, lvalue, svalue;
 
         public static ValueObject<VObject> newObject(int maxCnc) {
-            ValueObject obj = new ValueObject<VObject>(4);
-            obj.setValue(id, nextKey());
-            obj.setValue(cncId, (long)Sequence.random(maxCnc));
+            return newObject(Layout.BOXED, maxCnc);
+        }
+
+        public static ValueObject<VObject> newObject(Layout layout, int maxCnc) {
+            ValueObject<VObject> obj = layout.newObject(slotsOf(VObject.class));
+            obj.setLong(id, nextKey());
+            obj.setLong(cncId, Sequence.random(maxCnc));
             return obj;
         }
     }
@@ -0,0 +1,93 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Batch replacement of {@link com.googlecode.cqengine.query.simple.ExistsIn}: foreign query is evaluated once,
+ * its keys are collected into a {@link LongHashSet} and each key is looked up in the local unique index.
+ * CQEngine evaluates existsIn by running the foreign query for every local candidate.
+ */
+public class HashJoin {
+
+    /**
+     * Same objects as existsIn(foreign, localKey, foreignKey, foreignQuery), each one once
+     */
+    public static <O, F> Stream<O> existsIn(LongFunction<O> localLookup, IndexedCollection<F> foreign,
+                                            SimpleAttribute<F, Long> foreignKey, Query<F> foreignQuery,
+                                            QueryOptions options) {
+        return collectKeys(foreign, foreignKey, foreignQuery, options).stream()
+                .mapToObj(localLookup)
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Same objects as and(localQuery, existsIn(foreign, localKey, foreignKey, foreignQuery))
+     */
+    public static <O, F> Stream<O> existsIn(LongFunction<O> localLookup, Query<O> localQuery, IndexedCollection<F> foreign,
+                                            SimpleAttribute<F, Long> foreignKey, Query<F> foreignQuery,
+                                            QueryOptions options) {
+        return existsIn(localLookup, foreign, foreignKey, foreignQuery, options)
+                .filter(o -> localQuery.matches(o, options));
+    }
+
+    public static <F> LongHashSet collectKeys(IndexedCollection<F> foreign, SimpleAttribute<F, Long> foreignKey,
+                                              Query<F> foreignQuery, QueryOptions options) {
+        LongHashSet keys = new LongHashSet();
+        ResultSet<F> rs = foreign.retrieve(foreignQuery, options);
+        try {
+            for (F f : rs) {
+                keys.add(LongAttribute.longValue(foreignKey, f, options));
+            }
+        } finally {
+            rs.close();
+        }
+        return keys;
+    }
+
+    /**
+     * Lookup of objects by unique key. Goes straight to {@link LongUniqueIndex}, {@link UniqueIndex} or {@link HashIndex}
+     * on the key bypassing the query engine, retrieves from the collection otherwise. Indexes of a {@link ShardedCollection}
+     * are per shard, lookups go to the shards.
+     */
+    public static <O> LongFunction<O> uniqueLookup(IndexedCollection<O> collection, SimpleAttribute<O, Long> key,
+                                                   QueryOptions options) {
+        if (collection instanceof ShardedCollection) {
+            return ((ShardedCollection<O>) collection).uniqueLookup(key, options);
+        }
+        for (Index<O> index : collection.getIndexes()) {
+            if (!(index instanceof AttributeIndex) || !((AttributeIndex) index).getAttribute().equals(key)) {
+                continue;
+            }
+            if (index instanceof LongUniqueIndex) {
+                return ((LongUniqueIndex<O>) index)::get;
+            }
+            if (index instanceof UniqueIndex || index instanceof HashIndex) {
+                return k -> first(index.retrieve(new Equal<>(key, k), options));
+            }
+        }
+        return k -> first(collection.retrieve(new Equal<>(key, k), options));
+    }
+
+    private static <O> O first(ResultSet<O> rs) {
+        try {
+            Iterator<O> iterator = rs.iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        } finally {
+            rs.close();
+        }
+    }
+}
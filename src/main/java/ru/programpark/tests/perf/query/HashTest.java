@@ -29,10 +29,16 @@ public class HashTest {
     // keys hash to compare cqengine  results with hash
     private Map<Long, Long> firstHash = new ConcurrentHashMap<>();
     private Map<Long, List<Long>> fkHash = new ConcurrentHashMap<>();
+    // same keys in open addressing map without boxing
+    private LongObjectMap<Long> longMap;
+    private Workload keys;
 
     // generate random or sequential data
     @Param({"true", "false"})
     boolean random;
+    // keys of lookups, see Workload
+    @Param({"UNIFORM"})
+    String distribution;
     // generate random or sequential data
 
     @Setup(Level.Trial)
@@ -40,12 +46,15 @@ public class HashTest {
         // keys hash to compare cqengine results with hash
         firstHash = new ConcurrentHashMap<>(MAX_IDS);
         fkHash = new ConcurrentHashMap<>(MAX_IDS);
+        longMap = new LongObjectMap<>(MAX_IDS);
         objIds = random ? generate(MAX_IDS, MAX_IDS * 1000) : generate(MAX_IDS);
+        keys = Workload.of(distribution, objIds.length);
         // fill both collections and a map with same values
         Stream.of(objIds).distinct()
                 .forEach(v -> {
                     firstHash.put(v, v);
                     fkHash.put(v, Arrays.asList(v));
+                    longMap.putIfAbsent(v, v);
                 });
     }
 
@@ -54,15 +63,28 @@ public class HashTest {
         bh.consume(randomObject(objIds));
     }
 
+    @Benchmark
+    public void workloadBaseline(Blackhole bh) {
+        bh.consume(keys.nextId(objIds));
+    }
+
     @Benchmark
     public void queryHash(Blackhole bh) {
-        bh.consume(firstHash.get(randomObject(objIds)));
+        bh.consume(firstHash.get(keys.nextId(objIds)));
+    }
+
+    @Benchmark
+    public void queryLongMap(Blackhole bh) {
+        bh.consume(longMap.get(keys.nextId(objIds)));
     }
 
     @Benchmark
     public void joinHash(Blackhole bh) {
-        Long key = randomObject(objIds);
-        Iterator<Long> iterator = fkHash.get(key).iterator();
+        List<Long> fks = fkHash.get(keys.nextId(objIds));
+        if (fks == null) {
+            return;
+        }
+        Iterator<Long> iterator = fks.iterator();
         while (iterator.hasNext()) {
             Long next = iterator.next();
             bh.consume(firstHash.get(next));
@@ -0,0 +1,52 @@
+package ru.programpark.tests.perf.query;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Heap retained by setUp stages: {@link #used()} is the heap used once GC has settled, {@link #report} keeps bytes
+ * per object of a stage for {@link HeapProfiler}. Use -prof gc to see allocation per operation.
+ */
+public class Heap {
+
+    private static final int MAX_GC = 10;
+
+    // bytes per object by stage
+    private static final Map<String, Double> reported = new LinkedHashMap<>();
+
+    /**
+     * @return heap used after GC, repeated until it frees less than 1% of the heap
+     */
+    public static long used() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_GC; i++) {
+            memory.gc();
+            long after = memory.getHeapMemoryUsage().getUsed();
+            if (after > used - used / 100) {
+                return Math.min(used, after);
+            }
+            used = after;
+        }
+        return used;
+    }
+
+    /**
+     * @param stage      short name of the stage, i.e. of the objects retained, params are reported by JMH
+     * @param usedBefore {@link #used()} before the stage
+     */
+    public static void report(String stage, long usedBefore, int count) {
+        long bytes = used() - usedBefore;
+        synchronized (reported) {
+            reported.put(stage, count == 0 ? 0 : (double) bytes / count);
+        }
+    }
+
+    static Map<String, Double> reported() {
+        synchronized (reported) {
+            return new LinkedHashMap<>(reported);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ru.programpark.tests.perf.query;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports heap retained per object by setUp stages, see {@link Heap#report}, as secondary results of each iteration:
+ * <pre>
+ * -prof ru.programpark.tests.perf.query.HeapProfiler
+ * </pre>
+ */
+public class HeapProfiler implements InternalProfiler {
+
+    @Override
+    public String getDescription() {
+        return "Heap retained per object by setUp stages";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result) {
+        List<Result<?>> results = new ArrayList<>();
+        for (Map.Entry<String, Double> stage : Heap.reported().entrySet()) {
+            results.add(new ScalarResult("·heap." + stage.getKey(), stage.getValue(), "bytes/object", AggregationPolicy.AVG));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,117 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative longs, 8 buckets per power of two, i.e. values are kept with 12.5% precision.
+ * Threads record into stripes of their own by thread id, recording does not allocate. Reads merge stripes.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    // stripe width with a cache line of padding between stripes
+    private static final int WIDTH = BUCKETS + 2 + 8;
+
+    private final AtomicLongArray counters;
+    private final int mask;
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    public Histogram(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+        counters = new AtomicLongArray(size * WIDTH);
+        mask = size - 1;
+    }
+
+    public Histogram() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public void record(long value) {
+        int base = ((int) Thread.currentThread().getId() & mask) * WIDTH;
+        counters.incrementAndGet(base + bucket(value));
+        counters.addAndGet(base + SUM, value);
+        long max;
+        while (value > (max = counters.get(base + MAX)) && !counters.compareAndSet(base + MAX, max, value)) {
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB) {
+            return (int) Math.max(value, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    /**
+     * @return highest value of the bucket
+     */
+    static long highest(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int shift = bucket / SUB - 1;
+        return ((long) (SUB + bucket % SUB + 1) << shift) - 1;
+    }
+
+    private long[] merged() {
+        long[] merged = new long[BUCKETS + 2];
+        for (int base = 0; base < counters.length(); base += WIDTH) {
+            for (int i = 0; i < BUCKETS + 1; i++) {
+                merged[i] += counters.get(base + i);
+            }
+            merged[MAX] = Math.max(merged[MAX], counters.get(base + MAX));
+        }
+        return merged;
+    }
+
+    public long count() {
+        long[] merged = merged();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += merged[i];
+        }
+        return count;
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) merged()[SUM] / count;
+    }
+
+    public long max() {
+        return merged()[MAX];
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return highest value of the bucket with the percentile
+     */
+    public long valueAt(double percentile) {
+        long[] merged = merged();
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += merged[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        for (int i = 0; i < BUCKETS; i++) {
+            rank -= merged[i];
+            if (rank <= 0) {
+                return Math.min(highest(i), merged[MAX]);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+}
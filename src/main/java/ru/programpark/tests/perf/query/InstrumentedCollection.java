@@ -0,0 +1,393 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.ExistsIn;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Indexed collection recording latency and result size of queries per query shape, i.e. the query tree
+ * with attribute names and without values: equal(id), in(id), and(equal(id), existsIn(id, eid)).
+ * <p>
+ * Result sets are lazy, existsIn() and and() do their work while iterating. A recorded query returns a result set
+ * that stops the clock started by retrieve() at the first result: when the first object is read, an iterator is
+ * exhausted, size() is computed or the result set is closed, whichever comes first. So lookups reading only the first
+ * object are recorded too. Result size is recorded at the end of the results: the number of objects iterated when an
+ * iterator is exhausted or the result set is closed, or size().
+ * A query is classified by a structural hash of the tree, shapes are kept in an open addressing table,
+ * so recording does not allocate once the shape is known, except for the wrapping result set.
+ * Every 2^n-th query on average is recorded.
+ */
+public class InstrumentedCollection<O> extends AbstractSet<O> implements IndexedCollection<O>, QueryStatsMXBean {
+
+    private static final Field FOREIGN_KEY = PreparedQuery.field(ExistsIn.class, "foreignKeyAttribute");
+    private static final Field FOREIGN_RESTRICTIONS = PreparedQuery.field(ExistsIn.class, "foreignRestrictions");
+    private static final int CAPACITY = 256;
+
+    private final IndexedCollection<O> collection;
+    private final int sampleMask;
+    private final AtomicReferenceArray<Shape> shapes = new AtomicReferenceArray<>(CAPACITY);
+    private final Shape other = new Shape(0, "other");
+
+    /**
+     * Records every 16th query on average. On uniqueQuery of InstrumentedTest it is within the noise of direct
+     * queries (763K vs 734K ops/s, +-15%), recording every query costs about 13% (640K ops/s).
+     */
+    public InstrumentedCollection(IndexedCollection<O> collection) {
+        this(collection, 4);
+    }
+
+    /**
+     * @param sampleBits record every 2^sampleBits-th query on average
+     */
+    public InstrumentedCollection(IndexedCollection<O> collection, int sampleBits) {
+        this.collection = collection;
+        this.sampleMask = (1 << sampleBits) - 1;
+    }
+
+    /**
+     * Registers statistics in the platform MBean server
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName(getClass().getPackage().getName() + ":type=QueryStats,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register query stats " + name, e);
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister query stats " + name, e);
+        }
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query) {
+        return retrieve(query, null);
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        if ((ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return queryOptions == null ? collection.retrieve(query) : collection.retrieve(query, queryOptions);
+        }
+        long start = System.nanoTime();
+        ResultSet<O> result = queryOptions == null ? collection.retrieve(query) : collection.retrieve(query, queryOptions);
+        return new TimedResultSet<>(result, shape(query), start);
+    }
+
+    private Shape shape(Query<?> query) {
+        long hash = hash(query);
+        for (int i = (int) (hash ^ (hash >>> 32)) & (CAPACITY - 1), probes = 0; probes < CAPACITY; i = (i + 1) & (CAPACITY - 1), probes++) {
+            Shape shape = shapes.get(i);
+            if (shape == null) {
+                Shape created = new Shape(hash, describe(query));
+                if (shapes.compareAndSet(i, null, created)) {
+                    return created;
+                }
+                shape = shapes.get(i);
+            }
+            if (shape.hash == hash) {
+                return shape;
+            }
+        }
+        return other;
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x9E3779B97F4A7C15L;
+    }
+
+    static long hash(Query<?> query) {
+        if (query == null) {
+            return 0;
+        }
+        long hash = mix(1, query.getClass().getName().hashCode());
+        if (query instanceof ExistsIn) {
+            hash = mix(hash, ((ExistsIn) query).getAttributeName().hashCode());
+            hash = mix(hash, PreparedQuery.<Attribute<?, ?>>get(FOREIGN_KEY, query).getAttributeName().hashCode());
+            hash = mix(hash, hash(PreparedQuery.<Query<?>>get(FOREIGN_RESTRICTIONS, query)));
+        } else if (query instanceof SimpleQuery) {
+            hash = mix(hash, ((SimpleQuery) query).getAttributeName().hashCode());
+        } else if (query instanceof LogicalQuery) {
+            for (Query<?> child : ((LogicalQuery<?>) query).getChildQueries()) {
+                hash = mix(hash, hash(child));
+            }
+        }
+        return hash;
+    }
+
+    static String describe(Query<?> query) {
+        String name = query.getClass().getSimpleName();
+        StringBuilder result = new StringBuilder().append(Character.toLowerCase(name.charAt(0))).append(name, 1, name.length());
+        if (query instanceof ExistsIn) {
+            result.append('(').append(((ExistsIn) query).getAttributeName())
+                    .append(", ").append(PreparedQuery.<Attribute<?, ?>>get(FOREIGN_KEY, query).getAttributeName());
+            Query<?> restrictions = PreparedQuery.get(FOREIGN_RESTRICTIONS, query);
+            if (restrictions != null) {
+                result.append(", ").append(describe(restrictions));
+            }
+            result.append(')');
+        } else if (query instanceof SimpleQuery) {
+            result.append('(').append(((SimpleQuery) query).getAttributeName()).append(')');
+        } else if (query instanceof LogicalQuery) {
+            String separator = "(";
+            for (Query<?> child : ((LogicalQuery<?>) query).getChildQueries()) {
+                result.append(separator).append(describe(child));
+                separator = ", ";
+            }
+            result.append(')');
+        }
+        return result.toString();
+    }
+
+    @Override
+    public List<QueryStatsMXBean.Shape> getShapes() {
+        List<QueryStatsMXBean.Shape> result = new ArrayList<>();
+        for (int i = 0; i < CAPACITY; i++) {
+            Shape shape = shapes.get(i);
+            if (shape != null) {
+                result.add(shape.stats());
+            }
+        }
+        if (other.latency.count() > 0) {
+            result.add(other.stats());
+        }
+        return result;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return 1.0 / (sampleMask + 1);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < CAPACITY; i++) {
+            Shape shape = shapes.get(i);
+            if (shape != null) {
+                shape.latency.reset();
+                shape.size.reset();
+            }
+        }
+        other.latency.reset();
+        other.size.reset();
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd) {
+        return collection.update(objectsToRemove, objectsToAdd);
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd, QueryOptions queryOptions) {
+        return collection.update(objectsToRemove, objectsToAdd, queryOptions);
+    }
+
+    @Override
+    public boolean add(O object) {
+        return collection.add(object);
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        return collection.remove(object);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends O> objects) {
+        return collection.addAll(objects);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> objects) {
+        return collection.removeAll(objects);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        return collection.retainAll(objects);
+    }
+
+    @Override
+    public void clear() {
+        collection.clear();
+    }
+
+    @Override
+    public Iterator<O> iterator() {
+        return collection.iterator();
+    }
+
+    @Override
+    public int size() {
+        return collection.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return collection.contains(o);
+    }
+
+    @Override
+    public void addIndex(Index<O> index) {
+        collection.addIndex(index);
+    }
+
+    @Override
+    public void addIndex(Index<O> index, QueryOptions queryOptions) {
+        collection.addIndex(index, queryOptions);
+    }
+
+    @Override
+    public Iterable<Index<O>> getIndexes() {
+        return collection.getIndexes();
+    }
+
+    /**
+     * Records latency of the shape once at the first result and size once at the end of the results
+     */
+    private static class TimedResultSet<O> extends ResultSet<O> {
+        private final ResultSet<O> resultSet;
+        private final Shape shape;
+        private final long start;
+        // objects returned by iterators
+        private long iterated;
+        private boolean latencyRecorded;
+        private boolean sizeRecorded;
+
+        TimedResultSet(ResultSet<O> resultSet, Shape shape, long start) {
+            this.resultSet = resultSet;
+            this.shape = shape;
+            this.start = start;
+        }
+
+        private void recordLatency() {
+            if (!latencyRecorded) {
+                latencyRecorded = true;
+                shape.latency.record(System.nanoTime() - start);
+            }
+        }
+
+        private void record(long size) {
+            recordLatency();
+            if (!sizeRecorded) {
+                sizeRecorded = true;
+                shape.size.record(size);
+            }
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            Iterator<O> iterator = resultSet.iterator();
+            return new Iterator<O>() {
+                @Override
+                public boolean hasNext() {
+                    if (iterator.hasNext()) {
+                        return true;
+                    }
+                    record(iterated);
+                    return false;
+                }
+
+                @Override
+                public O next() {
+                    O next = iterator.next();
+                    if (iterated++ == 0) {
+                        recordLatency();
+                    }
+                    return next;
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(O object) {
+            return resultSet.contains(object);
+        }
+
+        @Override
+        public boolean matches(O object) {
+            return resultSet.matches(object);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return resultSet.getQuery();
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return resultSet.getQueryOptions();
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return resultSet.getRetrievalCost();
+        }
+
+        @Override
+        public int getMergeCost() {
+            return resultSet.getMergeCost();
+        }
+
+        @Override
+        public int size() {
+            int size = resultSet.size();
+            record(size);
+            return size;
+        }
+
+        /**
+         * An unfinished iteration, e.g. of the first object, is recorded with the objects iterated so far
+         */
+        @Override
+        public void close() {
+            record(iterated);
+            resultSet.close();
+        }
+    }
+
+    private static class Shape {
+        private final long hash;
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private final Histogram size = new Histogram();
+
+        Shape(long hash, String name) {
+            this.hash = hash;
+            this.name = name;
+        }
+
+        QueryStatsMXBean.Shape stats() {
+            return new QueryStatsMXBean.Shape(name, latency, size);
+        }
+    }
+}
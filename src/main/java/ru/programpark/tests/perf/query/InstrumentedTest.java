@@ -0,0 +1,105 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.QueryFactory;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.management.ObjectName;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static ru.programpark.tests.perf.query.Fields.generate;
+import static ru.programpark.tests.perf.query.Sequence.firstAndClose;
+
+/**
+ * Overhead of {@link InstrumentedCollection} on uniqueQuery and existsJoin of {@link QueryTest}:
+ * direct queries vs recording every query vs every 16th.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+public class InstrumentedTest {
+
+    public static final int MAX_IDS = 1000000;
+
+    // record every 2^n-th query per shape, -1 to query the collection directly
+    @Param({
+            "-1", "0", "4"
+    })
+    private int instrumentSampleBits;
+
+    // keys of queries, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private static final SimpleAttribute<Long, Long> ID = new SimpleAttribute<Long, Long>(Long.class, Long.class, "id") {
+        @Override
+        public Long getValue(Long o, QueryOptions queryOptions) {
+            return o;
+        }
+    };
+    private static final SimpleAttribute<Long, Long> EID = new SimpleAttribute<Long, Long>(Long.class, Long.class, "eid") {
+        @Override
+        public Long getValue(Long o, QueryOptions queryOptions) {
+            return o;
+        }
+    };
+
+    private Long[] objIds;
+    private IndexedCollection<Long> first;
+    private IndexedCollection<Long> second;
+    private QueryOptions options;
+    private Workload keys;
+    private ObjectName statsName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        first = new ConcurrentIndexedCollection<>();
+        second = new ConcurrentIndexedCollection<>();
+        options = new QueryOptions();
+        objIds = generate(MAX_IDS, MAX_IDS * 1000);
+        keys = Workload.of(distribution, objIds.length);
+        Stream.of(objIds).distinct()
+                .forEach(v -> {
+                    first.add(v);
+                    second.add(v);
+                });
+        first.addIndex(UniqueIndex.onAttribute(ID));
+        second.addIndex(HashIndex.onAttribute(EID));
+        if (instrumentSampleBits >= 0) {
+            InstrumentedCollection<Long> instrumented = new InstrumentedCollection<>(first, instrumentSampleBits);
+            statsName = instrumented.register("InstrumentedTest.first");
+            first = instrumented;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (statsName != null) {
+            InstrumentedCollection.unregister(statsName);
+            statsName = null;
+        }
+    }
+
+    @Benchmark
+    public void uniqueQuery(Blackhole bh) {
+        Query<Long> query = QueryFactory.equal(ID, keys.nextId(objIds));
+        bh.consume(firstAndClose(first.retrieve(query, options)));
+    }
+
+    @Benchmark
+    public void existsJoin(Blackhole bh) {
+        Query<Long> query = QueryFactory.and(QueryFactory.equal(ID, keys.nextId(objIds)), QueryFactory.existsIn(second, ID, EID));
+        bh.consume(firstAndClose(first.retrieve(query, options)));
+    }
+}
@@ -0,0 +1,318 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Materialized join of objects with the foreign rows referencing them, grouped by two long attributes of the foreign
+ * rows, i.e. VObject rows of and(equal(ctxId, a), equal(cncId, b)) on ObjectInContext joined by objId. Same as
+ * existsIn(foreign, id, foreignKey, and(...)) on objects, without duplicates, in no particular order.
+ * <p>
+ * The view is maintained by {@link #objectIndex()} and {@link #foreignIndex()} added to the two collections, rows may
+ * be added to them in any order. Objects are not kept by the view: a foreign row is joined with the object found by
+ * the lookup of the objects collection, so writes of an object and of foreign rows referencing it must not race.
+ * Lookups are lock free: two map probes and a read of an array of the joined objects.
+ * Writes are serialized and copy the array of a group, i.e. cost grows with the group size.
+ */
+public class JoinView<O, F> {
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final LongFunction<O> objectById;
+    private final SimpleAttribute<O, Long> id;
+    private final SimpleAttribute<F, Long> foreignKey;
+    private final SimpleAttribute<F, Long> first;
+    private final SimpleAttribute<F, Long> second;
+    // first -> second -> group, read without locks
+    private final LongObjectMap<LongObjectMap<Group>> groups = new LongObjectMap<>();
+    // guarded by this
+    private final LongObjectMap<List<Group>> groupsByObject = new LongObjectMap<>();
+    private final Index<O> objectIndex;
+    private final Index<F> foreignIndex;
+
+    private static final class Group {
+        // foreign rows per object id, guarded by the view
+        private final Map<Long, Integer> references = new HashMap<>();
+        // joined objects present in the objects collection
+        private volatile Object[] rows = EMPTY;
+    }
+
+    /**
+     * @param objectById lookup of objects by the unique index of their collection, see {@link HashJoin#uniqueLookup}
+     * @param id         key of objects
+     * @param foreignKey reference to an object from a foreign row
+     * @param first      first attribute of the groups, e.g. ctxId
+     * @param second     second attribute of the groups, e.g. cncId
+     */
+    public JoinView(LongFunction<O> objectById, SimpleAttribute<O, Long> id, SimpleAttribute<F, Long> foreignKey,
+                    SimpleAttribute<F, Long> first, SimpleAttribute<F, Long> second) {
+        this.objectById = objectById;
+        this.id = id;
+        this.foreignKey = foreignKey;
+        this.first = first;
+        this.second = second;
+        String name = "view(" + first.getAttributeName() + ", " + second.getAttributeName() + ")";
+        this.objectIndex = new ViewIndex<>(attribute(id, name), this::addObjects, this::removeObjects, this::clearObjects);
+        this.foreignIndex = new ViewIndex<>(attribute(foreignKey, name), this::addForeign, this::removeForeign, this::clearForeign);
+    }
+
+    /**
+     * Attribute of its own, the view answers no queries of CQEngine
+     */
+    private static <T> SimpleAttribute<T, Long> attribute(SimpleAttribute<T, Long> key, String name) {
+        return new SimpleAttribute<T, Long>(key.getObjectType(), Long.class, name + "." + key.getAttributeName()) {
+            @Override
+            public Long getValue(T object, QueryOptions queryOptions) {
+                return key.getValue(object, queryOptions);
+            }
+        };
+    }
+
+    /**
+     * @return index to add to the objects collection
+     */
+    public Index<O> objectIndex() {
+        return objectIndex;
+    }
+
+    /**
+     * @return index to add to the collection of foreign rows
+     */
+    public Index<F> foreignIndex() {
+        return foreignIndex;
+    }
+
+    private Object[] rows(long first, long second) {
+        LongObjectMap<Group> byFirst = groups.get(first);
+        Group group = byFirst == null ? null : byFirst.get(second);
+        return group == null ? EMPTY : group.rows;
+    }
+
+    /**
+     * @return any joined object of the group or null
+     */
+    public O first(long first, long second) {
+        Object[] rows = rows(first, second);
+        return rows.length == 0 ? null : (O) rows[0];
+    }
+
+    public int size(long first, long second) {
+        return rows(first, second).length;
+    }
+
+    public void forEach(long first, long second, Consumer<? super O> action) {
+        for (Object row : rows(first, second)) {
+            action.accept((O) row);
+        }
+    }
+
+    private synchronized void addObjects(Iterable<O> added, QueryOptions queryOptions) {
+        for (O object : added) {
+            List<Group> referencing = groupsByObject.get(LongAttribute.longValue(id, object, queryOptions));
+            if (referencing != null) {
+                for (Group group : referencing) {
+                    // joined already if a foreign row was added after the object reached the lookup
+                    if (indexOf(group.rows, object) < 0) {
+                        group.rows = append(group.rows, object);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void removeObjects(Iterable<O> removed, QueryOptions queryOptions) {
+        for (O object : removed) {
+            List<Group> referencing = groupsByObject.get(LongAttribute.longValue(id, object, queryOptions));
+            if (referencing != null) {
+                for (Group group : referencing) {
+                    group.rows = remove(group.rows, object);
+                }
+            }
+        }
+    }
+
+    private synchronized void clearObjects() {
+        groups.forEachKey(a -> {
+            LongObjectMap<Group> byFirst = groups.get(a);
+            byFirst.forEachKey(b -> byFirst.get(b).rows = EMPTY);
+        });
+    }
+
+    private synchronized void addForeign(Iterable<F> added, QueryOptions queryOptions) {
+        for (F row : added) {
+            long key = LongAttribute.longValue(foreignKey, row, queryOptions);
+            Group group = group(LongAttribute.longValue(first, row, queryOptions), LongAttribute.longValue(second, row, queryOptions));
+            Integer count = group.references.put(key, group.references.getOrDefault(key, 0) + 1);
+            if (count != null) {
+                continue;
+            }
+            List<Group> referencing = groupsByObject.get(key);
+            if (referencing == null) {
+                groupsByObject.putIfAbsent(key, referencing = new ArrayList<>(1));
+            }
+            referencing.add(group);
+            O object = objectById.apply(key);
+            if (object != null) {
+                group.rows = append(group.rows, object);
+            }
+        }
+    }
+
+    private synchronized void removeForeign(Iterable<F> removed, QueryOptions queryOptions) {
+        for (F row : removed) {
+            long key = LongAttribute.longValue(foreignKey, row, queryOptions);
+            long firstValue = LongAttribute.longValue(first, row, queryOptions);
+            long secondValue = LongAttribute.longValue(second, row, queryOptions);
+            LongObjectMap<Group> byFirst = groups.get(firstValue);
+            Group group = byFirst == null ? null : byFirst.get(secondValue);
+            Integer count = group == null ? null : group.references.get(key);
+            if (count == null) {
+                continue;
+            }
+            if (count > 1) {
+                group.references.put(key, count - 1);
+                continue;
+            }
+            group.references.remove(key);
+            List<Group> referencing = groupsByObject.get(key);
+            referencing.remove(group);
+            if (referencing.isEmpty()) {
+                groupsByObject.remove(key, referencing);
+            }
+            O object = objectById.apply(key);
+            if (object != null) {
+                group.rows = remove(group.rows, object);
+            }
+            if (group.references.isEmpty()) {
+                byFirst.remove(secondValue, group);
+                if (byFirst.size() == 0) {
+                    groups.remove(firstValue, byFirst);
+                }
+            }
+        }
+    }
+
+    private synchronized void clearForeign() {
+        groups.clear();
+        groupsByObject.clear();
+    }
+
+    private Group group(long firstValue, long secondValue) {
+        LongObjectMap<Group> byFirst = groups.get(firstValue);
+        if (byFirst == null) {
+            groups.putIfAbsent(firstValue, byFirst = new LongObjectMap<>());
+        }
+        Group group = byFirst.get(secondValue);
+        if (group == null) {
+            byFirst.putIfAbsent(secondValue, group = new Group());
+        }
+        return group;
+    }
+
+    private static Object[] append(Object[] rows, Object object) {
+        Object[] copy = new Object[rows.length + 1];
+        System.arraycopy(rows, 0, copy, 0, rows.length);
+        copy[rows.length] = object;
+        return copy;
+    }
+
+    private static int indexOf(Object[] rows, Object object) {
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].equals(object)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Object[] remove(Object[] rows, Object object) {
+        int i = indexOf(rows, object);
+        if (i < 0) {
+            return rows;
+        }
+        if (rows.length == 1) {
+            return EMPTY;
+        }
+        Object[] copy = new Object[rows.length - 1];
+        System.arraycopy(rows, 0, copy, 0, i);
+        System.arraycopy(rows, i + 1, copy, i, rows.length - i - 1);
+        return copy;
+    }
+
+    private interface Update<T> {
+        void apply(Iterable<T> rows, QueryOptions queryOptions);
+    }
+
+    /**
+     * Forwards writes of a collection to the view
+     */
+    private static class ViewIndex<T> extends AbstractAttributeIndex<Long, T> implements OnHeapTypeIndex {
+        private final Update<T> add;
+        private final Update<T> remove;
+        private final Runnable clear;
+
+        ViewIndex(SimpleAttribute<T, Long> attribute, Update<T> add, Update<T> remove, Runnable clear) {
+            super(attribute, Collections.<Class<? extends Query>>emptySet());
+            this.add = add;
+            this.remove = remove;
+            this.clear = clear;
+        }
+
+        @Override
+        public boolean isMutable() {
+            return true;
+        }
+
+        @Override
+        public boolean isQuantized() {
+            return false;
+        }
+
+        @Override
+        public Index<T> getEffectiveIndex() {
+            return this;
+        }
+
+        @Override
+        public ResultSet<T> retrieve(Query<T> query, QueryOptions queryOptions) {
+            throw new IllegalArgumentException("Unsupported query: " + query);
+        }
+
+        @Override
+        public boolean addAll(ObjectSet<T> objectSet, QueryOptions queryOptions) {
+            add.apply(objectSet, queryOptions);
+            return true;
+        }
+
+        @Override
+        public boolean removeAll(ObjectSet<T> objectSet, QueryOptions queryOptions) {
+            remove.apply(objectSet, queryOptions);
+            return true;
+        }
+
+        @Override
+        public void clear(QueryOptions queryOptions) {
+            clear.run();
+        }
+
+        @Override
+        public void init(ObjectStore<T> objectStore, QueryOptions queryOptions) {
+            addAll(ObjectSet.fromObjectStore(objectStore, queryOptions), queryOptions);
+        }
+    }
+}
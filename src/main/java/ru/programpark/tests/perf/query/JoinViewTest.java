@@ -0,0 +1,224 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+import static ru.programpark.tests.perf.query.Sequence.asStream;
+
+/**
+ * Objects in a context with a concept: existsIn and hash join of {@link QueryExistsInTest} vs the {@link JoinView}
+ * of objects by (ctxId, cncId) of their oics. Writes replace an object with its oics in the collections with the view
+ * and in the same collections without it, see {@link Plain}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class JoinViewTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "100000", "500000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "50", "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    // contexts and concepts of queries, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private ValueObject<Context>[] ctxes;
+    private Long[] ctxIds;
+    private ValueObject<VObject>[] objectRows;
+    private List<ValueObject<ObjectInContext>>[] oicRows;
+    private Workload ctxKeys;
+    private Workload cncKeys;
+    private Tables tables;
+    private JoinView<ValueObject<VObject>, ValueObject<ObjectInContext>> view;
+    private LongFunction<ValueObject<VObject>> objectById;
+    private QueryOptions options;
+
+    /**
+     * Objects and oics collections with their indices, and the view if asked
+     */
+    static class Tables {
+        final IndexedCollection<ValueObject<VObject>> objects = new ConcurrentIndexedCollection<>();
+        final IndexedCollection<ValueObject<ObjectInContext>> oics = new ConcurrentIndexedCollection<>();
+        final ValueObject<VObject>[] objectRows;
+        final List<ValueObject<ObjectInContext>>[] oicRows;
+        final JoinView<ValueObject<VObject>, ValueObject<ObjectInContext>> view;
+        // set once objects are loaded, before oics are
+        private LongFunction<ValueObject<VObject>> objectById;
+
+        Tables(ValueObject<VObject>[] objectRows, List<ValueObject<ObjectInContext>>[] oicRows, boolean withView) {
+            this.objectRows = objectRows.clone();
+            this.oicRows = oicRows.clone();
+            this.view = withView ? new JoinView<>(id -> objectById.apply(id), getAttr(layout, VObject.id),
+                    getAttr(layout, ObjectInContext.objId), getAttr(layout, ObjectInContext.ctxId),
+                    getAttr(layout, ObjectInContext.cncId)) : null;
+            List<Index<ValueObject<VObject>>> objectIndices = new ArrayList<>();
+            objectIndices.add(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+            List<Index<ValueObject<ObjectInContext>>> oicIndices = new ArrayList<>();
+            oicIndices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)));
+            oicIndices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.cncId)));
+            oicIndices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.objId)));
+            if (view != null) {
+                objectIndices.add(view.objectIndex());
+                oicIndices.add(view.foreignIndex());
+            }
+            List<ValueObject<ObjectInContext>> oicBatch = new ArrayList<>();
+            for (List<ValueObject<ObjectInContext>> rows : oicRows) {
+                oicBatch.addAll(rows);
+            }
+            BulkLoad.load(objects, Arrays.asList(objectRows), objectIndices);
+            objectById = HashJoin.uniqueLookup(objects, getAttr(layout, VObject.id), new QueryOptions());
+            BulkLoad.load(oics, oicBatch, oicIndices);
+        }
+    }
+
+    /**
+     * Collections without the view, for the write overhead
+     */
+    @State(Scope.Benchmark)
+    public static class Plain {
+        private Tables tables;
+
+        @Setup(Level.Trial)
+        public void setUp(JoinViewTest test) {
+            tables = new Tables(test.objectRows, test.oicRows, false);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ctxes = (ValueObject<Context>[]) new ValueObject[totalContexts];
+        ctxIds = new Long[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+            ctxIds[i] = ctxes[i].getId();
+        }
+        objectRows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        oicRows = (List<ValueObject<ObjectInContext>>[]) new List[totalObjects];
+        for (int i = 0; i < totalObjects; i++) {
+            objectRows[i] = VObject.newObject(layout, totalConcepts);
+            oicRows[i] = newOics(objectRows[i]);
+        }
+        long heap = Heap.used();
+        tables = new Tables(objectRows, oicRows, true);
+        view = tables.view;
+        // per object with its oics, indices and view
+        Heap.report("objects", heap, totalObjects);
+        ctxKeys = Workload.of(distribution, totalContexts);
+        cncKeys = Workload.of(distribution, totalConcepts);
+        options = new QueryOptions();
+        objectById = tables.objectById;
+    }
+
+    private List<ValueObject<ObjectInContext>> newOics(ValueObject<VObject> object) {
+        List<ValueObject<ObjectInContext>> oics = new ArrayList<>(maxCtx);
+        for (int j = 0; j < maxCtx; j++) {
+            oics.add(ObjectInContext.newObject(layout, object, random(ctxes)));
+        }
+        return oics;
+    }
+
+    private long ctxId() {
+        return ctxKeys.nextId(ctxIds);
+    }
+
+    // concepts are 0..totalConcepts - 1, misses are negative
+    private long cncId() {
+        return cncKeys.next();
+    }
+
+    private Query<ValueObject<ObjectInContext>> oicQuery() {
+        return and(
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxId()),
+                equal(getAttr(layout, ObjectInContext.cncId), cncId()));
+    }
+
+    @Benchmark
+    public void queryFirstByOic(Blackhole bh) {
+        Query<ValueObject<VObject>> existsInOic = existsIn(tables.oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery());
+        bh.consume(asStream(tables.objects, existsInOic, options).findFirst());
+    }
+
+    @Benchmark
+    public void joinFirstByOic(Blackhole bh) {
+        bh.consume(HashJoin.existsIn(objectById, tables.oics, getAttr(layout, ObjectInContext.objId),
+                oicQuery(), options).findFirst());
+    }
+
+    @Benchmark
+    public ValueObject<VObject> viewFirstByOic() {
+        return view.first(ctxId(), cncId());
+    }
+
+    @Benchmark
+    public void countOic(Blackhole bh) {
+        bh.consume(tables.oics.retrieve(oicQuery(), options).size());
+    }
+
+    @Benchmark
+    public int viewCountByOic() {
+        return view.size(ctxId(), cncId());
+    }
+
+    /**
+     * Replaces a random object and its oics with new ones
+     */
+    private ValueObject<VObject> replace(Tables tables) {
+        int i = Sequence.random(totalObjects);
+        ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+        List<ValueObject<ObjectInContext>> oics = newOics(object);
+        tables.objects.update(Collections.singleton(tables.objectRows[i]), Collections.singleton(object));
+        tables.oics.update(tables.oicRows[i], oics);
+        tables.objectRows[i] = object;
+        tables.oicRows[i] = oics;
+        return object;
+    }
+
+    @Benchmark
+    public ValueObject<VObject> replaceWithView() {
+        return replace(tables);
+    }
+
+    @Benchmark
+    public ValueObject<VObject> replaceWithoutView(Plain plain) {
+        return replace(plain.tables);
+    }
+}
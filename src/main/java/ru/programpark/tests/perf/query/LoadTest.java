@@ -0,0 +1,110 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Startup: filling an indexed VObject collection from scratch. Large sizes need a large heap, see README.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LoadTest {
+
+    @Param({
+            "1000000", "5000000", "10000000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "PRIMITIVE"
+    })
+    private ValueObject.Layout layout;
+
+    private List<ValueObject<VObject>> rows;
+    private IndexedCollection<ValueObject<VObject>> objects;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+        String[] svalues = generate("s", maxCnc() / 100);
+        Long[] lvalues = generate(maxCnc() / 10);
+        ValueObject<VObject>[] rows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, maxCnc());
+            object.setValue(VObject.lvalue, random(lvalues));
+            object.setValue(VObject.svalue, random(svalues));
+            rows[i] = object;
+        }
+        this.rows = Arrays.asList(rows);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        rows = null;
+        objects = null;
+    }
+
+    private int maxCnc() {
+        return (totalObjects * 10) / 100;
+    }
+
+    /**
+     * Indexes attached to the empty collection, objects added one by one
+     */
+    @Benchmark
+    public IndexedCollection<ValueObject<VObject>> incrementalLoad() {
+        objects = new ConcurrentIndexedCollection<>();
+        objects.addIndex(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+        objects.addIndex(HashIndex.onAttribute(getAttr(layout, VObject.cncId)));
+        objects.addIndex(HashIndex.onAttribute(getAttr(layout, VObject.lvalue)));
+        objects.addIndex(HashIndex.onAttribute(getAttr(layout, VObject.svalue)));
+        for (ValueObject<VObject> row : rows) {
+            objects.add(row);
+        }
+        return objects;
+    }
+
+    /**
+     * Objects first, default sized indexes built in parallel afterwards
+     */
+    @Benchmark
+    public IndexedCollection<ValueObject<VObject>> deferredLoad() {
+        objects = new ConcurrentIndexedCollection<>();
+        BulkLoad.load(objects, rows, Arrays.<Index<ValueObject<VObject>>>asList(
+                UniqueIndex.onAttribute(getAttr(layout, VObject.id)),
+                HashIndex.onAttribute(getAttr(layout, VObject.cncId)),
+                HashIndex.onAttribute(getAttr(layout, VObject.lvalue)),
+                HashIndex.onAttribute(getAttr(layout, VObject.svalue))
+        ));
+        return objects;
+    }
+
+    /**
+     * Same as deferredLoad with store and index maps sized up front
+     */
+    @Benchmark
+    public IndexedCollection<ValueObject<VObject>> bulkLoad() {
+        objects = new ConcurrentIndexedCollection<>(BulkLoad.persistence(getAttr(layout, VObject.id), totalObjects));
+        BulkLoad.load(objects, rows, Arrays.<Index<ValueObject<VObject>>>asList(
+                BulkLoad.uniqueIndex(getAttr(layout, VObject.id), totalObjects),
+                BulkLoad.hashIndex(getAttr(layout, VObject.cncId), maxCnc()),
+                BulkLoad.hashIndex(getAttr(layout, VObject.lvalue), maxCnc() / 10),
+                BulkLoad.hashIndex(getAttr(layout, VObject.svalue), maxCnc() / 100)
+        ));
+        return objects;
+    }
+}
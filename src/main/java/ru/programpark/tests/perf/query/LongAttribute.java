@@ -0,0 +1,29 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+/**
+ * Long attribute of rows keeping longs unboxed: {@link #getLong} reads the value as is,
+ * {@link #getValue} boxes it for CQEngine.
+ */
+public abstract class LongAttribute<O> extends SimpleAttribute<O, Long> {
+
+    public LongAttribute(Class<O> objectType, String attributeName) {
+        super(objectType, Long.class, attributeName);
+    }
+
+    public abstract long getLong(O object, QueryOptions queryOptions);
+
+    @Override
+    public Long getValue(O object, QueryOptions queryOptions) {
+        return getLong(object, queryOptions);
+    }
+
+    /**
+     * @return value of the attribute, without boxing for a {@link LongAttribute}
+     */
+    public static <O> long longValue(SimpleAttribute<O, Long> attribute, O object, QueryOptions queryOptions) {
+        return attribute instanceof LongAttribute ? ((LongAttribute<O>) attribute).getLong(object, queryOptions) : attribute.getValue(object, queryOptions);
+    }
+}
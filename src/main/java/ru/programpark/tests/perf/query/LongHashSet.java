@@ -0,0 +1,177 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Open addressing set of longs for a single thread, i.e. keys of a join or ids of a query.
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+    // marks free slots, zero key is kept aside
+    private static final long FREE = 0;
+
+    private long[] keys;
+    private int mask;
+    private int shift;
+    private int size;
+    private boolean hasFree;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int index(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    /**
+     * @return true if key was not in the set
+     */
+    public boolean add(long key) {
+        if (key == FREE) {
+            if (hasFree) {
+                return false;
+            }
+            hasFree = true;
+            size++;
+            return true;
+        }
+        long[] keys = this.keys;
+        int i = index(key);
+        for (long k; (k = keys[i]) != FREE; i = (i + 1) & mask) {
+            if (k == key) {
+                return false;
+            }
+        }
+        keys[i] = key;
+        if (++size > keys.length / 2) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == FREE) {
+            return hasFree;
+        }
+        long[] keys = this.keys;
+        for (int i = index(key); ; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == FREE) {
+                return false;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        hasFree = false;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] old = keys;
+        allocate(capacity);
+        for (long key : old) {
+            if (key != FREE) {
+                int i = index(key);
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+            }
+        }
+    }
+
+    public long[] toArray() {
+        long[] result = new long[size];
+        int n = 0;
+        if (hasFree) {
+            result[n++] = FREE;
+        }
+        for (long key : keys) {
+            if (key != FREE) {
+                result[n++] = key;
+            }
+        }
+        return result;
+    }
+
+    public PrimitiveIterator.OfLong iterator() {
+        return new PrimitiveIterator.OfLong() {
+            private final long[] keys = LongHashSet.this.keys;
+            private boolean free = hasFree;
+            private int i = -1;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                do {
+                    i++;
+                } while (i < keys.length && keys[i] == FREE);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return free || i < keys.length;
+            }
+
+            @Override
+            public long nextLong() {
+                if (free) {
+                    free = false;
+                    return FREE;
+                }
+                if (i >= keys.length) {
+                    throw new NoSuchElementException();
+                }
+                long key = keys[i];
+                advance();
+                return key;
+            }
+        };
+    }
+
+    public LongStream stream() {
+        return StreamSupport.longStream(Spliterators.spliterator(iterator(), size,
+                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.SIZED), false);
+    }
+}
@@ -0,0 +1,167 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+
+/**
+ * Open addressing long to object map with linear probing. Lookups are lock free and do not box keys,
+ * writes are serialized. A slot is written once per table: removed entries leave a tombstone
+ * until the next rehash, so a reader never sees a key of one entry paired with a value of another.
+ */
+public class LongObjectMap<V> {
+
+    private static final Object TOMBSTONE = new Object();
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table;
+    // guarded by this
+    private int size;
+    private int used;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectMap(int expectedSize) {
+        this.table = new Table(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        if (capacity > 1 << 30) {
+            throw new IllegalArgumentException("Too many keys: " + expectedSize);
+        }
+        return (int) capacity;
+    }
+
+    public V get(long key) {
+        Table table = this.table;
+        int mask = table.mask;
+        for (int i = table.index(key); ; i = (i + 1) & mask) {
+            Object value = table.values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (value != TOMBSTONE && table.keys[i] == key) {
+                return (V) value;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return value already mapped to the key or null if given value was put
+     */
+    public synchronized V putIfAbsent(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported");
+        }
+        Table table = this.table;
+        int mask = table.mask;
+        int i = table.index(key);
+        for (; ; i = (i + 1) & mask) {
+            Object existing = table.values.get(i);
+            if (existing == null) {
+                break;
+            }
+            if (existing != TOMBSTONE && table.keys[i] == key) {
+                return (V) existing;
+            }
+        }
+        table.keys[i] = key;
+        // publishes the key written above
+        table.values.lazySet(i, value);
+        size++;
+        if (++used > table.threshold) {
+            rehash(capacityFor(size + 1));
+        }
+        return null;
+    }
+
+    public synchronized boolean remove(long key, V value) {
+        Table table = this.table;
+        int mask = table.mask;
+        for (int i = table.index(key); ; i = (i + 1) & mask) {
+            Object existing = table.values.get(i);
+            if (existing == null) {
+                return false;
+            }
+            if (existing != TOMBSTONE && table.keys[i] == key) {
+                if (!existing.equals(value)) {
+                    return false;
+                }
+                table.values.lazySet(i, TOMBSTONE);
+                size--;
+                return true;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public void forEachKey(LongConsumer consumer) {
+        Table table = this.table;
+        for (int i = 0; i < table.keys.length; i++) {
+            Object value = table.values.get(i);
+            if (value != null && value != TOMBSTONE) {
+                consumer.accept(table.keys[i]);
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        Table old = this.table;
+        Table table = new Table(capacity);
+        int mask = table.mask;
+        for (int j = 0; j < old.keys.length; j++) {
+            Object value = old.values.get(j);
+            if (value != null && value != TOMBSTONE) {
+                long key = old.keys[j];
+                int i = table.index(key);
+                while (table.values.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                table.keys[i] = key;
+                table.values.lazySet(i, value);
+            }
+        }
+        used = size;
+        this.table = table;
+    }
+
+    private static final class Table {
+        final long[] keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+        final int shift;
+        final int threshold;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        // fibonacci hashing spreads sequential ids over the table
+        int index(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+    }
+}
@@ -0,0 +1,650 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.CloseableIterable;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.index.support.KeyStatistics;
+import com.googlecode.cqengine.index.support.KeyValue;
+import com.googlecode.cqengine.index.support.KeyValueMaterialized;
+import com.googlecode.cqengine.index.support.SortedKeyStatisticsAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Between;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.GreaterThan;
+import com.googlecode.cqengine.query.simple.Has;
+import com.googlecode.cqengine.query.simple.LessThan;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.iterator.UnmodifiableIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Same as {@link NavigableIndex} on a long attribute, but backed by a run of objects sorted by unboxed keys
+ * in parallel arrays instead of a skip list of boxed keys and per key sets. Writes go to a small sorted run of added
+ * objects and a sorted list of removed positions of the main run, both merged into a new main run when they exceed
+ * {@link #MAX_DELTA}. Readers use immutable snapshots of the runs.
+ * <p>
+ * Result sets iterate in ascending key order. The index provides sorted keys and key statistics as {@link NavigableIndex}
+ * does, so the query engine orders results by it: with orderBy() of the attribute and index ordering enabled by
+ * {@link com.googlecode.cqengine.query.option.EngineThresholds#INDEX_ORDERING_SELECTIVITY}, top N are the first N objects
+ * of the range in either direction without sorting.
+ */
+public class LongRangeIndex<O> extends AbstractAttributeIndex<Long, O> implements SortedKeyStatisticsAttributeIndex<Long, O>, OnHeapTypeIndex {
+
+    // same as NavigableIndex
+    protected static final int INDEX_RETRIEVAL_COST = 40;
+
+    static final int MAX_DELTA = 4096;
+
+    private static final Set<Class<? extends Query>> SUPPORTED_QUERIES = Collections.unmodifiableSet(new HashSet<Class<? extends Query>>() {{
+        add(Equal.class);
+        add(LessThan.class);
+        add(GreaterThan.class);
+        add(Between.class);
+        add(Has.class);
+    }});
+
+    private final SimpleAttribute<O, Long> attribute;
+    private volatile State state = new State(Run.EMPTY, new int[0], Run.EMPTY);
+
+    protected LongRangeIndex(SimpleAttribute<O, Long> attribute) {
+        super(attribute, SUPPORTED_QUERIES);
+        this.attribute = attribute;
+    }
+
+    public static <O> LongRangeIndex<O> onAttribute(SimpleAttribute<O, Long> attribute) {
+        return new LongRangeIndex<>(attribute);
+    }
+
+    public int size() {
+        State state = this.state;
+        return state.base.size - state.removed.length + state.added.size;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<O> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        Class<?> queryClass = query.getClass();
+        long low = Long.MIN_VALUE;
+        long high = Long.MAX_VALUE;
+        boolean lowInclusive = true;
+        boolean highInclusive = true;
+        if (queryClass.equals(Equal.class)) {
+            low = high = ((Equal<O, Long>) query).getValue();
+        } else if (queryClass.equals(LessThan.class)) {
+            high = ((LessThan<O, Long>) query).getValue();
+            highInclusive = ((LessThan<O, Long>) query).isValueInclusive();
+        } else if (queryClass.equals(GreaterThan.class)) {
+            low = ((GreaterThan<O, Long>) query).getValue();
+            lowInclusive = ((GreaterThan<O, Long>) query).isValueInclusive();
+        } else if (queryClass.equals(Between.class)) {
+            Between<O, Long> between = (Between<O, Long>) query;
+            low = between.getLowerValue();
+            lowInclusive = between.isLowerInclusive();
+            high = between.getUpperValue();
+            highInclusive = between.isUpperInclusive();
+        } else if (!queryClass.equals(Has.class)) {
+            throw new IllegalArgumentException("Unsupported query: " + query);
+        }
+        return new RangeResultSet(new Range(state, low, lowInclusive, high, highInclusive), query, queryOptions);
+    }
+
+    @Override
+    public CloseableIterable<Long> getDistinctKeys(QueryOptions queryOptions) {
+        return getDistinctKeys(null, true, null, true, queryOptions);
+    }
+
+    @Override
+    public CloseableIterable<Long> getDistinctKeys(Long lowerBound, boolean lowerInclusive, Long upperBound, boolean upperInclusive, QueryOptions queryOptions) {
+        return distinctKeys(range(lowerBound, lowerInclusive, upperBound, upperInclusive), false);
+    }
+
+    @Override
+    public CloseableIterable<Long> getDistinctKeysDescending(QueryOptions queryOptions) {
+        return getDistinctKeysDescending(null, true, null, true, queryOptions);
+    }
+
+    @Override
+    public CloseableIterable<Long> getDistinctKeysDescending(Long lowerBound, boolean lowerInclusive, Long upperBound, boolean upperInclusive, QueryOptions queryOptions) {
+        return distinctKeys(range(lowerBound, lowerInclusive, upperBound, upperInclusive), true);
+    }
+
+    @Override
+    public Integer getCountForKey(Long key, QueryOptions queryOptions) {
+        return new Range(state, key, true, key, true).size();
+    }
+
+    @Override
+    public Integer getCountOfDistinctKeys(QueryOptions queryOptions) {
+        int count = 0;
+        for (Long key : getDistinctKeys(queryOptions)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public CloseableIterable<KeyStatistics<Long>> getStatisticsForDistinctKeys(QueryOptions queryOptions) {
+        return statistics(range(null, true, null, true), false);
+    }
+
+    @Override
+    public CloseableIterable<KeyStatistics<Long>> getStatisticsForDistinctKeysDescending(QueryOptions queryOptions) {
+        return statistics(range(null, true, null, true), true);
+    }
+
+    @Override
+    public CloseableIterable<KeyValue<Long, O>> getKeysAndValues(QueryOptions queryOptions) {
+        return getKeysAndValues(null, true, null, true, queryOptions);
+    }
+
+    @Override
+    public CloseableIterable<KeyValue<Long, O>> getKeysAndValues(Long lowerBound, boolean lowerInclusive, Long upperBound, boolean upperInclusive, QueryOptions queryOptions) {
+        return keysAndValues(range(lowerBound, lowerInclusive, upperBound, upperInclusive), false);
+    }
+
+    @Override
+    public CloseableIterable<KeyValue<Long, O>> getKeysAndValuesDescending(QueryOptions queryOptions) {
+        return getKeysAndValuesDescending(null, true, null, true, queryOptions);
+    }
+
+    @Override
+    public CloseableIterable<KeyValue<Long, O>> getKeysAndValuesDescending(Long lowerBound, boolean lowerInclusive, Long upperBound, boolean upperInclusive, QueryOptions queryOptions) {
+        return keysAndValues(range(lowerBound, lowerInclusive, upperBound, upperInclusive), true);
+    }
+
+    /**
+     * @param lowerBound null if unbounded
+     * @param upperBound null if unbounded
+     */
+    private Range range(Long lowerBound, boolean lowerInclusive, Long upperBound, boolean upperInclusive) {
+        return new Range(state,
+                lowerBound == null ? Long.MIN_VALUE : lowerBound, lowerBound == null || lowerInclusive,
+                upperBound == null ? Long.MAX_VALUE : upperBound, upperBound == null || upperInclusive);
+    }
+
+    private CloseableIterable<Long> distinctKeys(Range range, boolean descending) {
+        return () -> new CursorIterator<Long>(range.cursor(descending)) {
+            @Override
+            public Long next() {
+                return skipKey(cursor);
+            }
+        };
+    }
+
+    private CloseableIterable<KeyStatistics<Long>> statistics(Range range, boolean descending) {
+        return () -> new CursorIterator<KeyStatistics<Long>>(range.cursor(descending)) {
+            @Override
+            public KeyStatistics<Long> next() {
+                int count = cursor.count;
+                long key = skipKey(cursor);
+                return new KeyStatistics<>(key, cursor.count - count);
+            }
+        };
+    }
+
+    private CloseableIterable<KeyValue<Long, O>> keysAndValues(Range range, boolean descending) {
+        return () -> new CursorIterator<KeyValue<Long, O>>(range.cursor(descending)) {
+            @Override
+            public KeyValue<Long, O> next() {
+                cursor.next();
+                return new KeyValueMaterialized<>(cursor.key, (O) cursor.object);
+            }
+        };
+    }
+
+    /**
+     * Moves the cursor past all objects with the next key
+     *
+     * @return the key
+     */
+    private static long skipKey(Cursor cursor) {
+        cursor.next();
+        long key = cursor.key;
+        while (cursor.hasNext() && cursor.nextKey() == key) {
+            cursor.next();
+        }
+        return key;
+    }
+
+    @Override
+    public synchronized boolean addAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        List<O> objects = new ArrayList<>();
+        for (O object : objectSet) {
+            objects.add(object);
+        }
+        if (objects.isEmpty()) {
+            return false;
+        }
+        long[] keys = new long[objects.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = LongAttribute.longValue(attribute, objects.get(i), queryOptions);
+        }
+        Run batch = Run.sorted(keys, objects.toArray());
+        State state = this.state;
+        Run added = Run.merge(state.added, batch);
+        this.state = compact(new State(state.base, state.removed, added));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        State state = this.state;
+        Run added = state.added;
+        int[] removed = state.removed;
+        boolean modified = false;
+        for (O object : objectSet) {
+            long key = LongAttribute.longValue(attribute, object, queryOptions);
+            int i = added.find(key, object, null);
+            if (i >= 0) {
+                added = added.without(i);
+                modified = true;
+                continue;
+            }
+            i = state.base.find(key, object, removed);
+            if (i >= 0) {
+                int at = -Arrays.binarySearch(removed, i) - 1;
+                int[] copy = new int[removed.length + 1];
+                System.arraycopy(removed, 0, copy, 0, at);
+                copy[at] = i;
+                System.arraycopy(removed, at, copy, at + 1, removed.length - at);
+                removed = copy;
+                modified = true;
+            }
+        }
+        this.state = compact(new State(state.base, removed, added));
+        return modified;
+    }
+
+    private State compact(State state) {
+        if (state.added.size + state.removed.length <= MAX_DELTA) {
+            return state;
+        }
+        Run base = state.base;
+        int size = base.size - state.removed.length;
+        long[] keys = new long[size];
+        Object[] objects = new Object[size];
+        for (int i = 0, r = 0, n = 0; i < base.size; i++) {
+            if (r < state.removed.length && state.removed[r] == i) {
+                r++;
+                continue;
+            }
+            keys[n] = base.keys[i];
+            objects[n++] = base.objects[i];
+        }
+        return new State(Run.merge(new Run(keys, objects, size), state.added), new int[0], Run.EMPTY);
+    }
+
+    @Override
+    public synchronized void clear(QueryOptions queryOptions) {
+        state = new State(Run.EMPTY, new int[0], Run.EMPTY);
+    }
+
+    @Override
+    public void init(ObjectStore<O> objectStore, QueryOptions queryOptions) {
+        addAll(ObjectSet.fromObjectStore(objectStore, queryOptions), queryOptions);
+    }
+
+    /**
+     * Objects sorted by keys
+     */
+    private static final class Run {
+        static final Run EMPTY = new Run(new long[0], new Object[0], 0);
+
+        final long[] keys;
+        final Object[] objects;
+        final int size;
+
+        Run(long[] keys, Object[] objects, int size) {
+            this.keys = keys;
+            this.objects = objects;
+            this.size = size;
+        }
+
+        static Run sorted(long[] keys, Object[] objects) {
+            Integer[] order = new Integer[keys.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+            long[] sortedKeys = new long[keys.length];
+            Object[] sortedObjects = new Object[keys.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedKeys[i] = keys[order[i]];
+                sortedObjects[i] = objects[order[i]];
+            }
+            return new Run(sortedKeys, sortedObjects, keys.length);
+        }
+
+        static Run merge(Run a, Run b) {
+            if (b.size == 0) {
+                return a;
+            }
+            if (a.size == 0) {
+                return b;
+            }
+            int size = a.size + b.size;
+            long[] keys = new long[size];
+            Object[] objects = new Object[size];
+            for (int i = 0, j = 0, n = 0; n < size; n++) {
+                if (j == b.size || i < a.size && a.keys[i] <= b.keys[j]) {
+                    keys[n] = a.keys[i];
+                    objects[n] = a.objects[i++];
+                } else {
+                    keys[n] = b.keys[j];
+                    objects[n] = b.objects[j++];
+                }
+            }
+            return new Run(keys, objects, size);
+        }
+
+        Run without(int i) {
+            long[] keys = new long[size - 1];
+            Object[] objects = new Object[size - 1];
+            System.arraycopy(this.keys, 0, keys, 0, i);
+            System.arraycopy(this.keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(this.objects, 0, objects, 0, i);
+            System.arraycopy(this.objects, i + 1, objects, i, size - i - 1);
+            return new Run(keys, objects, size - 1);
+        }
+
+        /**
+         * @return first position with key not less than the key
+         */
+        int lowerBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return first position with key greater than the key
+         */
+        int upperBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] <= key) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @param removed sorted positions to skip or null
+         * @return position of the object or -1
+         */
+        int find(long key, Object object, int[] removed) {
+            for (int i = lowerBound(key); i < size && keys[i] == key; i++) {
+                if (object.equals(objects[i]) && (removed == null || Arrays.binarySearch(removed, i) < 0)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class State {
+        final Run base;
+        // sorted positions of the base
+        final int[] removed;
+        final Run added;
+
+        State(Run base, int[] removed, Run added) {
+            this.base = base;
+            this.removed = removed;
+            this.added = added;
+        }
+    }
+
+    /**
+     * Positions of a key range in the runs of a state
+     */
+    private static final class Range {
+        final State state;
+        final long low;
+        final boolean lowInclusive;
+        final long high;
+        final boolean highInclusive;
+        // ranges of positions, [from, to)
+        final int baseFrom;
+        final int baseTo;
+        final int removedFrom;
+        final int removedTo;
+        final int addedFrom;
+        final int addedTo;
+
+        Range(State state, long low, boolean lowInclusive, long high, boolean highInclusive) {
+            this.state = state;
+            this.low = low;
+            this.lowInclusive = lowInclusive;
+            this.high = high;
+            this.highInclusive = highInclusive;
+            baseFrom = lowInclusive ? state.base.lowerBound(low) : state.base.upperBound(low);
+            baseTo = Math.max(baseFrom, highInclusive ? state.base.upperBound(high) : state.base.lowerBound(high));
+            addedFrom = lowInclusive ? state.added.lowerBound(low) : state.added.upperBound(low);
+            addedTo = Math.max(addedFrom, highInclusive ? state.added.upperBound(high) : state.added.lowerBound(high));
+            removedFrom = position(state.removed, baseFrom);
+            removedTo = position(state.removed, baseTo);
+        }
+
+        private static int position(int[] removed, int i) {
+            int p = Arrays.binarySearch(removed, i);
+            return p < 0 ? -p - 1 : p;
+        }
+
+        boolean contains(long key) {
+            return (lowInclusive ? key >= low : key > low) && (highInclusive ? key <= high : key < high);
+        }
+
+        int size() {
+            return baseTo - baseFrom - (removedTo - removedFrom) + addedTo - addedFrom;
+        }
+
+        Cursor cursor(boolean descending) {
+            return new Cursor(this, descending);
+        }
+    }
+
+    /**
+     * Merge of the base run without removed positions and the added run in key order, {@link #next()} moves to the
+     * next object and sets its key
+     */
+    private static final class Cursor {
+        private final Range range;
+        private final boolean descending;
+        // next positions in iteration order
+        private int i;
+        private int j;
+        private int r;
+        // current object
+        long key;
+        Object object;
+        // objects passed
+        int count;
+
+        Cursor(Range range, boolean descending) {
+            this.range = range;
+            this.descending = descending;
+            i = descending ? range.baseTo - 1 : range.baseFrom;
+            j = descending ? range.addedTo - 1 : range.addedFrom;
+            r = descending ? range.removedTo - 1 : range.removedFrom;
+        }
+
+        private boolean hasBase() {
+            int[] removed = range.state.removed;
+            if (descending) {
+                for (; i >= range.baseFrom && r >= range.removedFrom && removed[r] == i; i--, r--) {
+                }
+                return i >= range.baseFrom;
+            }
+            for (; i < range.baseTo && r < range.removedTo && removed[r] == i; i++, r++) {
+            }
+            return i < range.baseTo;
+        }
+
+        private boolean hasAdded() {
+            return descending ? j >= range.addedFrom : j < range.addedTo;
+        }
+
+        boolean hasNext() {
+            return hasBase() || hasAdded();
+        }
+
+        private boolean nextFromBase() {
+            boolean hasBase = hasBase();
+            boolean hasAdded = hasAdded();
+            if (!hasBase && !hasAdded) {
+                throw new NoSuchElementException();
+            }
+            Run base = range.state.base;
+            Run added = range.state.added;
+            return hasBase && (!hasAdded || (descending ? base.keys[i] >= added.keys[j] : base.keys[i] <= added.keys[j]));
+        }
+
+        /**
+         * @return key of the next object
+         */
+        long nextKey() {
+            return nextFromBase() ? range.state.base.keys[i] : range.state.added.keys[j];
+        }
+
+        void next() {
+            Run run;
+            int at;
+            if (nextFromBase()) {
+                run = range.state.base;
+                at = i;
+                i += descending ? -1 : 1;
+            } else {
+                run = range.state.added;
+                at = j;
+                j += descending ? -1 : 1;
+            }
+            key = run.keys[at];
+            object = run.objects[at];
+            count++;
+        }
+    }
+
+    private abstract static class CursorIterator<T> extends UnmodifiableIterator<T> implements CloseableIterator<T> {
+        final Cursor cursor;
+
+        CursorIterator(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class RangeResultSet extends ResultSet<O> {
+        private final Range range;
+        private final Query<O> query;
+        private final QueryOptions queryOptions;
+
+        RangeResultSet(Range range, Query<O> query, QueryOptions queryOptions) {
+            this.range = range;
+            this.query = query;
+            this.queryOptions = queryOptions;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return new CursorIterator<O>(range.cursor(false)) {
+                @Override
+                public O next() {
+                    cursor.next();
+                    return (O) cursor.object;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(O object) {
+            long key = LongAttribute.longValue(attribute, object, queryOptions);
+            State state = range.state;
+            return range.contains(key) && (state.added.find(key, object, null) >= 0 || state.base.find(key, object, state.removed) >= 0);
+        }
+
+        @Override
+        public boolean matches(O object) {
+            return query.matches(object, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return size();
+        }
+
+        @Override
+        public int size() {
+            return range.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.index.support.indextype.OnHeapTypeIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.iterator.UnmodifiableIterator;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Same as {@link UniqueIndex} on a long attribute, but backed by {@link LongObjectMap}: no boxed keys are stored
+ * and lookups do not allocate.
+ */
+public class LongUniqueIndex<O> extends AbstractAttributeIndex<Long, O> implements OnHeapTypeIndex {
+
+    protected static final int INDEX_RETRIEVAL_COST = 25;
+
+    private static final Set<Class<? extends Query>> SUPPORTED_QUERIES = Collections.unmodifiableSet(new HashSet<Class<? extends Query>>() {{
+        add(Equal.class);
+        add(In.class);
+    }});
+
+    private final SimpleAttribute<O, Long> attribute;
+    private final LongObjectMap<O> map;
+
+    protected LongUniqueIndex(SimpleAttribute<O, Long> attribute, int expectedSize) {
+        super(attribute, SUPPORTED_QUERIES);
+        this.attribute = attribute;
+        this.map = new LongObjectMap<>(expectedSize);
+    }
+
+    public static <O> LongUniqueIndex<O> onAttribute(SimpleAttribute<O, Long> attribute) {
+        return onAttribute(attribute, 16);
+    }
+
+    public static <O> LongUniqueIndex<O> onAttribute(SimpleAttribute<O, Long> attribute, int expectedSize) {
+        return new LongUniqueIndex<>(attribute, expectedSize);
+    }
+
+    /**
+     * Lookup without a query, for callers that already have a primitive key
+     */
+    public O get(long key) {
+        return map.get(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean isMutable() {
+        return true;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<O> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        Class<?> queryClass = query.getClass();
+        if (queryClass.equals(Equal.class)) {
+            Equal<O, Long> equal = (Equal<O, Long>) query;
+            return new EqualResultSet(equal, queryOptions, map.get(equal.getValue()));
+        } else if (queryClass.equals(In.class)) {
+            return new InResultSet((In<O, Long>) query, queryOptions);
+        }
+        throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+
+    @Override
+    public boolean addAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        for (O object : objectSet) {
+            long key = LongAttribute.longValue(attribute, object, queryOptions);
+            O existing = map.putIfAbsent(key, object);
+            if (existing != null && !existing.equals(object)) {
+                throw new UniqueIndex.UniqueConstraintViolatedException(
+                        "The application has attempted to add a duplicate object to the LongUniqueIndex on attribute '"
+                                + attribute.getAttributeName() + "', potentially causing inconsistencies between indexes. "
+                                + "LongUniqueIndex should not be used with attributes which do not uniquely identify objects. "
+                                + "Problematic attribute value: '" + key + "', "
+                                + "problematic duplicate object: " + object);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(ObjectSet<O> objectSet, QueryOptions queryOptions) {
+        for (O object : objectSet) {
+            map.remove(LongAttribute.longValue(attribute, object, queryOptions), object);
+        }
+        return true;
+    }
+
+    @Override
+    public void clear(QueryOptions queryOptions) {
+        map.clear();
+    }
+
+    @Override
+    public void init(ObjectStore<O> objectStore, QueryOptions queryOptions) {
+        addAll(ObjectSet.fromObjectStore(objectStore, queryOptions), queryOptions);
+    }
+
+    private class EqualResultSet extends ResultSet<O> {
+        private final Equal<O, Long> equal;
+        private final QueryOptions queryOptions;
+        private final O object;
+
+        EqualResultSet(Equal<O, Long> equal, QueryOptions queryOptions, O object) {
+            this.equal = equal;
+            this.queryOptions = queryOptions;
+            this.object = object;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return object == null ? Collections.<O>emptyIterator() : new UnmodifiableIterator<O>() {
+                private boolean hasNext = true;
+
+                @Override
+                public boolean hasNext() {
+                    return hasNext;
+                }
+
+                @Override
+                public O next() {
+                    if (!hasNext) {
+                        throw new NoSuchElementException();
+                    }
+                    hasNext = false;
+                    return object;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(O o) {
+            return o != null && object != null && o.equals(object);
+        }
+
+        @Override
+        public boolean matches(O o) {
+            return equal.matches(o, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return equal;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return object == null ? 0 : 1;
+        }
+
+        @Override
+        public int size() {
+            return object == null ? 0 : 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class InResultSet extends ResultSet<O> {
+        private final In<O, Long> in;
+        private final QueryOptions queryOptions;
+
+        InResultSet(In<O, Long> in, QueryOptions queryOptions) {
+            this.in = in;
+            this.queryOptions = queryOptions;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            final Iterator<Long> keys = in.getValues().iterator();
+            return new UnmodifiableIterator<O>() {
+                private O next = advance();
+
+                private O advance() {
+                    while (keys.hasNext()) {
+                        O object = map.get(keys.next());
+                        if (object != null) {
+                            return object;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public O next() {
+                    O result = next;
+                    if (result == null) {
+                        throw new NoSuchElementException();
+                    }
+                    next = advance();
+                    return result;
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(O o) {
+            if (o == null) {
+                return false;
+            }
+            Long key = attribute.getValue(o, queryOptions);
+            return in.getValues().contains(key) && o.equals(map.get(key));
+        }
+
+        @Override
+        public boolean matches(O o) {
+            return in.matches(o, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return in;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return in.getValues().size();
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (Long key : in.getValues()) {
+                if (map.containsKey(key)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Batched replacement of in(id, keys) on a unique key: keys are deduplicated up front and each distinct key
+ * is probed once, so the result has no duplicates without {@link com.googlecode.cqengine.query.option.DeduplicationStrategy}
+ * or {@link Stream#distinct()}. Lookups usually come from {@link HashJoin#uniqueLookup}.
+ */
+public class MultiGet {
+
+    /**
+     * @param sort probe keys in ascending order, i.e. for indexes and stores laid out by key
+     * @return distinct non null keys
+     */
+    public static long[] distinct(Collection<Long> keys, boolean sort) {
+        LongHashSet set = new LongHashSet(keys.size());
+        for (Long key : keys) {
+            if (key != null) {
+                set.add(key);
+            }
+        }
+        long[] result = set.toArray();
+        if (sort) {
+            Arrays.sort(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of objects found
+     */
+    public static <O> int forEach(LongFunction<O> lookup, Collection<Long> keys, boolean sort, Consumer<? super O> action) {
+        int found = 0;
+        for (long key : distinct(keys, sort)) {
+            O object = lookup.apply(key);
+            if (object != null) {
+                action.accept(object);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    public static <O> Stream<O> stream(LongFunction<O> lookup, Collection<Long> keys, boolean sort) {
+        return Arrays.stream(distinct(keys, sort))
+                .mapToObj(lookup)
+                .filter(Objects::nonNull);
+    }
+}
@@ -0,0 +1,150 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+import static ru.programpark.tests.perf.query.Sequence.asStream;
+
+/**
+ * Objects of a concept in a context: and(cncId, existsIn(oics, ctxId)) with Zipf distributed concepts of objects,
+ * concepts of queries are taken from random objects, i.e. popular concepts are queried more often.
+ * CQEngine drives from the cncId bucket and runs existsIn for each object of it, {@link QueryPlanner} compares
+ * the bucket with the estimated oics of the context. Sample time shows the tail latencies of large buckets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class PlannerTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "100000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    // Zipf exponent of object concepts, 0 - uniform
+    @Param({
+            "0", "1.1"
+    })
+    private double skew;
+
+    @Param({
+            "false", "true"
+    })
+    private boolean planner;
+
+    // contexts of queries, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<VObject>[] objectRows;
+    private Long[] ctxIds;
+    private Workload ctxKeys;
+    private QueryPlanner queryPlanner;
+    private QueryOptions options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ValueObject<Context>[] ctxes = (ValueObject<Context>[]) new ValueObject[totalContexts];
+        ctxIds = new Long[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+            ctxIds[i] = ctxes[i].getId();
+        }
+        ctxKeys = Workload.of(distribution, totalContexts);
+        Zipf concepts = new Zipf(totalConcepts, skew);
+        objectRows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        List<ValueObject<ObjectInContext>> oicRows = new ArrayList<>(totalObjects * maxCtx);
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+            object.setValue(VObject.cncId, (long) concepts.next());
+            objectRows[i] = object;
+            for (int j = 0; j < maxCtx; j++) {
+                oicRows.add(ObjectInContext.newObject(layout, object, random(ctxes)));
+            }
+        }
+        objects = new ConcurrentIndexedCollection<>();
+        oics = new ConcurrentIndexedCollection<>();
+        BulkLoad.load(objects, Arrays.asList(objectRows), Arrays.<Index<ValueObject<VObject>>>asList(
+                UniqueIndex.onAttribute(getAttr(layout, VObject.id)),
+                HashIndex.onAttribute(getAttr(layout, VObject.cncId))));
+        BulkLoad.load(oics, oicRows, Arrays.<Index<ValueObject<ObjectInContext>>>asList(
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.cncId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.objId))));
+        queryPlanner = new QueryPlanner();
+        queryPlanner.analyze(objects);
+        queryPlanner.analyze(oics);
+        options = new QueryOptions();
+    }
+
+    private <O> Query<O> plan(IndexedCollection<O> collection, Query<O> query) {
+        return planner ? queryPlanner.plan(collection, query, options) : query;
+    }
+
+    private Query<ValueObject<VObject>> objectQuery() {
+        long cncId = (Long) random(objectRows).getValue(VObject.cncId);
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId),
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxKeys.nextId(ctxIds)));
+        return plan(objects, and(equal(getAttr(layout, VObject.cncId), cncId), existsInOic));
+    }
+
+    @Benchmark
+    public void countByCncAndOic(Blackhole bh) {
+        bh.consume(objects.retrieve(objectQuery(), options).size());
+    }
+
+    @Benchmark
+    public void queryFirstByCncAndOic(Blackhole bh) {
+        bh.consume(asStream(objects, objectQuery(), options).findFirst());
+    }
+
+    /**
+     * Conjunction of indices only, planning overhead
+     */
+    @Benchmark
+    public void countOic(Blackhole bh) {
+        long cncId = (Long) random(objectRows).getValue(VObject.cncId);
+        Query<ValueObject<ObjectInContext>> oicQuery = and(
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxKeys.nextId(ctxIds)),
+                equal(getAttr(layout, ObjectInContext.cncId), cncId));
+        bh.consume(oics.retrieve(plan(oics, oicQuery), options).size());
+    }
+}
@@ -0,0 +1,207 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.LogicalQuery;
+import com.googlecode.cqengine.query.logical.Not;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.ExistsIn;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Query built once and executed many times with different values of its parameters.
+ * Parameters are equals created by {@link #param(Attribute)}, numbered in the order they appear in the query,
+ * including foreign restrictions of existsIn. CQEngine queries are immutable: binding creates a new equal for the
+ * value and new logical and existsIn queries on the path to it, subqueries without parameters are shared.
+ * Options are not allocated per request, but a bind is not allocation free: with -prof gc preparedUniqueQuery of
+ * QueryTest allocates as much as uniqueQuery (504 B/op) and preparedExistsJoin 2.7 KB/op vs 3.4 KB/op of existsJoin,
+ * most of it by result sets created inside retrieve.
+ * <p>
+ * Instances are mutable and must be confined to a thread, see {@link #perThread(Supplier)}.
+ */
+public class PreparedQuery<O> {
+
+    private static final Object UNBOUND = new Object() {
+        @Override
+        public String toString() {
+            return "?";
+        }
+    };
+
+    private static final Field FOREIGN_COLLECTION = field(ExistsIn.class, "foreignCollection");
+    private static final Field LOCAL_KEY = field(ExistsIn.class, "localKeyAttribute");
+    private static final Field FOREIGN_KEY = field(ExistsIn.class, "foreignKeyAttribute");
+    private static final Field FOREIGN_RESTRICTIONS = field(ExistsIn.class, "foreignRestrictions");
+
+    private final Node<O> template;
+    private final QueryOptions options;
+    private final Object[] values;
+    // query with the last bound values, null after a bind
+    private Query<O> query;
+
+    public PreparedQuery(Query<O> query) {
+        this(query, new QueryOptions());
+    }
+
+    public PreparedQuery(Query<O> query, QueryOptions options) {
+        List<Attribute<?, ?>> params = new ArrayList<>();
+        this.template = compile(query, params);
+        this.options = options;
+        this.values = new Object[params.size()];
+        Arrays.fill(values, UNBOUND);
+    }
+
+    /**
+     * Thread confined prepared queries: template is called once per thread
+     */
+    public static <O> ThreadLocal<PreparedQuery<O>> perThread(Supplier<Query<O>> template) {
+        return ThreadLocal.withInitial(() -> new PreparedQuery<>(template.get()));
+    }
+
+    /**
+     * Placeholder for equal(attribute, ?)
+     */
+    @SuppressWarnings("unchecked")
+    public static <O, A> Equal<O, A> param(Attribute<O, A> attribute) {
+        return new Equal<>(attribute, (A) UNBOUND);
+    }
+
+    public PreparedQuery<O> bind(Object value) {
+        return bind(0, value);
+    }
+
+    public PreparedQuery<O> bind(int param, Object value) {
+        values[param] = value;
+        query = null;
+        return this;
+    }
+
+    /**
+     * @return the query with last bound values
+     * @throws IllegalStateException if a parameter is not bound
+     */
+    public Query<O> query() {
+        if (query == null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == UNBOUND) {
+                    throw new IllegalStateException("Parameter " + i + " is not bound");
+                }
+            }
+            query = template.build(values);
+        }
+        return query;
+    }
+
+    /**
+     * Options are reused by every request: collections put the same keys there on each retrieve
+     */
+    public QueryOptions options() {
+        return options;
+    }
+
+    public ResultSet<O> retrieve(IndexedCollection<O> collection) {
+        return collection.retrieve(query(), options);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Builds a query from the bound values
+     */
+    private interface Node<O> {
+        Query<O> build(Object[] values);
+    }
+
+    private static <O> Node<O> compile(Query<O> query, List<Attribute<?, ?>> params) {
+        if (query == null) {
+            return values -> null;
+        }
+        if (query instanceof Equal && ((Equal<O, ?>) query).getValue() == UNBOUND) {
+            return compileParam(((Equal<O, ?>) query).getAttribute(), params);
+        }
+        int first = params.size();
+        Node<O> node = compileChildren(query, params);
+        // subqueries without parameters are shared by all built queries
+        return params.size() == first ? values -> query : node;
+    }
+
+    private static <O, A> Node<O> compileParam(Attribute<O, A> attribute, List<Attribute<?, ?>> params) {
+        int param = params.size();
+        params.add(attribute);
+        Class<A> type = attribute.getAttributeType();
+        return values -> new Equal<>(attribute, type.cast(values[param]));
+    }
+
+    private static <O> Node<O> compileChildren(Query<O> query, List<Attribute<?, ?>> params) {
+        if (query instanceof And || query instanceof Or) {
+            List<Node<O>> nodes = new ArrayList<>();
+            for (Query<O> child : ((LogicalQuery<O>) query).getChildQueries()) {
+                nodes.add(compile(child, params));
+            }
+            if (query instanceof And) {
+                return values -> new And<>(build(nodes, values));
+            }
+            boolean disjoint = ((Or<O>) query).isDisjoint();
+            return values -> new Or<>(build(nodes, values), disjoint);
+        } else if (query instanceof Not) {
+            Node<O> negated = compile(((Not<O>) query).getNegatedQuery(), params);
+            return values -> new Not<>(negated.build(values));
+        } else if (query instanceof ExistsIn) {
+            return compileExistsIn((ExistsIn<O, ?, ?>) query, params);
+        } else if (query instanceof LogicalQuery) {
+            throw new IllegalArgumentException("Unsupported query: " + query);
+        }
+        return values -> query;
+    }
+
+    private static <O, F, A> Node<O> compileExistsIn(ExistsIn<O, F, A> query, List<Attribute<?, ?>> params) {
+        IndexedCollection<F> collection = get(FOREIGN_COLLECTION, query);
+        Attribute<O, A> localKey = get(LOCAL_KEY, query);
+        Attribute<F, A> foreignKey = get(FOREIGN_KEY, query);
+        Node<F> restrictions = compile(PreparedQuery.<Query<F>>get(FOREIGN_RESTRICTIONS, query), params);
+        return values -> new ExistsIn<>(collection, localKey, foreignKey, restrictions.build(values));
+    }
+
+    private static <O> List<Query<O>> build(List<Node<O>> nodes, Object[] values) {
+        List<Query<O>> queries = new ArrayList<>(nodes.size());
+        for (Node<O> node : nodes) {
+            queries.add(node.build(values));
+        }
+        return queries;
+    }
+
+    static Field field(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Unsupported CQEngine version", e);
+        }
+    }
+
+    /**
+     * @return value of a field of a CQEngine query, typed by the caller as the query declares it
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(Field field, Object target) {
+        try {
+            return (T) field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
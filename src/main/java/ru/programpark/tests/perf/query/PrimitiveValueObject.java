@@ -0,0 +1,90 @@
+package ru.programpark.tests.perf.query;
+
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+
+/**
+ * Keeps long fields unboxed. Unset long fields read as 0, sequence keys start from 1.
+ */
+@DefaultSerializer(ValueObjectSerializer.class)
+public class PrimitiveValueObject<T extends Enum<T>> extends ValueObject<T> {
+
+    private static final Object[] NO_REFS = new Object[0];
+
+    private final Slots slots;
+    private final long[] longs;
+    private final Object[] refs;
+
+    public PrimitiveValueObject(Slots slots) {
+        this.slots = slots;
+        this.longs = new long[slots.longs()];
+        this.refs = slots.refs() == 0 ? NO_REFS : new Object[slots.refs()];
+    }
+
+    Slots slots() {
+        return slots;
+    }
+
+    long[] longs() {
+        return longs;
+    }
+
+    Object[] refs() {
+        return refs;
+    }
+
+    @Override
+    public Long getId() {
+        return longs[0];
+    }
+
+    /**
+     * Unboxed {@link #getId()}
+     */
+    public long id() {
+        return longs[0];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof PrimitiveValueObject) {
+            return id() == ((PrimitiveValueObject<?>) o).id();
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id());
+    }
+
+    public long getLong(int slot) {
+        return longs[slot];
+    }
+
+    public Object getRef(int slot) {
+        return refs[slot];
+    }
+
+    @Override
+    public Object getValue(T name) {
+        int slot = slots.slot(name);
+        return slots.isLong(name) ? (Object) longs[slot] : refs[slot];
+    }
+
+    @Override
+    public void setLong(T name, long value) {
+        longs[slots.slot(name)] = value;
+    }
+
+    @Override
+    public void setValue(T name, Object value) {
+        int slot = slots.slot(name);
+        if (slots.isLong(name)) {
+            longs[slot] = value == null ? 0 : (Long) value;
+        } else {
+            refs[slot] = value;
+        }
+    }
+
+}
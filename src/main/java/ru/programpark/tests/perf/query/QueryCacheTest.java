@@ -0,0 +1,206 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Repeating queries of QueryExistsInTest through {@link CachingCollection}: (ctxId, cncId) pairs and in(id) lists
+ * drawn from pools by the {@link Workload}, Zipf distributed popularity by default. Hit rates of each iteration are
+ * reported by {@link CacheProfiler}.
+ * The mixed group replaces oics with hot (ctxId, cncId) pairs while reading, i.e. measures invalidation.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class QueryCacheTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "100000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    // distinct queries of each kind
+    @Param({
+            "100000"
+    })
+    private int distinctQueries;
+
+    // popularity of queries, misses query a context and a concept that do not exist, see Workload
+    @Param({
+            "ZIPF:0.8", "ZIPF:1.1"
+    })
+    private String distribution;
+
+    // NONE - no cache
+    @Param({
+            "NONE", "LRU", "TINY_LFU"
+    })
+    private String cache;
+
+    @Param({
+            "1000"
+    })
+    private int cacheSize;
+
+    @Param({
+            "10"
+    })
+    private int inSize;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<Context>[] ctxes;
+    private ValueObject<VObject>[] objectRows;
+    private ValueObject<ObjectInContext>[] oicRows;
+    private Query<ValueObject<ObjectInContext>>[] oicQueries;
+    private long[] queryCtxIds;
+    private long[] queryCncIds;
+    private Query<ValueObject<VObject>>[] inQueries;
+    private Query<ValueObject<ObjectInContext>> missingOicQuery;
+    private Query<ValueObject<VObject>> missingInQuery;
+    private Workload queries;
+    private QueryOptions options;
+    private LongFunction<ValueObject<VObject>> objectById;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ctxes = (ValueObject<Context>[]) new ValueObject[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+        }
+        Long[] lvalues = generate(totalConcepts * 100);
+        String[] svalues = generate("s", totalConcepts * 10);
+        objectRows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        oicRows = (ValueObject<ObjectInContext>[]) new ValueObject[totalObjects * maxCtx];
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
+            object.setValue(VObject.lvalue, random(lvalues));
+            object.setValue(VObject.svalue, random(svalues));
+            objectRows[i] = object;
+            for (int j = 0; j < maxCtx; j++) {
+                oicRows[i * maxCtx + j] = ObjectInContext.newObject(layout, object, random(ctxes));
+            }
+        }
+        objects = cached("objects", new ConcurrentIndexedCollection<>());
+        oics = cached("oics", new ConcurrentIndexedCollection<>());
+        BulkLoad.load(objects, Arrays.asList(objectRows), Collections.<Index<ValueObject<VObject>>>singletonList(
+                UniqueIndex.onAttribute(getAttr(layout, VObject.id))));
+        BulkLoad.load(oics, Arrays.asList(oicRows), Arrays.<Index<ValueObject<ObjectInContext>>>asList(
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.cncId)),
+                HashIndex.onAttribute(getAttr(layout, ObjectInContext.objId))));
+        // pools of distinct queries, the popular ones are at random positions of the rows
+        oicQueries = (Query<ValueObject<ObjectInContext>>[]) new Query[distinctQueries];
+        queryCtxIds = new long[distinctQueries];
+        queryCncIds = new long[distinctQueries];
+        inQueries = (Query<ValueObject<VObject>>[]) new Query[distinctQueries];
+        for (int i = 0; i < distinctQueries; i++) {
+            ValueObject<ObjectInContext> oic = random(oicRows);
+            queryCtxIds[i] = (Long) oic.getValue(ObjectInContext.ctxId);
+            queryCncIds[i] = (Long) oic.getValue(ObjectInContext.cncId);
+            oicQueries[i] = and(
+                    equal(getAttr(layout, ObjectInContext.ctxId), queryCtxIds[i]),
+                    equal(getAttr(layout, ObjectInContext.cncId), queryCncIds[i]));
+            List<Long> ids = new ArrayList<>(inSize);
+            for (int j = 0; j < inSize; j++) {
+                ids.add(random(objectRows).getId());
+            }
+            inQueries[i] = in(getAttr(layout, VObject.id), ids);
+        }
+        missingOicQuery = and(
+                equal(getAttr(layout, ObjectInContext.ctxId), -1L),
+                equal(getAttr(layout, ObjectInContext.cncId), -1L));
+        missingInQuery = in(getAttr(layout, VObject.id), Collections.nCopies(inSize, -1L));
+        queries = Workload.of(distribution, distinctQueries);
+        options = new QueryOptions();
+        objectById = HashJoin.uniqueLookup(objects, getAttr(layout, VObject.id), options);
+    }
+
+    private <O> IndexedCollection<O> cached(String name, IndexedCollection<O> collection) {
+        if ("NONE".equals(cache)) {
+            return collection;
+        }
+        CachingCollection<O> result = new CachingCollection<>(collection, cacheSize, CachingCollection.Eviction.valueOf(cache));
+        CacheProfiler.register(name, result);
+        return result;
+    }
+
+    @Benchmark
+    public void countOic(Blackhole bh) {
+        bh.consume(oics.retrieve(queries.next(oicQueries, missingOicQuery), options).size());
+    }
+
+    @Benchmark
+    public void joinFirstByOic(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = queries.next(oicQueries, missingOicQuery);
+        bh.consume(HashJoin.existsIn(objectById, oics, getAttr(layout, ObjectInContext.objId), oicQuery, options).findFirst());
+    }
+
+    @Benchmark
+    public void queryIn(Blackhole bh) {
+        for (ValueObject<VObject> object : objects.retrieve(queries.next(inQueries, missingInQuery), options)) {
+            bh.consume(object);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public void mixedCountOic(Blackhole bh) {
+        countOic(bh);
+    }
+
+    /**
+     * Replaces a random oic with one matching a popular query, single writer. Misses replace it with a random oic.
+     */
+    @Benchmark
+    @Group("mixed")
+    public ValueObject<ObjectInContext> mixedReplaceOic() {
+        int i = Sequence.random(oicRows.length);
+        int query = queries.next();
+        ValueObject<ObjectInContext> oic = ObjectInContext.newObject(layout, random(objectRows), random(ctxes));
+        if (query >= 0) {
+            oic.setValue(ObjectInContext.ctxId, queryCtxIds[query]);
+            oic.setValue(ObjectInContext.cncId, queryCncIds[query]);
+        }
+        oics.update(Collections.singleton(oicRows[i]), Collections.singleton(oic));
+        oicRows[i] = oic;
+        return oic;
+    }
+}
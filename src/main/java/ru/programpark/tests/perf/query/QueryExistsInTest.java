@@ -2,19 +2,28 @@ package ru.programpark.tests.perf.query;
 
 import com.googlecode.cqengine.ConcurrentIndexedCollection;
 import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.compound.CompoundIndex;
 import com.googlecode.cqengine.index.hash.HashIndex;
 import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.persistence.Persistence;
 import com.googlecode.cqengine.query.Query;
 import com.googlecode.cqengine.query.option.QueryOptions;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongFunction;
 
 import static com.googlecode.cqengine.query.QueryFactory.*;
 import static ru.programpark.tests.perf.query.Fields.*;
 import static ru.programpark.tests.perf.query.Sequence.*;
-import static ru.programpark.tests.perf.query.Sequence.random;
 
 /**
  * Created by kozyr on 26.01.2015.
@@ -46,92 +55,241 @@ public class QueryExistsInTest {
     })
     private int maxCtx;
 
+    @Param({
+            "BOXED", "PRIMITIVE", "DICTIONARY"
+    })
+    private ValueObject.Layout layout;
+
+    // HASH - separate hash indices on ctxId and cncId, COMPOUND - also compound index on (cncId, ctxId),
+    // BITMAP - bitmap index on ctxId and cncId and unique index on id instead of the hash indices
+    @Param({
+            "HASH", "COMPOUND", "BITMAP"
+    })
+    private OicIndex oicIndex;
+
+    // OFF_HEAP, DISK - objects and indices are kept in the storage, sweep them with -p oicIndex=HASH, see README
+    @Param({
+            "HEAP"
+    })
+    private Storage storage;
+
+    // own copy of svalue in every row as in rows read from storage, instead of the shared generated instance
+    @Param({
+            "false"
+    })
+    private boolean copySvalue;
+
+    // contexts and concepts of oic queries, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private Persistence<ValueObject<VObject>, ?> objectsPersistence;
+    private Persistence<ValueObject<Context>, ?> contextsPersistence;
+    private Persistence<ValueObject<ObjectInContext>, ?> oicsPersistence;
+
     private IndexedCollection<ValueObject<VObject>> objects;
     private IndexedCollection<ValueObject<Context>> contexts;
     private IndexedCollection<ValueObject<ObjectInContext>> oics;
     private Long[] objIds;
     private Long[] ctxIds;
+    private Workload ctxKeys;
+    private Workload cncKeys;
     private String[] svalues;
     private Long[] lvalues;
     private String[] ctxNames;
     private QueryOptions options;
+    private LongFunction<ValueObject<VObject>> objectById;
+    private List<Attribute<ValueObject<ObjectInContext>, ?>> compoundKey;
+    private BitmapIndex<ValueObject<ObjectInContext>> bitmapIndex;
+
+    public enum OicIndex {
+        HASH, COMPOUND, BITMAP
+    }
 
     @Setup(Level.Trial)
     public void setUp() throws Exception {
-        objects = new ConcurrentIndexedCollection<>();
-        contexts = new ConcurrentIndexedCollection<>();
-        oics = new ConcurrentIndexedCollection<>();
-        addIndices();
+        storage.requireIndex(oicIndex, OicIndex.HASH);
+        objectsPersistence = storage.persistence(getAttr(layout, VObject.id));
+        contextsPersistence = storage.persistence(getAttr(layout, Context.id));
+        oicsPersistence = storage.persistence(getAttr(layout, ObjectInContext.id));
+        objects = new ConcurrentIndexedCollection<>(objectsPersistence);
+        contexts = new ConcurrentIndexedCollection<>(contextsPersistence);
+        oics = new ConcurrentIndexedCollection<>(oicsPersistence);
+        // compound index key, queries are rewritten into its order by QueryRewrite.toCompound
+        compoundKey = Arrays.asList(getAttr(layout, ObjectInContext.cncId), getAttr(layout, ObjectInContext.ctxId));
         // generate contexts
         ctxNames = generate("ctx", totalContexts);
         ValueObject<Context>[] ctxes = (ValueObject<Context>[]) new ValueObject[ctxNames.length];
         ctxIds = new Long[ctxNames.length];
         for (int i = 0; i < ctxNames.length; i++) {
             String ctxName = ctxNames[i];
-            ValueObject<Context> ctx = Context.newObject(null, ctxName);
-            contexts.add(ctx);
+            ValueObject<Context> ctx = Context.newObject(layout, null, ctxName);
             ctxes[i] = ctx;
             ctxIds[i] = ctx.getId();
         }
+        ctxKeys = Workload.of(distribution, ctxIds.length);
+        cncKeys = Workload.of(distribution, totalConcepts);
+        // batches: every add is a transaction off heap, indices are built after objects are added
+        BulkLoad.load(contexts, Arrays.asList(ctxes), contextIndices());
         svalues = generate("s", totalConcepts * 10);
         lvalues = generate(totalConcepts * 100);
         objIds = new Long[totalObjects];
         // generate objects
+        long heap = Heap.used();
+        List<ValueObject<VObject>> batch = new ArrayList<>(totalObjects);
+        List<ValueObject<ObjectInContext>> oicBatch = new ArrayList<>(totalObjects * maxCtx);
         for (int i = 0; i < totalObjects; i++) {
-            ValueObject<VObject> object = VObject.newObject(totalConcepts);
+            ValueObject<VObject> object = VObject.newObject(layout, totalConcepts);
             object.setValue(VObject.lvalue, randomObject(lvalues));
-            object.setValue(VObject.svalue, randomObject(svalues));
-            objects.add(object);
+            String svalue = randomObject(svalues);
+            object.setValue(VObject.svalue, copySvalue ? new String(svalue.toCharArray()) : svalue);
+            batch.add(object);
             objIds[i] = object.getId();
+            // put object into contexts
+            for (int j = 0; j < maxCtx; j++) {
+                oicBatch.add(ObjectInContext.newObject(layout, object, randomObject(ctxes)));
+            }
         }
-        // put object into contexts
-        objects.forEach((v) -> {
-                    for (int i = 0; i < maxCtx; i++) {
-                        oics.add(ObjectInContext.newObject(v, randomObject(ctxes)));
-                    }
-                }
-        );
+        BulkLoad.load(objects, batch, objectIndices());
+        BulkLoad.load(oics, oicBatch, oicIndices());
+        batch = null;
+        oicBatch = null;
+        // off heap storages keep no objects on heap, batches are collected; per object with its oics and indices
+        Heap.report("objects", heap, totalObjects);
         options = new QueryOptions();
+        objectById = HashJoin.uniqueLookup(objects, getAttr(layout, VObject.id), options);
+    }
+
+    private List<Index<ValueObject<VObject>>> objectIndices() {
+        List<Index<ValueObject<VObject>>> indices = new ArrayList<>();
+        if (storage.onHeap()) {
+            indices.add(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+        }
+        return indices;
+    }
+
+    private List<Index<ValueObject<Context>>> contextIndices() {
+        List<Index<ValueObject<Context>>> indices = new ArrayList<>();
+        indices.add(index(Fields.<Context, String>getAttr(layout, Context.name), UniqueIndex::onAttribute));
+        return indices;
+    }
+
+    private List<Index<ValueObject<ObjectInContext>>> oicIndices() {
+        List<Index<ValueObject<ObjectInContext>>> indices = new ArrayList<>();
+        if (oicIndex == OicIndex.BITMAP) {
+            // bitmap index resolves rows by id
+            LongUniqueIndex<ValueObject<ObjectInContext>> oicById = LongUniqueIndex.onAttribute(getAttr(layout, ObjectInContext.id), totalObjects * maxCtx);
+            bitmapIndex = BitmapIndex.onAttributes(getAttr(layout, ObjectInContext.id), oicById::get,
+                    getAttr(layout, ObjectInContext.ctxId), getAttr(layout, ObjectInContext.cncId));
+            indices.add(oicById);
+            indices.add(bitmapIndex);
+        } else {
+            indices.add(index(getLongAttr(layout, ObjectInContext.ctxId), HashIndex::onAttribute));
+            indices.add(index(getLongAttr(layout, ObjectInContext.cncId), HashIndex::onAttribute));
+        }
+        indices.add(index(getLongAttr(layout, ObjectInContext.objId), HashIndex::onAttribute));
+        if (oicIndex == OicIndex.COMPOUND) {
+            @SuppressWarnings({"rawtypes", "unchecked"})
+            Attribute<ValueObject<ObjectInContext>, ?>[] key = compoundKey.toArray(new Attribute[compoundKey.size()]);
+            indices.add(CompoundIndex.onAttributes(key));
+        }
+        return indices;
+    }
+
+    private <O, A extends Comparable<A>> Index<O> index(Attribute<O, A> attribute, Function<Attribute<O, A>, Index<O>> onHeap) {
+        return storage.index(attribute, () -> onHeap.apply(attribute));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Storage.close(objectsPersistence);
+        Storage.close(contextsPersistence);
+        Storage.close(oicsPersistence);
+    }
+
+    private Query<ValueObject<ObjectInContext>> oicQuery() {
+        Query<ValueObject<ObjectInContext>> oicQuery = and(
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxKeys.nextId(ctxIds)),
+                // concepts are 0..totalConcepts - 1, misses are negative
+                equal(getAttr(layout, ObjectInContext.cncId), (long) cncKeys.next())
+        );
+        if (bitmapIndex != null) {
+            return QueryRewrite.toBitmap(oicQuery, bitmapIndex);
+        }
+        return oicIndex == OicIndex.COMPOUND ? QueryRewrite.toCompound(oicQuery, compoundKey) : oicQuery;
     }
 
-    private void addIndices() {
-        objects.addIndex(UniqueIndex.onAttribute(getAttr(VObject.id)));
-        oics.addIndex(HashIndex.onAttribute(getAttr(ObjectInContext.ctxId)));
-        oics.addIndex(HashIndex.onAttribute(getAttr(ObjectInContext.cncId)));
-        oics.addIndex(HashIndex.onAttribute(getAttr(ObjectInContext.objId)));
-        contexts.addIndex(UniqueIndex.onAttribute(getAttr(Context.name)));
+    @Benchmark
+    public void countOic(Blackhole bh) {
+        bh.consume(oics.retrieve(oicQuery(), options).size());
     }
 
     @Benchmark
     public void queryFirstByOic(Blackhole bh) {
-        Query oicQuery = and(
-                equal(getAttr(ObjectInContext.ctxId), randomObject(ctxIds)),
-                equal(getAttr(ObjectInContext.cncId), (long) random(totalConcepts))
-        );
-        Query existsInOic = existsIn(oics, getAttr(VObject.id), getAttr(ObjectInContext.objId), oicQuery);
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
         bh.consume(asStream(objects, existsInOic, options).findFirst());
     }
 
     @Benchmark
     public void queryFirstByOicAndLvalue(Blackhole bh) {
-        Query oicQuery = and(
-                equal(getAttr(ObjectInContext.ctxId), randomObject(ctxIds)),
-                equal(getAttr(ObjectInContext.cncId), (long) random(totalConcepts))
-        );
-        Query existsInOic = existsIn(oics, getAttr(VObject.id), getAttr(ObjectInContext.objId), oicQuery);
-        Query lvalueQuery = equal(getAttr(VObject.lvalue), randomObject(lvalues));
-        bh.consume(asStream(objects, and(lvalueQuery, existsInOic), options));
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
+        Query<ValueObject<VObject>> lvalueQuery = equal(getAttr(layout, VObject.lvalue), randomObject(lvalues));
+        bh.consume(asStream(objects, and(lvalueQuery, existsInOic), options).findFirst());
     }
 
     @Benchmark
     public void queryFirstByOicAndSvalue(Blackhole bh) {
-        Query oicQuery = and(
-                equal(getAttr(ObjectInContext.ctxId), randomObject(ctxIds)),
-                equal(getAttr(ObjectInContext.cncId), (long) random(totalConcepts))
-        );
-        Query existsInOic = existsIn(oics, getAttr(VObject.id), getAttr(ObjectInContext.objId), oicQuery);
-        Query svalueQuery = equal(getAttr(VObject.svalue), randomObject(svalues));
-        bh.consume(asStream(objects, and(svalueQuery, existsInOic), options));
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
+        Query<ValueObject<VObject>> svalueQuery = equal(getAttr(layout, VObject.svalue), encode(layout, randomObject(svalues)));
+        bh.consume(asStream(objects, and(svalueQuery, existsInOic), options).findFirst());
+    }
+
+    @Benchmark
+    public void queryAnyByOicParallel(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
+        bh.consume(asStream(objects, existsInOic, options, true).findAny());
+    }
+
+    @Benchmark
+    public void queryAnyByOicAndLvalueParallel(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
+        Query<ValueObject<VObject>> lvalueQuery = equal(getAttr(layout, VObject.lvalue), randomObject(lvalues));
+        bh.consume(asStream(objects, and(lvalueQuery, existsInOic), options, true).findAny());
+    }
+
+    @Benchmark
+    public void queryAnyByOicAndSvalueParallel(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery);
+        Query<ValueObject<VObject>> svalueQuery = equal(getAttr(layout, VObject.svalue), encode(layout, randomObject(svalues)));
+        bh.consume(asStream(objects, and(svalueQuery, existsInOic), options, true).findAny());
+    }
+
+    @Benchmark
+    public void joinFirstByOic(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        bh.consume(HashJoin.existsIn(objectById, oics, getAttr(layout, ObjectInContext.objId), oicQuery, options).findFirst());
+    }
+
+    @Benchmark
+    public void joinFirstByOicAndLvalue(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> lvalueQuery = equal(getAttr(layout, VObject.lvalue), randomObject(lvalues));
+        bh.consume(HashJoin.existsIn(objectById, lvalueQuery, oics, getAttr(layout, ObjectInContext.objId), oicQuery, options).findFirst());
+    }
+
+    @Benchmark
+    public void joinFirstByOicAndSvalue(Blackhole bh) {
+        Query<ValueObject<ObjectInContext>> oicQuery = oicQuery();
+        Query<ValueObject<VObject>> svalueQuery = equal(getAttr(layout, VObject.svalue), encode(layout, randomObject(svalues)));
+        bh.consume(HashJoin.existsIn(objectById, svalueQuery, oics, getAttr(layout, ObjectInContext.objId), oicQuery, options).findFirst());
     }
 
 }
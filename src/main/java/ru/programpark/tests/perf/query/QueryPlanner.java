@@ -0,0 +1,328 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.index.support.KeyStatistics;
+import com.googlecode.cqengine.index.support.KeyStatisticsAttributeIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.ExistsIn;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.googlecode.cqengine.query.QueryFactory.in;
+
+/**
+ * Cost based planning of and() on statistics of collection indices: per attribute a histogram of bucket sizes,
+ * the number of distinct keys and exact sizes of the buckets above 99th percentile. Statistics are a snapshot
+ * taken by {@link #analyze}, analyze again to refresh them.
+ * <p>
+ * CQEngine intersects and() by merge costs, i.e. bucket sizes of the indices, and checks conjuncts without an index
+ * on every object of the driving bucket. existsIn() has no index, so it runs the foreign query for each of them,
+ * however large the bucket is. The planner estimates both sides and either leaves the query as is, i.e. driven by
+ * the indexed conjunct, or runs the foreign query once and replaces existsIn() with in() on the local key.
+ */
+public class QueryPlanner {
+
+    // existsIn() check of one object relative to the check of an indexed conjunct
+    private static final int EXISTS_IN_COST = 8;
+
+    private static final Field FOREIGN_COLLECTION = PreparedQuery.field(ExistsIn.class, "foreignCollection");
+    private static final Field FOREIGN_KEY = PreparedQuery.field(ExistsIn.class, "foreignKeyAttribute");
+    private static final Field FOREIGN_RESTRICTIONS = PreparedQuery.field(ExistsIn.class, "foreignRestrictions");
+
+    private volatile Map<IndexedCollection<?>, Map<Attribute<?, ?>, AttributeStatistics>> statistics = new IdentityHashMap<>();
+
+    /**
+     * Collects statistics of unique and key statistics indices of the collection, i.e. hash and navigable ones.
+     * Statistics of a {@link ShardedCollection} are merged from the indices of its shards.
+     */
+    public synchronized <O> void analyze(IndexedCollection<O> collection) {
+        QueryOptions options = new QueryOptions();
+        int rows = collection.size();
+        List<IndexedCollection<O>> parts = collection instanceof ShardedCollection
+                ? ((ShardedCollection<O>) collection).getShards() : Collections.singletonList(collection);
+        Map<Attribute<?, ?>, AttributeStatistics> attributes = new HashMap<>();
+        // first key statistics index of an attribute per part
+        Map<Attribute<?, ?>, List<KeyStatisticsAttributeIndex<?, O>>> keyed = new HashMap<>();
+        for (IndexedCollection<O> part : parts) {
+            Set<Attribute<?, ?>> seen = new HashSet<>();
+            for (Index<O> index : part.getIndexes()) {
+                if (index instanceof UniqueIndex || index instanceof LongUniqueIndex) {
+                    attributes.put(((AttributeIndex) index).getAttribute(), AttributeStatistics.unique(rows));
+                } else if (index instanceof KeyStatisticsAttributeIndex && seen.add(((AttributeIndex) index).getAttribute())) {
+                    keyed.computeIfAbsent(((AttributeIndex) index).getAttribute(), attribute -> new ArrayList<>())
+                            .add((KeyStatisticsAttributeIndex<?, O>) index);
+                }
+            }
+        }
+        for (Map.Entry<Attribute<?, ?>, List<KeyStatisticsAttributeIndex<?, O>>> entry : keyed.entrySet()) {
+            List<KeyStatisticsAttributeIndex<?, O>> indexes = entry.getValue();
+            attributes.putIfAbsent(entry.getKey(), indexes.size() == 1
+                    ? AttributeStatistics.of(rows, indexes.get(0), options) : AttributeStatistics.of(rows, indexes, options));
+        }
+        Map<IndexedCollection<?>, Map<Attribute<?, ?>, AttributeStatistics>> copy = new IdentityHashMap<>(statistics);
+        copy.put(collection, attributes);
+        statistics = copy;
+    }
+
+    /**
+     * @return statistics of the attribute or null if it is not analyzed
+     */
+    public AttributeStatistics statistics(IndexedCollection<?> collection, Attribute<?, ?> attribute) {
+        return statistics.getOrDefault(collection, Collections.emptyMap()).get(attribute);
+    }
+
+    /**
+     * @return estimated number of objects of the collection matching the query
+     */
+    public double estimate(IndexedCollection<?> collection, Query<?> query) {
+        return estimate(statistics.getOrDefault(collection, Collections.emptyMap()), collection.size(), query);
+    }
+
+    private double estimate(Map<Attribute<?, ?>, AttributeStatistics> attributes, int rows, Query<?> query) {
+        if (query instanceof Equal) {
+            AttributeStatistics stats = attributes.get(((Equal) query).getAttribute());
+            return stats == null ? rows : Math.min(rows, stats.estimate(((Equal) query).getValue()));
+        } else if (query instanceof In) {
+            AttributeStatistics stats = attributes.get(((In) query).getAttribute());
+            if (stats == null) {
+                return rows;
+            }
+            double estimate = 0;
+            for (Object value : ((In<?, ?>) query).getValues()) {
+                estimate += stats.estimate(value);
+            }
+            return Math.min(rows, estimate);
+        } else if (query instanceof And) {
+            // conjuncts are taken as independent
+            double estimate = rows;
+            for (Query<?> child : ((And<?>) query).getChildQueries()) {
+                estimate *= rows == 0 ? 0 : estimate(attributes, rows, child) / rows;
+            }
+            return estimate;
+        } else if (query instanceof Or) {
+            double estimate = 0;
+            for (Query<?> child : ((Or<?>) query).getChildQueries()) {
+                estimate += estimate(attributes, rows, child);
+            }
+            return Math.min(rows, estimate);
+        } else if (query instanceof ExistsIn) {
+            Query<?> foreignQuery = PreparedQuery.get(FOREIGN_RESTRICTIONS, query);
+            return foreignQuery == null ? rows
+                    : Math.min(rows, estimate(PreparedQuery.<IndexedCollection<?>>get(FOREIGN_COLLECTION, query), foreignQuery));
+        }
+        return rows;
+    }
+
+    /**
+     * @return query retrieving the same objects of the collection, driven by its most selective part
+     */
+    public <O> Query<O> plan(IndexedCollection<O> collection, Query<O> query, QueryOptions options) {
+        Map<Attribute<?, ?>, AttributeStatistics> attributes = statistics.getOrDefault(collection, Collections.emptyMap());
+        int rows = collection.size();
+        if (query instanceof ExistsIn && semiJoin((ExistsIn) query)) {
+            // otherwise every object of the collection is checked
+            return semiJoin((ExistsIn<O, ?, ?>) query, options);
+        }
+        if (!(query instanceof And)) {
+            return query;
+        }
+        List<Query<O>> children = new ArrayList<>(((And<O>) query).getChildQueries());
+        double drive = rows;
+        int existsIn = 0;
+        ExistsIn<O, ?, ?> join = null;
+        double joinEstimate = Double.MAX_VALUE;
+        for (Query<O> child : children) {
+            double estimate = estimate(attributes, rows, child);
+            if (child instanceof ExistsIn) {
+                existsIn++;
+                if (semiJoin((ExistsIn) child) && estimate < joinEstimate) {
+                    join = (ExistsIn<O, ?, ?>) child;
+                    joinEstimate = estimate;
+                }
+            } else if (indexed(attributes, child)) {
+                drive = Math.min(drive, estimate);
+            }
+        }
+        // order of children is not changed: CQEngine orders them by retrieval and merge costs itself
+        if (join != null && 2 * joinEstimate + joinEstimate * (existsIn - 1) * EXISTS_IN_COST < drive * (1 + existsIn * EXISTS_IN_COST)) {
+            children.set(children.indexOf(join), semiJoin(join, options));
+            return new And<>(children);
+        }
+        return query;
+    }
+
+    private boolean indexed(Map<Attribute<?, ?>, AttributeStatistics> attributes, Query<?> query) {
+        if (query instanceof Equal || query instanceof In) {
+            return attributes.containsKey(((com.googlecode.cqengine.query.simple.SimpleQuery) query).getAttribute());
+        } else if (query instanceof And) {
+            for (Query<?> child : ((And<?>) query).getChildQueries()) {
+                if (indexed(attributes, child)) {
+                    return true;
+                }
+            }
+        } else if (query instanceof Or) {
+            for (Query<?> child : ((Or<?>) query).getChildQueries()) {
+                if (!indexed(attributes, child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean semiJoin(ExistsIn<?, ?, ?> existsIn) {
+        return PreparedQuery.get(FOREIGN_RESTRICTIONS, existsIn) != null;
+    }
+
+    /**
+     * Runs the foreign query of existsIn() and replaces it with in() on the local key
+     */
+    private <O, F, A> Query<O> semiJoin(ExistsIn<O, F, A> existsIn, QueryOptions options) {
+        IndexedCollection<F> foreign = PreparedQuery.get(FOREIGN_COLLECTION, existsIn);
+        Attribute<F, A> foreignKey = PreparedQuery.get(FOREIGN_KEY, existsIn);
+        Query<F> foreignQuery = PreparedQuery.get(FOREIGN_RESTRICTIONS, existsIn);
+        Set<A> keys = new HashSet<>();
+        ResultSet<F> rs = foreign.retrieve(plan(foreign, foreignQuery, options), options);
+        try {
+            for (F f : rs) {
+                for (A key : foreignKey.getValues(f, options)) {
+                    keys.add(key);
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        return in(existsIn.getAttribute(), keys);
+    }
+
+    /**
+     * Sizes of index buckets of an attribute
+     */
+    public static class AttributeStatistics {
+        private final long rows;
+        private final long distinct;
+        private final Histogram buckets;
+        // exact sizes of buckets above 99th percentile
+        private final Map<Object, Integer> heavy;
+        // average size of other buckets
+        private final double light;
+
+        private AttributeStatistics(long rows, long distinct, Histogram buckets, Map<Object, Integer> heavy) {
+            this.rows = rows;
+            this.distinct = distinct;
+            this.buckets = buckets;
+            this.heavy = heavy;
+            long heavyRows = 0;
+            for (int count : heavy.values()) {
+                heavyRows += count;
+            }
+            light = distinct > heavy.size() ? (double) (rows - heavyRows) / (distinct - heavy.size()) : 0;
+        }
+
+        static AttributeStatistics unique(long rows) {
+            Histogram buckets = new Histogram(1);
+            buckets.record(1);
+            return new AttributeStatistics(rows, rows, buckets, Collections.emptyMap());
+        }
+
+        static <A, O> AttributeStatistics of(long rows, KeyStatisticsAttributeIndex<A, O> index, QueryOptions options) {
+            Histogram buckets = new Histogram(1);
+            long distinct = 0;
+            CloseableIterator<KeyStatistics<A>> keys = index.getStatisticsForDistinctKeys(options).iterator();
+            try {
+                while (keys.hasNext()) {
+                    buckets.record(keys.next().getCount());
+                    distinct++;
+                }
+            } finally {
+                keys.close();
+            }
+            long threshold = buckets.valueAt(99);
+            Map<Object, Integer> heavy = new HashMap<>();
+            keys = index.getStatisticsForDistinctKeys(options).iterator();
+            try {
+                while (keys.hasNext()) {
+                    KeyStatistics<A> key = keys.next();
+                    if (key.getCount() > threshold) {
+                        heavy.put(key.getKey(), key.getCount());
+                    }
+                }
+            } finally {
+                keys.close();
+            }
+            return new AttributeStatistics(rows, distinct, buckets, heavy);
+        }
+
+        /**
+         * Counts of the same key in several indices, i.e. shards, are summed
+         */
+        static <O> AttributeStatistics of(long rows, List<KeyStatisticsAttributeIndex<?, O>> indexes, QueryOptions options) {
+            Map<Object, Integer> counts = new HashMap<>();
+            for (KeyStatisticsAttributeIndex<?, O> index : indexes) {
+                CloseableIterator<? extends KeyStatistics<?>> keys = index.getStatisticsForDistinctKeys(options).iterator();
+                try {
+                    while (keys.hasNext()) {
+                        KeyStatistics<?> key = keys.next();
+                        counts.merge(key.getKey(), key.getCount(), Integer::sum);
+                    }
+                } finally {
+                    keys.close();
+                }
+            }
+            Histogram buckets = new Histogram(1);
+            for (int count : counts.values()) {
+                buckets.record(count);
+            }
+            long threshold = buckets.valueAt(99);
+            Map<Object, Integer> heavy = new HashMap<>();
+            for (Map.Entry<Object, Integer> count : counts.entrySet()) {
+                if (count.getValue() > threshold) {
+                    heavy.put(count.getKey(), count.getValue());
+                }
+            }
+            return new AttributeStatistics(rows, counts.size(), buckets, heavy);
+        }
+
+        /**
+         * @return estimated size of the bucket of the value
+         */
+        public double estimate(Object value) {
+            Integer count = heavy.get(value);
+            return count != null ? count : light;
+        }
+
+        public long distinct() {
+            return distinct;
+        }
+
+        public Histogram buckets() {
+            return buckets;
+        }
+
+        @Override
+        public String toString() {
+            return "rows=" + rows + ", distinct=" + distinct + ", heavy=" + heavy.size()
+                    + ", bucket p50=" + buckets.valueAt(50) + " p99=" + buckets.valueAt(99) + " max=" + buckets.max();
+        }
+    }
+}
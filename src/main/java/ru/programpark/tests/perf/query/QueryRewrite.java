@@ -0,0 +1,78 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.simple.Equal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Rewrites of queries into shapes CQEngine can answer with fewer index probes
+ */
+public class QueryRewrite {
+
+    /**
+     * CQEngine answers and(...) with a CompoundIndex only if the and consists of equals listed in the order
+     * of the compound attributes. Groups such equals of the query into a nested and in that order,
+     * other conjuncts are kept as is.
+     *
+     * @return rewritten query or the query itself if it has no equal for some of the attributes
+     */
+    public static <O> Query<O> toCompound(Query<O> query, List<? extends Attribute<O, ?>> attributes) {
+        if (!(query instanceof And)) {
+            return query;
+        }
+        Collection<Query<O>> children = ((And<O>) query).getChildQueries();
+        Query<O>[] compound = new Query[attributes.size()];
+        List<Query<O>> rest = new ArrayList<>(children.size());
+        for (Query<O> child : children) {
+            int i = child instanceof Equal ? attributes.indexOf(((Equal) child).getAttribute()) : -1;
+            if (i >= 0 && compound[i] == null) {
+                compound[i] = child;
+            } else {
+                rest.add(child);
+            }
+        }
+        for (Query<O> q : compound) {
+            if (q == null) {
+                return query;
+            }
+        }
+        And<O> and = new And<>(Arrays.asList(compound));
+        if (rest.isEmpty()) {
+            return and;
+        }
+        rest.add(0, and);
+        return new And<>(rest);
+    }
+
+    /**
+     * Groups conjuncts of the query answered by the bitmap index into a single {@link BitmapIndex.BitmapQuery},
+     * so that they are combined on bitmaps instead of intersected object by object, other conjuncts are kept as is.
+     *
+     * @return rewritten query or the query itself if the index answers none of it
+     */
+    public static <O> Query<O> toBitmap(Query<O> query, BitmapIndex<O> index) {
+        if (index.supports(query)) {
+            return index.query(query);
+        }
+        if (!(query instanceof And)) {
+            return query;
+        }
+        Collection<Query<O>> children = ((And<O>) query).getChildQueries();
+        List<Query<O>> bitmap = new ArrayList<>(children.size());
+        List<Query<O>> rest = new ArrayList<>(children.size());
+        for (Query<O> child : children) {
+            (index.supports(child) ? bitmap : rest).add(child);
+        }
+        if (bitmap.isEmpty()) {
+            return query;
+        }
+        rest.add(0, index.query(bitmap.size() == 1 ? bitmap.get(0) : new And<>(bitmap)));
+        return rest.size() == 1 ? rest.get(0) : new And<>(rest);
+    }
+}
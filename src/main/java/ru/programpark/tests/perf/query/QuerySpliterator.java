@@ -0,0 +1,140 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.ExistsIn;
+import com.googlecode.cqengine.query.simple.SimpleQuery;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splittable source of query results for parallel streams.
+ * <p>
+ * ResultSet iterators filter candidates while iterating, so a stream over them does the expensive part,
+ * i.e. existsIn, in one thread whatever the stream is. Here only candidates are iterated: the cheapest indexed
+ * conjunct of the query or the whole collection if there is none. They are handed out in batches sized by the estimate
+ * of the candidate count, the query itself is matched by the workers.
+ */
+public class QuerySpliterator<O> implements Spliterator<O> {
+
+    // batches per worker, so workers finishing early could steal more
+    private static final int BATCHES_PER_THREAD = 8;
+    private static final int MAX_BATCH = 1 << 16;
+
+    private final Iterator<O> candidates;
+    private final int batch;
+    private long estimate;
+
+    public QuerySpliterator(Iterator<O> candidates, long estimate) {
+        this.candidates = candidates;
+        this.estimate = estimate;
+        long perBatch = estimate / ((long) ForkJoinPool.getCommonPoolParallelism() * BATCHES_PER_THREAD);
+        this.batch = (int) Math.max(1, Math.min(MAX_BATCH, perBatch));
+    }
+
+    /**
+     * Same objects as collection.retrieve(query, options), in parallel if asked
+     */
+    public static <O> Stream<O> stream(IndexedCollection<O> collection, Query<O> query, QueryOptions options, boolean parallel) {
+        Query<O> driver = driver(collection, query, options);
+        if (driver == null) {
+            QuerySpliterator<O> spliterator = new QuerySpliterator<>(collection.iterator(), collection.size());
+            return StreamSupport.stream(spliterator, parallel).filter(o -> query.matches(o, options));
+        }
+        ResultSet<O> rs = collection.retrieve(driver, options);
+        QuerySpliterator<O> spliterator = new QuerySpliterator<>(rs.iterator(), rs.getMergeCost());
+        Stream<O> stream = StreamSupport.stream(spliterator, parallel).onClose(rs::close);
+        return driver == query ? stream : stream.filter(o -> query.matches(o, options));
+    }
+
+    /**
+     * @return indexed query or conjunct of the query with the lowest merge cost, null if there is none
+     */
+    static <O> Query<O> driver(IndexedCollection<O> collection, Query<O> query, QueryOptions options) {
+        if (query instanceof SimpleQuery) {
+            return indexed(collection, query, options) ? query : null;
+        }
+        if (!(query instanceof And)) {
+            return null;
+        }
+        Query<O> driver = null;
+        int driverCost = Integer.MAX_VALUE;
+        for (Query<O> child : ((And<O>) query).getChildQueries()) {
+            if (child instanceof SimpleQuery && indexed(collection, child, options)) {
+                ResultSet<O> rs = collection.retrieve(child, options);
+                int cost = rs.getMergeCost();
+                rs.close();
+                if (cost < driverCost) {
+                    driver = child;
+                    driverCost = cost;
+                }
+            }
+        }
+        return driver;
+    }
+
+    private static <O> boolean indexed(IndexedCollection<O> collection, Query<O> query, QueryOptions options) {
+        if (query instanceof ExistsIn) {
+            return false;
+        }
+        for (Index<O> index : collection.getIndexes()) {
+            if (index.supportsQuery(query, options)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super O> action) {
+        if (!candidates.hasNext()) {
+            estimate = 0;
+            return false;
+        }
+        action.accept(candidates.next());
+        if (estimate > 0) {
+            estimate--;
+        }
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super O> action) {
+        candidates.forEachRemaining(action);
+        estimate = 0;
+    }
+
+    @Override
+    public Spliterator<O> trySplit() {
+        if (!candidates.hasNext()) {
+            return null;
+        }
+        Object[] objects = new Object[batch];
+        int n = 0;
+        while (n < batch && candidates.hasNext()) {
+            objects[n++] = candidates.next();
+        }
+        estimate = Math.max(0, estimate - n);
+        return Spliterators.spliterator(objects, 0, n, Spliterator.NONNULL);
+    }
+
+    @Override
+    public long estimateSize() {
+        return candidates.hasNext() ? Math.max(estimate, 1) : 0;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.NONNULL;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link InstrumentedCollection}: latency and result size per query shape
+ */
+public interface QueryStatsMXBean {
+
+    List<Shape> getShapes();
+
+    /**
+     * Fraction of queries classified and timed
+     */
+    double getSampleRate();
+
+    void reset();
+
+    class Shape {
+        private final String shape;
+        private final long count;
+        private final double meanNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+        private final double meanSize;
+        private final long p99Size;
+        private final long maxSize;
+
+        Shape(String shape, Histogram latency, Histogram size) {
+            this.shape = shape;
+            this.count = latency.count();
+            this.meanNanos = latency.mean();
+            this.p50Nanos = latency.valueAt(50);
+            this.p99Nanos = latency.valueAt(99);
+            this.p999Nanos = latency.valueAt(99.9);
+            this.maxNanos = latency.max();
+            this.meanSize = size.mean();
+            this.p99Size = size.valueAt(99);
+            this.maxSize = size.max();
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public double getMeanSize() {
+            return meanSize;
+        }
+
+        public long getP99Size() {
+            return p99Size;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: count %d, mean %.0f ns, p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns, mean size %.1f, p99 size %d, max size %d",
+                    shape, count, meanNanos, p50Nanos, p99Nanos, p999Nanos, maxNanos, meanSize, p99Size, maxSize);
+        }
+    }
+}
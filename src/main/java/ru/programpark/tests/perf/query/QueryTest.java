@@ -13,12 +13,14 @@ import com.googlecode.cqengine.resultset.ResultSet;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
 
+import javax.management.ObjectName;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static ru.programpark.tests.perf.query.Fields.generate;
 import static ru.programpark.tests.perf.query.Sequence.asStream;
-import static ru.programpark.tests.perf.query.Sequence.randomObject;
+import static ru.programpark.tests.perf.query.Sequence.first;
+import static ru.programpark.tests.perf.query.Sequence.firstAndClose;
 
 /**
  * Tests on a Long collection
@@ -42,6 +44,13 @@ public class QueryTest {
     // use cached options
     @Param({"true"})
     boolean cachedOptions;
+    // record every 2^n-th query of the first collection per shape with InstrumentedCollection, -1 to query it directly,
+    // statistics are the QueryStats MBean of the fork while it runs, see InstrumentedTest for the overhead
+    @Param({"-1"})
+    int instrumentSampleBits;
+    // keys of queries, see Workload
+    @Param({"UNIFORM"})
+    String distribution;
 
     private static final SimpleAttribute<Long, Long> ID = new SimpleAttribute<Long, Long>(Long.class, Long.class, "id") {
         @Override
@@ -57,6 +66,12 @@ public class QueryTest {
         }
     };
     private QueryOptions options;
+    private Workload keys;
+    private ObjectName statsName;
+    // prepared versions of existsJoin, existsJoinWithSubquery and uniqueQuery
+    private ThreadLocal<PreparedQuery<Long>> preparedExistsJoin;
+    private ThreadLocal<PreparedQuery<Long>> preparedExistsJoinWithSubquery;
+    private ThreadLocal<PreparedQuery<Long>> preparedUnique;
 
     @Setup(Level.Trial)
     public void setUp() throws Exception {
@@ -65,6 +80,7 @@ public class QueryTest {
         options = cachedOptions ? new QueryOptions() : null;
 
         objIds = random ? generate(MAX_IDS, MAX_IDS * 1000) : generate(MAX_IDS);
+        keys = Workload.of(distribution, objIds.length);
         // fill both collections with same values
         Stream.of(objIds).distinct()
                 .forEach(v -> {
@@ -73,74 +89,119 @@ public class QueryTest {
                 });
 
         first.addIndex(UniqueIndex.onAttribute(ID));
+        if (instrumentSampleBits >= 0) {
+            InstrumentedCollection<Long> instrumented = new InstrumentedCollection<>(first, instrumentSampleBits);
+            statsName = instrumented.register("QueryTest.first");
+            first = instrumented;
+        }
 
         // we do not query by PK on second collection - do not index it
         // as if we had FK in different collection
         second.addIndex(HashIndex.onAttribute(EID));
+
+        preparedExistsJoin = PreparedQuery.perThread(() ->
+                QueryFactory.and(PreparedQuery.param(ID), QueryFactory.existsIn(second, ID, EID)));
+        preparedExistsJoinWithSubquery = PreparedQuery.perThread(() ->
+                QueryFactory.and(PreparedQuery.param(ID), QueryFactory.existsIn(second, ID, EID, PreparedQuery.param(EID))));
+        preparedUnique = PreparedQuery.perThread(() -> PreparedQuery.param(ID));
     }
 
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (statsName != null) {
+            InstrumentedCollection.unregister(statsName);
+            statsName = null;
+        }
+    }
 
     @Benchmark
     public void existsJoin(Blackhole bh) {
-        Query<Long> query = QueryFactory.and(QueryFactory.equal(ID, randomObject(objIds)), QueryFactory.existsIn(second, ID, EID));
-        bh.consume(first.retrieve(query, getOptions()).iterator().next());
+        Query<Long> query = QueryFactory.and(QueryFactory.equal(ID, keys.nextId(objIds)), QueryFactory.existsIn(second, ID, EID));
+        bh.consume(firstAndClose(first.retrieve(query, getOptions())));
+    }
+
+    @Benchmark
+    public void preparedExistsJoin(Blackhole bh) {
+        PreparedQuery<Long> query = preparedExistsJoin.get().bind(keys.nextId(objIds));
+        bh.consume(firstAndClose(query.retrieve(first)));
     }
 
     @Benchmark
     public void existsJoinWithSubquery(Blackhole bh) {
-        Long pkValue = randomObject(objIds);
+        Long pkValue = keys.nextId(objIds);
         Equal<Long, Long> firstEqual = QueryFactory.equal(ID, pkValue);
         Equal<Long, Long> existEqual = QueryFactory.equal(EID, pkValue);
         Query<Long> query = QueryFactory.and(firstEqual, QueryFactory.existsIn(second, ID, EID, existEqual));
-        bh.consume(first.retrieve(query, getOptions()).iterator().next());
+        bh.consume(firstAndClose(first.retrieve(query, getOptions())));
+    }
+
+    @Benchmark
+    public void preparedExistsJoinWithSubquery(Blackhole bh) {
+        Long pkValue = keys.nextId(objIds);
+        PreparedQuery<Long> query = preparedExistsJoinWithSubquery.get().bind(0, pkValue).bind(1, pkValue);
+        bh.consume(firstAndClose(query.retrieve(first)));
     }
 
     @Benchmark
     public void iteratorJoinByEID(Blackhole bh) {
-        Equal<Long, Long> equal = QueryFactory.equal(EID, randomObject(objIds));
-        Long found = second.retrieve(equal, getOptions()).iterator().next();
+        Equal<Long, Long> equal = QueryFactory.equal(EID, keys.nextId(objIds));
+        Long found = first(second.retrieve(equal, getOptions()));
+        if (found == null) {
+            bh.consume(found);
+            return;
+        }
         Equal<Long, Long> subQ = QueryFactory.equal(ID, found);
-        bh.consume(first.retrieve(subQ, getOptions()).iterator().next());
+        bh.consume(first(first.retrieve(subQ, getOptions())));
     }
 
     @Benchmark
     public void streamJoinByEID(Blackhole bh) {
-        Long value = randomObject(objIds);
+        Long value = keys.nextId(objIds);
         Equal<Long, Long> equal = QueryFactory.equal(EID, value);
         Long result = asStream(second, equal, getOptions()).map(found -> {
             Equal<Long, Long> subQ = QueryFactory.equal(ID, found);
             return first.retrieve(subQ, getOptions()).iterator().next();
-        }).findFirst().get();
+        }).findFirst().orElse(null);
         bh.consume(result);
     }
 
     @Benchmark
     public void iteratorJoinByEIDWithClose(Blackhole bh) {
-        Equal<Long, Long> equal = QueryFactory.equal(EID, randomObject(objIds));
+        Equal<Long, Long> equal = QueryFactory.equal(EID, keys.nextId(objIds));
         ResultSet retrieve = second.retrieve(equal, getOptions());
-        Long found = (Long) retrieve.iterator().next();
+        Long found = (Long) first(retrieve);
         retrieve.close();
+        if (found == null) {
+            bh.consume(found);
+            return;
+        }
         Equal<Long, Long> subQ = QueryFactory.equal(ID, found);
         ResultSet result = first.retrieve(subQ, getOptions());
-        bh.consume(result.iterator().next());
+        bh.consume(first(result));
         result.close();
     }
 
     @Benchmark
     public void joinByEID(Blackhole bh) {
-        Query<Long> query = QueryFactory.and(QueryFactory.existsIn(second, ID, EID), QueryFactory.equal(EID, randomObject(objIds)));
-        bh.consume(first.retrieve(query, getOptions()).iterator().next());
+        Query<Long> query = QueryFactory.and(QueryFactory.existsIn(second, ID, EID), QueryFactory.equal(EID, keys.nextId(objIds)));
+        bh.consume(firstAndClose(first.retrieve(query, getOptions())));
     }
 
     @Benchmark
     public void cubeExistsJoinFirstEntry(Blackhole bh) {
-        bh.consume(first.retrieve(QueryFactory.existsIn(second, ID, EID), getOptions()).iterator().next());
+        bh.consume(firstAndClose(first.retrieve(QueryFactory.existsIn(second, ID, EID), getOptions())));
     }
 
     @Benchmark
     public void uniqueQuery(Blackhole bh) {
-        Query<Long> query = QueryFactory.equal(ID, randomObject(objIds));
-        bh.consume(first.retrieve(query, getOptions()).iterator().next());
+        Query<Long> query = QueryFactory.equal(ID, keys.nextId(objIds));
+        bh.consume(firstAndClose(first.retrieve(query, getOptions())));
+    }
+
+    @Benchmark
+    public void preparedUniqueQuery(Blackhole bh) {
+        PreparedQuery<Long> query = preparedUnique.get().bind(keys.nextId(objIds));
+        bh.consume(firstAndClose(query.retrieve(first)));
     }
 
 
@@ -2,13 +2,16 @@ package ru.programpark.tests.perf.query;
 
 import com.googlecode.cqengine.ConcurrentIndexedCollection;
 import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
 import com.googlecode.cqengine.index.hash.HashIndex;
 import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.persistence.Persistence;
 import com.googlecode.cqengine.query.Query;
 import com.googlecode.cqengine.query.QueryFactory;
 import com.googlecode.cqengine.query.option.DeduplicationStrategy;
 import com.googlecode.cqengine.query.option.QueryOptions;
 import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.resultset.ResultSet;
 import com.googlecode.cqengine.resultset.stored.StoredSetBasedResultSet;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.infra.Blackhole;
@@ -16,6 +19,7 @@ import org.openjdk.jmh.infra.Blackhole;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
 
 import static ru.programpark.tests.perf.query.Fields.*;
 import static ru.programpark.tests.perf.query.Sequence.*;
@@ -35,50 +39,105 @@ public class QueryValueObjectTest {
     private int maxObjects;
 
     @Param({
-            "true", "false"
+            "UNIQUE", "HASH", "LONG_UNIQUE"
     })
-    private boolean uniqueIndex;
+    private IdIndex uniqueIndex;
 
     @Param({
-            "50"
+            "50", "100", "1000", "10000"
     })
     private int maxInIds;
 
+    @Param({
+            "BOXED", "PRIMITIVE"
+    })
+    private ValueObject.Layout layout;
+
+    // OFF_HEAP, DISK - id index is the primary key of the storage, sweep them with -p uniqueIndex=UNIQUE, see README
+    @Param({
+            "HEAP"
+    })
+    private Storage storage;
+
+    // ids of lookups, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private Persistence<ValueObject<VObject>, ?> persistence;
     private IndexedCollection<ValueObject<Fields.VObject>> objects;
     private Long[] objIds;
+    private Workload keys;
     private Map<Long, ValueObject<Fields.VObject>> hash;
     private QueryOptions options;
     private QueryOptions deduplicate;
+    private LongFunction<ValueObject<VObject>> objectById;
 
     @Setup(Level.Trial)
     public void setUp() throws Exception {
-        objects = new ConcurrentIndexedCollection<>();
-        addIndices();
+        storage.requireIndex(uniqueIndex, IdIndex.UNIQUE);
+        persistence = storage.persistence(getAttr(layout, VObject.id));
+        objects = new ConcurrentIndexedCollection<>(persistence);
         // generate contexts
         String[] svalues = generate("s", maxCnc() / 100);
         Long[] lvalues = generate(maxCnc() / 10);
         objIds = new Long[maxObjects];
+        keys = Workload.of(distribution, maxObjects);
+        ValueObject<Fields.VObject>[] rows = (ValueObject<Fields.VObject>[]) new ValueObject[maxObjects];
         // generate objects
-        hash = new HashMap();
+        long heap = Heap.used();
         for (int i = 0; i < maxObjects; i++) {
-            ValueObject<Fields.VObject> object = Fields.VObject.newObject(maxCnc());
+            ValueObject<Fields.VObject> object = Fields.VObject.newObject(layout, maxCnc());
             object.setValue(Fields.VObject.lvalue, random(lvalues));
             object.setValue(Fields.VObject.svalue, random(svalues));
-            objects.add(object);
+            rows[i] = object;
+        }
+        Heap.report("rows", heap, maxObjects);
+        hash = new HashMap<>();
+        for (int i = 0; i < maxObjects; i++) {
+            ValueObject<Fields.VObject> object = rows[i];
             objIds[i] = object.getId();
-            hash.put(object.getId(), object);
+            if (storage.onHeap()) {
+                hash.put(object.getId(), object);
+            }
         }
+        // id index is built after objects are added
+        objects.addAll(Arrays.asList(rows));
+        addIndices();
+        rows = null;
+        // off heap storages keep no objects on heap, rows are collected
+        Heap.report("collection", heap, maxObjects);
         options = new QueryOptions();
         deduplicate = new QueryOptions();
         deduplicate.put(DeduplicationStrategy.class, DeduplicationStrategy.MATERIALIZE);
+        objectById = HashJoin.uniqueLookup(objects, getAttr(layout, VObject.id), options);
     }
 
     private void addIndices() {
-        if (uniqueIndex) {
-            objects.addIndex(UniqueIndex.onAttribute(getAttr(Fields.VObject.id)));
-        } else {
-            objects.addIndex(HashIndex.onAttribute(() -> new ConcurrentHashMap(maxObjects), () -> new StoredSetBasedResultSet<>(new HashSet(1)), getAttr(Fields.VObject.id)));
+        if (!storage.onHeap()) {
+            return;
         }
+        switch (uniqueIndex) {
+            case UNIQUE:
+                objects.addIndex(UniqueIndex.onAttribute(getAttr(layout, Fields.VObject.id)));
+                break;
+            case HASH:
+                objects.addIndex(HashIndex.onAttribute(() -> new ConcurrentHashMap<>(maxObjects), () -> new StoredSetBasedResultSet<>(new HashSet<>(1)), getLongAttr(layout, Fields.VObject.id)));
+                break;
+            case LONG_UNIQUE:
+                objects.addIndex(LongUniqueIndex.onAttribute(getAttr(layout, Fields.VObject.id), maxObjects));
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Storage.close(persistence);
+    }
+
+    public enum IdIndex {
+        UNIQUE, HASH, LONG_UNIQUE
     }
 
     private int maxCnc() {
@@ -90,55 +149,88 @@ public class QueryValueObjectTest {
         bh.consume(randomObject(objIds));
     }
 
+    @Benchmark
+    public void workloadBaseline(Blackhole bh) {
+        bh.consume(keys.nextId(objIds));
+    }
+
+    // result sets are closed: off heap and disk storages keep connections until then
     @Benchmark
     public void sizeById(Blackhole bh) {
-        Equal equal = QueryFactory.equal(getAttr(Fields.VObject.id), randomObject(objIds));
-        bh.consume(objects.retrieve(equal).size());
+        Equal<ValueObject<VObject>, Long> equal = QueryFactory.equal(getAttr(layout, Fields.VObject.id), keys.nextId(objIds));
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal);
+        bh.consume(rs.size());
+        rs.close();
     }
 
     @Benchmark
     public void queryById(Blackhole bh) {
-        Equal equal = QueryFactory.equal(getAttr(Fields.VObject.id), randomObject(objIds));
-        Object next = objects.retrieve(equal).iterator().next();
+        Equal<ValueObject<VObject>, Long> equal = QueryFactory.equal(getAttr(layout, Fields.VObject.id), keys.nextId(objIds));
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal);
+        Object next = first(rs);
         if(next != null) {
             bh.consume(next);
         }
+        rs.close();
     }
 
     @Benchmark
     public void queryByIdStream(Blackhole bh) {
-        Equal equal = QueryFactory.equal(getAttr(Fields.VObject.id), randomObject(objIds));
+        Equal<ValueObject<VObject>, Long> equal = QueryFactory.equal(getAttr(layout, Fields.VObject.id), keys.nextId(objIds));
         bh.consume(asStream(objects, equal, options).findFirst());
     }
 
 
     @Benchmark
     public void queryIn(Blackhole bh) {
-        Query query = QueryFactory.in(getAttr(VObject.id), randomList(objIds,  maxInIds));
-        Iterable<ValueObject<VObject>> iterator = objects.retrieve(query, options);
+        Query<ValueObject<VObject>> query = QueryFactory.in(getAttr(layout, VObject.id), keys.nextIds(objIds, maxInIds));
+        ResultSet<ValueObject<VObject>> iterator = objects.retrieve(query, options);
         for (ValueObject<VObject> object : iterator) {
             bh.consume(object);
         }
+        iterator.close();
     }
 
     @Benchmark
     public void queryInDeduplicate(Blackhole bh) {
-        Query query = QueryFactory.in(getAttr(Fields.VObject.id), randomList(objIds,  maxInIds));
-        Iterable<ValueObject<VObject>> iterator = objects.retrieve(query, deduplicate);
+        Query<ValueObject<VObject>> query = QueryFactory.in(getAttr(layout, Fields.VObject.id), keys.nextIds(objIds, maxInIds));
+        ResultSet<ValueObject<VObject>> iterator = objects.retrieve(query, deduplicate);
         for (ValueObject<VObject> object : iterator) {
             bh.consume(object);
         }
+        iterator.close();
     }
 
     @Benchmark
     public void queryInStream(Blackhole bh) {
-        Query query = QueryFactory.in(getAttr(Fields.VObject.id), randomList(objIds,  maxInIds));
+        Query<ValueObject<VObject>> query = QueryFactory.in(getAttr(layout, Fields.VObject.id), keys.nextIds(objIds, maxInIds));
         asStream(objects, query, options).forEach(o -> bh.consume(o));
     }
 
+    @Benchmark
+    public void queryInParallelStream(Blackhole bh) {
+        Query<ValueObject<VObject>> query = QueryFactory.in(getAttr(layout, Fields.VObject.id), keys.nextIds(objIds, maxInIds));
+        asStream(objects, query, options, true).forEach(o -> bh.consume(o));
+    }
+
     @Benchmark
     public void queryInStreamDeduplicate(Blackhole bh) {
-        Query query = QueryFactory.in(getAttr(Fields.VObject.id), randomList(objIds,  maxInIds));
+        Query<ValueObject<VObject>> query = QueryFactory.in(getAttr(layout, Fields.VObject.id), keys.nextIds(objIds, maxInIds));
         asStream(objects, query, options).distinct().forEach(o -> bh.consume(o));
     }
+
+    @Benchmark
+    public void queryInBatch(Blackhole bh) {
+        MultiGet.forEach(objectById, keys.nextIds(objIds, maxInIds), false, o -> bh.consume(o));
+    }
+
+    @Benchmark
+    public void queryInBatchSorted(Blackhole bh) {
+        MultiGet.forEach(objectById, keys.nextIds(objIds, maxInIds), true, o -> bh.consume(o));
+    }
+
+    @Benchmark
+    public void queryInBatchStream(Blackhole bh) {
+        MultiGet.stream(objectById, keys.nextIds(objIds, maxInIds), false).forEach(o -> bh.consume(o));
+    }
 }
@@ -0,0 +1,148 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.navigable.NavigableIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.EngineThresholds;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Range queries on lvalue: {@link NavigableIndex} vs {@link LongRangeIndex}. lvalue is uniform in [0, totalObjects),
+ * i.e. a range of totalObjects * selectivity values matches that share of objects.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class RangeTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    private static final int TOP = 10;
+
+    @Param({
+            "1000000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "0.0001", "0.001", "0.01", "0.1"
+    })
+    private double selectivity;
+
+    @Param({
+            "NAVIGABLE", "LONG_RANGE"
+    })
+    private RangeIndex index;
+
+    // low ends of ranges, misses match no values, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private ValueObject<VObject>[] rows;
+    private SimpleAttribute<ValueObject<VObject>, Long> lvalue;
+    private QueryOptions options;
+    private QueryOptions topOptions;
+    private int width;
+    private Workload lows;
+
+    public enum RangeIndex {
+        NAVIGABLE, LONG_RANGE
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        lvalue = getAttr(layout, VObject.lvalue);
+        width = Math.max(1, (int) (totalObjects * selectivity));
+        lows = Workload.of(distribution, totalObjects - width + 1);
+        rows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        for (int i = 0; i < totalObjects; i++) {
+            rows[i] = VObject.newObject(layout, 1000);
+            rows[i].setValue(VObject.lvalue, (long) Sequence.random(totalObjects));
+        }
+        objects = new ConcurrentIndexedCollection<>();
+        objects.addIndex(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+        objects.addAll(Arrays.asList(rows));
+        long heap = Heap.used();
+        if (index == RangeIndex.NAVIGABLE) {
+            objects.addIndex(NavigableIndex.onAttribute(lvalue));
+        } else {
+            objects.addIndex(LongRangeIndex.onAttribute(lvalue));
+        }
+        Heap.report("index", heap, totalObjects);
+        options = new QueryOptions();
+        topOptions = queryOptions(orderBy(descending(lvalue)),
+                applyThresholds(threshold(EngineThresholds.INDEX_ORDERING_SELECTIVITY, 1.0)));
+    }
+
+    private Query<ValueObject<VObject>> randomRange() {
+        int low = lows.next();
+        // values are non negative
+        long from = low < 0 ? low - width : low;
+        return between(lvalue, from, from + width - 1);
+    }
+
+    @Benchmark
+    public void countRange(Blackhole bh) {
+        bh.consume(objects.retrieve(randomRange(), options).size());
+    }
+
+    @Benchmark
+    public void iterateRange(Blackhole bh) {
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(randomRange(), options);
+        try {
+            long sum = 0;
+            for (ValueObject<VObject> object : rs) {
+                sum += object.getId();
+            }
+            bh.consume(sum);
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Top N objects with lvalue greater than a random value, ordered by the query engine with the index
+     */
+    @Benchmark
+    public void topGreaterThan(Blackhole bh) {
+        int low = lows.next();
+        Query<ValueObject<VObject>> query = greaterThan(lvalue, low < 0 ? (long) totalObjects : low);
+        ResultSet<ValueObject<VObject>> rs = objects.retrieve(query, topOptions);
+        try {
+            Iterator<ValueObject<VObject>> iterator = rs.iterator();
+            for (int i = 0; i < TOP && iterator.hasNext(); i++) {
+                bh.consume(iterator.next());
+            }
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Moves a random object to a new lvalue
+     */
+    @Benchmark
+    public void update() {
+        ValueObject<VObject> object = Sequence.randomObject(rows);
+        objects.remove(object);
+        object.setValue(VObject.lvalue, (long) Sequence.random(totalObjects));
+        objects.add(object);
+    }
+}
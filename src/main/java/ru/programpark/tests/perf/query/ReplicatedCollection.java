@@ -0,0 +1,301 @@
+package ru.programpark.tests.perf.query;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+
+import java.io.Closeable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexed collection replicated to the other members of a JGroups cluster.
+ * <p>
+ * Writes go to the local collection right away and are serialized into a delta of removals and additions,
+ * which is multicast when it reaches the batch size, after the delay or on {@link #flush()}.
+ * Writes of a member are serialized, so replicas apply deltas of a member in its order. Replicas fold a delta
+ * into sets of removed and added objects, removing an object added by the same delta drops it from the added ones,
+ * and apply them with a single update of the local concurrent collection, readers are not blocked.
+ * <p>
+ * There is no state transfer: members joining later see only the following deltas.
+ */
+public class ReplicatedCollection<T extends Enum<T>> extends AbstractSet<ValueObject<T>>
+        implements IndexedCollection<ValueObject<T>>, Closeable {
+
+    private static final ThreadLocal<Kryo> kryo = ThreadLocal.withInitial(Kryo::new);
+    private static final ValueObjectSerializer serializer = new ValueObjectSerializer();
+    private static final byte REMOVE = 0;
+    private static final byte ADD = 1;
+
+    private final IndexedCollection<ValueObject<T>> local;
+    private final JChannel channel;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    private final Object lock = new Object();
+    // writes since the last flush, each one an operation byte followed by the object
+    private Output delta = new Output(256, -1);
+    private int writes;
+
+    /**
+     * @param maxDelay longest time a write waits for its delta, 0 to send deltas only when full or flushed
+     */
+    public ReplicatedCollection(IndexedCollection<ValueObject<T>> local, JChannel channel, String cluster,
+                                int batchSize, long maxDelay, TimeUnit unit) throws Exception {
+        this.local = local;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        channel.setDiscardOwnMessages(true);
+        channel.setReceiver(new ReceiverAdapter() {
+            @Override
+            public void receive(Message msg) {
+                apply(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            }
+        });
+        channel.connect(cluster);
+        if (maxDelay > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "flush " + cluster);
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, maxDelay, maxDelay, unit);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Channel of in-process members, all members of the JVM share the loopback transport
+     */
+    public static JChannel loopback() throws Exception {
+        return new JChannel(
+                new SHARED_LOOPBACK(),
+                new SHARED_LOOPBACK_PING(),
+                new NAKACK2(),
+                new UNICAST3(),
+                new STABLE(),
+                new GMS().setValue("join_timeout", 500L),
+                new FRAG2());
+    }
+
+    public int members() {
+        return channel.getView().size();
+    }
+
+    /**
+     * Sends writes collected so far
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (writes == 0) {
+                return;
+            }
+            Output output = delta;
+            // the channel may keep the buffer for retransmission
+            delta = new Output(256, -1);
+            writes = 0;
+            try {
+                channel.send(new Message(null, output.getBuffer(), 0, output.position()));
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to send delta", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+        }
+        flush();
+        channel.close();
+    }
+
+    private void append(byte operation, ValueObject<T> object) {
+        delta.writeByte(operation);
+        serializer.write(kryo.get(), delta, object);
+        writes++;
+    }
+
+    /**
+     * Deltas of the cluster carry rows of T only
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Enum<T>> ValueObject<T> read(Input input) {
+        return (ValueObject<T>) serializer.read(kryo.get(), input, ValueObjectSerializer.TYPE);
+    }
+
+    private void apply(byte[] buffer, int offset, int length) {
+        Input input = new Input(buffer, offset, length);
+        Set<ValueObject<T>> removed = new LinkedHashSet<>();
+        Set<ValueObject<T>> added = new LinkedHashSet<>();
+        while (input.position() < input.limit()) {
+            byte operation = input.readByte();
+            ValueObject<T> object = read(input);
+            if (operation == ADD) {
+                added.add(object);
+            } else if (!added.remove(object)) {
+                removed.add(object);
+            }
+        }
+        local.update(removed, added);
+    }
+
+    private static <O> boolean update(IndexedCollection<O> collection, Iterable<O> toRemove, Iterable<O> toAdd, QueryOptions options) {
+        return options == null ? collection.update(toRemove, toAdd) : collection.update(toRemove, toAdd, options);
+    }
+
+    /**
+     * @param options null for default options of the local collection
+     */
+    private boolean write(Iterable<ValueObject<T>> toRemove, Iterable<ValueObject<T>> toAdd, QueryOptions options) {
+        int size;
+        boolean modified = false;
+        synchronized (lock) {
+            for (ValueObject<T> object : toRemove) {
+                if (update(local, Collections.singleton(object), Collections.emptySet(), options)) {
+                    modified = true;
+                    append(REMOVE, object);
+                }
+            }
+            for (ValueObject<T> object : toAdd) {
+                if (update(local, Collections.emptySet(), Collections.singleton(object), options)) {
+                    modified = true;
+                    append(ADD, object);
+                }
+            }
+            size = writes;
+        }
+        if (size >= batchSize) {
+            flush();
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean update(Iterable<ValueObject<T>> objectsToRemove, Iterable<ValueObject<T>> objectsToAdd) {
+        return write(objectsToRemove, objectsToAdd, null);
+    }
+
+    @Override
+    public boolean update(Iterable<ValueObject<T>> objectsToRemove, Iterable<ValueObject<T>> objectsToAdd, QueryOptions queryOptions) {
+        return write(objectsToRemove, objectsToAdd, queryOptions);
+    }
+
+    @Override
+    public boolean add(ValueObject<T> object) {
+        return update(Collections.emptySet(), Collections.singleton(object));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object object) {
+        return update(Collections.singleton((ValueObject<T>) object), Collections.emptySet());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean addAll(Collection<? extends ValueObject<T>> objects) {
+        return update(Collections.emptySet(), (Collection<ValueObject<T>>) objects);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean removeAll(Collection<?> objects) {
+        return update((Collection<ValueObject<T>>) objects, Collections.emptySet());
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        List<ValueObject<T>> toRemove = new ArrayList<>();
+        for (ValueObject<T> object : local) {
+            if (!objects.contains(object)) {
+                toRemove.add(object);
+            }
+        }
+        return removeAll(toRemove);
+    }
+
+    @Override
+    public void clear() {
+        removeAll(new ArrayList<>(local));
+    }
+
+    /**
+     * Iterator of the local collection, does not support removal
+     */
+    @Override
+    public Iterator<ValueObject<T>> iterator() {
+        Iterator<ValueObject<T>> iterator = local.iterator();
+        return new Iterator<ValueObject<T>>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public ValueObject<T> next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return local.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return local.contains(o);
+    }
+
+    @Override
+    public ResultSet<ValueObject<T>> retrieve(Query<ValueObject<T>> query) {
+        return local.retrieve(query);
+    }
+
+    @Override
+    public ResultSet<ValueObject<T>> retrieve(Query<ValueObject<T>> query, QueryOptions queryOptions) {
+        return local.retrieve(query, queryOptions);
+    }
+
+    @Override
+    public void addIndex(Index<ValueObject<T>> index) {
+        local.addIndex(index);
+    }
+
+    @Override
+    public void addIndex(Index<ValueObject<T>> index, QueryOptions queryOptions) {
+        local.addIndex(index, queryOptions);
+    }
+
+    @Override
+    public Iterable<Index<ValueObject<T>>> getIndexes() {
+        return local.getIndexes();
+    }
+}
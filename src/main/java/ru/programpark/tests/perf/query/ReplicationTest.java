@@ -0,0 +1,170 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * VObject collection replicated with {@link ReplicatedCollection} to members in the same JVM over the shared loopback:
+ * writes on the first member, reads on the last one.
+ * <ul>
+ * <li>write: replacing a row on the first member, deltas are sent when full</li>
+ * <li>replicationLag: replacing a row, flushing and waiting until the last member sees it</li>
+ * <li>readWhileWriting: reads on the last member while the first one writes, vs read without writes</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ReplicationTest {
+
+    private static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    @Param({
+            "2", "3", "5"
+    })
+    private int members;
+
+    @Param({
+            "1", "64", "1024"
+    })
+    private int batchSize;
+
+    @Param({
+            "100000"
+    })
+    private int totalObjects;
+
+    // rows of reads, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private List<ReplicatedCollection<VObject>> cluster;
+    private ReplicatedCollection<VObject> first;
+    private ReplicatedCollection<VObject> last;
+    private ValueObject<VObject>[] rows;
+    private String[] svalues;
+    private Long[] lvalues;
+    private Workload keys;
+
+    @Setup
+    public void setUp() throws Exception {
+        String name = "vobjects-" + System.nanoTime();
+        cluster = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            IndexedCollection<ValueObject<VObject>> local = new ConcurrentIndexedCollection<>();
+            local.addIndex(UniqueIndex.onAttribute(getAttr(layout, VObject.id)));
+            local.addIndex(HashIndex.onAttribute(getAttr(layout, VObject.cncId)));
+            cluster.add(new ReplicatedCollection<>(local, ReplicatedCollection.loopback(), name, batchSize, 10, TimeUnit.MILLISECONDS));
+        }
+        first = cluster.get(0);
+        last = cluster.get(members - 1);
+        if (last.members() != members) {
+            throw new IllegalStateException("Expected " + members + " members, got " + last.members());
+        }
+        svalues = generate("s", maxCnc() / 100);
+        lvalues = generate(maxCnc() / 10);
+        keys = Workload.of(distribution, totalObjects);
+        rows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        for (int i = 0; i < totalObjects; i++) {
+            rows[i] = newRow();
+        }
+        List<ValueObject<VObject>> all = new ArrayList<>(totalObjects);
+        Collections.addAll(all, rows);
+        first.addAll(all);
+        first.flush();
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (cluster.stream().anyMatch(member -> member.size() != totalObjects)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Replicas are not loaded");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        cluster.forEach(ReplicatedCollection::close);
+    }
+
+    private int maxCnc() {
+        return (totalObjects * 10) / 100;
+    }
+
+    private ValueObject<VObject> newRow() {
+        ValueObject<VObject> object = VObject.newObject(layout, maxCnc());
+        object.setValue(VObject.lvalue, random(lvalues));
+        object.setValue(VObject.svalue, random(svalues));
+        return object;
+    }
+
+    /**
+     * Replaces a random row with a new one, single writer
+     */
+    private ValueObject<VObject> replace() {
+        int i = Sequence.random(totalObjects);
+        ValueObject<VObject> row = newRow();
+        first.update(Collections.singleton(rows[i]), Collections.singleton(row));
+        rows[i] = row;
+        return row;
+    }
+
+    /**
+     * Reads a row by id, a negative id for a miss
+     */
+    private ValueObject<VObject> read(ReplicatedCollection<VObject> member) {
+        int i = keys.next();
+        Long id = i < 0 ? Long.valueOf(i) : rows[i].getId();
+        try (ResultSet<ValueObject<VObject>> rs = member.retrieve(equal(getAttr(layout, VObject.id), id))) {
+            return rs.isEmpty() ? null : rs.iterator().next();
+        }
+    }
+
+    @Benchmark
+    public ValueObject<VObject> write() {
+        return replace();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public ValueObject<VObject> replicationLag() {
+        ValueObject<VObject> row = replace();
+        first.flush();
+        while (!last.contains(row)) {
+            Thread.yield();
+        }
+        return row;
+    }
+
+    @Benchmark
+    public ValueObject<VObject> read() {
+        return read(last);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    public ValueObject<VObject> readReplica() {
+        return read(last);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    public ValueObject<VObject> writeFirst() {
+        return replace();
+    }
+}
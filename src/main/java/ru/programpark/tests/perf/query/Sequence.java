@@ -6,24 +6,27 @@ import com.googlecode.cqengine.query.option.QueryOptions;
 import com.googlecode.cqengine.resultset.ResultSet;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 /**
  * Created by kozyr on 14.11.2016.
+ * <p>
+ * Safe for concurrent benchmarks: keys are unique across threads, random numbers come from a generator per thread.
  */
 public class Sequence {
-    private static final Random r = new Random(System.currentTimeMillis());
-    volatile static private long counter = 0;
+    private static final AtomicLong counter = new AtomicLong();
 
     public static long next() {
-        return counter += 1;
+        return counter.incrementAndGet();
     }
 
     public static int random(int length) {
-        return r.nextInt(length);
+        return ThreadLocalRandom.current().nextInt(length);
     }
 
     public static List<Long> randomList(Long[] ids, int size) {
@@ -39,6 +42,25 @@ public class Sequence {
         return ids[random];
     }
 
+    /**
+     * @return first object of the result set, null if it is empty, i.e. for missing keys
+     */
+    public static <T> T first(ResultSet<T> rs) {
+        Iterator<T> iterator = rs.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * @return first object of the result set, null if it is empty; the result set is closed
+     */
+    public static <T> T firstAndClose(ResultSet<T> rs) {
+        try {
+            return first(rs);
+        } finally {
+            rs.close();
+        }
+    }
+
     public static <T> Stream<T> asStream(ResultSet<T> rs) {
         return StreamSupport.stream(rs.spliterator(), false);
     }
@@ -46,4 +68,8 @@ public class Sequence {
     public static <T> Stream<T> asStream(IndexedCollection<T> second, Query<T> equal, QueryOptions options) {
         return asStream(second.retrieve(equal, options));
     }
+
+    public static <T> Stream<T> asStream(IndexedCollection<T> second, Query<T> query, QueryOptions options, boolean parallel) {
+        return parallel ? QuerySpliterator.stream(second, query, options, true) : asStream(second, query, options);
+    }
 }
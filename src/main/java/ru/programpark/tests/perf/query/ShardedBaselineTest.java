@@ -0,0 +1,159 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.hash.HashIndex;
+import com.googlecode.cqengine.index.unique.UniqueIndex;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static com.googlecode.cqengine.query.QueryFactory.*;
+import static ru.programpark.tests.perf.query.Fields.*;
+import static ru.programpark.tests.perf.query.Sequence.asStream;
+
+/**
+ * Oics of {@link QueryExistsInTest} (HASH, HEAP, PRIMITIVE) in a single ConcurrentIndexedCollection, the baseline of
+ * {@link ShardedTest}. replaceOic adds an oic and removes the oldest one of the thread, run it with -t.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ShardedBaselineTest {
+
+    static final ValueObject.Layout layout = ValueObject.Layout.PRIMITIVE;
+
+    // oics added by a thread before it removes its oldest ones
+    private static final int OWN_OICS = 1024;
+
+    // 1.5M oics
+    @Param({
+            "500000"
+    })
+    private int totalObjects;
+
+    @Param({
+            "50", "1000"
+    })
+    private int totalConcepts;
+
+    @Param({
+            "10000"
+    })
+    private int totalContexts;
+
+    @Param({
+            "3"
+    })
+    private int maxCtx;
+
+    // contexts and concepts of oic queries, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private IndexedCollection<ValueObject<VObject>> objects;
+    private IndexedCollection<ValueObject<ObjectInContext>> oics;
+    private ValueObject<VObject>[] objectRows;
+    private ValueObject<Context>[] ctxes;
+    private Long[] ctxIds;
+    private Workload ctxKeys;
+    private Workload cncKeys;
+    private LongFunction<ValueObject<VObject>> objectById;
+    private QueryOptions options;
+
+    /**
+     * Oics of the thread in order of addition
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private final ArrayDeque<ValueObject<ObjectInContext>> own = new ArrayDeque<>(OWN_OICS);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ctxes = (ValueObject<Context>[]) new ValueObject[totalContexts];
+        ctxIds = new Long[totalContexts];
+        for (int i = 0; i < totalContexts; i++) {
+            ctxes[i] = Context.newObject(layout, null, "ctx" + i);
+            ctxIds[i] = ctxes[i].getId();
+        }
+        objectRows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        List<ValueObject<ObjectInContext>> oicBatch = new ArrayList<>(totalObjects * maxCtx);
+        for (int i = 0; i < totalObjects; i++) {
+            objectRows[i] = VObject.newObject(layout, totalConcepts);
+            for (int j = 0; j < maxCtx; j++) {
+                oicBatch.add(ObjectInContext.newObject(layout, objectRows[i], random(ctxes)));
+            }
+        }
+        objects = new ConcurrentIndexedCollection<>();
+        BulkLoad.load(objects, Arrays.asList(objectRows), Collections.<Index<ValueObject<VObject>>>singletonList(
+                UniqueIndex.onAttribute(getAttr(layout, VObject.id))));
+        long heap = Heap.used();
+        oics = newOics();
+        BulkLoad.load(oics, oicBatch, oicIndices());
+        Heap.report("oics", heap, oicBatch.size());
+        ctxKeys = Workload.of(distribution, totalContexts);
+        cncKeys = Workload.of(distribution, totalConcepts);
+        options = new QueryOptions();
+        objectById = HashJoin.uniqueLookup(objects, getAttr(layout, VObject.id), options);
+    }
+
+    protected IndexedCollection<ValueObject<ObjectInContext>> newOics() {
+        return new ConcurrentIndexedCollection<>();
+    }
+
+    private List<Index<ValueObject<ObjectInContext>>> oicIndices() {
+        List<Index<ValueObject<ObjectInContext>>> indices = new ArrayList<>();
+        indices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.ctxId)));
+        indices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.cncId)));
+        indices.add(HashIndex.onAttribute(getAttr(layout, ObjectInContext.objId)));
+        return indices;
+    }
+
+    private Query<ValueObject<ObjectInContext>> oicQuery() {
+        return and(
+                equal(getAttr(layout, ObjectInContext.ctxId), ctxKeys.nextId(ctxIds)),
+                // concepts are 0..totalConcepts - 1, misses are negative
+                equal(getAttr(layout, ObjectInContext.cncId), (long) cncKeys.next()));
+    }
+
+    @Benchmark
+    public void countOic(Blackhole bh) {
+        bh.consume(oics.retrieve(oicQuery(), options).size());
+    }
+
+    @Benchmark
+    public void queryFirstByOic(Blackhole bh) {
+        Query<ValueObject<VObject>> existsInOic = existsIn(oics, getAttr(layout, VObject.id), getAttr(layout, ObjectInContext.objId), oicQuery());
+        bh.consume(asStream(objects, existsInOic, options).findFirst());
+    }
+
+    @Benchmark
+    public void joinFirstByOic(Blackhole bh) {
+        bh.consume(HashJoin.existsIn(objectById, oics, getAttr(layout, ObjectInContext.objId),
+                oicQuery(), options).findFirst());
+    }
+
+    @Benchmark
+    public ValueObject<ObjectInContext> replaceOic(Writer writer) {
+        ValueObject<ObjectInContext> oic = ObjectInContext.newObject(layout, random(objectRows), random(ctxes));
+        boolean full = writer.own.size() >= OWN_OICS;
+        oics.update(full ? Collections.singleton(writer.own.poll()) : Collections.emptySet(), Collections.singleton(oic));
+        writer.own.add(oic);
+        return oic;
+    }
+}
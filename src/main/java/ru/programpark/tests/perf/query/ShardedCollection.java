@@ -0,0 +1,617 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.AttributeIndex;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.logical.And;
+import com.googlecode.cqengine.query.logical.Or;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.query.simple.In;
+import com.googlecode.cqengine.resultset.ResultSet;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntPredicate;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * Indexed collection hashing objects across shards, i.e. ConcurrentIndexedCollections of their own, by a long
+ * partition key such as ObjectInContext.cncId or id. Index maintenance of writes is spread over the shards, bulk writes
+ * go to the shards in parallel.
+ * <p>
+ * A query pinning the partition key, i.e. equal() or in() on it alone or in an and(), is answered by the shards of
+ * the keys, a single one goes as is. Other queries are retrieved from every shard and iterated in parallel on a fork-join
+ * pool: each shard is read ahead in batches, growing from a small first one so that findFirst() does not scan all
+ * shards to the end, and batches are merged lazily in shard order. size() of the merged result is summed in parallel.
+ * <p>
+ * An added index goes to every shard as an instance of its own, {@link #getIndexes()} are the instances of all shards.
+ * A lookup in one of them misses the other shards, {@link HashJoin#uniqueLookup} goes by {@link #uniqueLookup}.
+ * Writes of several shards are not atomic.
+ */
+public class ShardedCollection<O> extends AbstractSet<O> implements IndexedCollection<O> {
+
+    // shards are a bit set of a long in routing
+    public static final int MAX_SHARDS = Long.SIZE;
+    private static final int FIRST_BATCH = 16;
+    private static final int MAX_BATCH = 1024;
+
+    private final SimpleAttribute<O, Long> partitionKey;
+    private final IndexedCollection<O>[] shards;
+    private final long allShards;
+    private final ForkJoinPool pool;
+    private final QueryOptions keyOptions = new QueryOptions();
+
+    public ShardedCollection(SimpleAttribute<O, Long> partitionKey, int shards) {
+        this(partitionKey, shards, ConcurrentIndexedCollection::new, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param partitionKey attribute hashed to a shard
+     * @param shards       1 to {@link #MAX_SHARDS}
+     * @param shardFactory empty collection of a shard, e.g. with a persistence of its own
+     * @param pool         runs parallel writes and reads of the shards
+     */
+    public ShardedCollection(SimpleAttribute<O, Long> partitionKey, int shards,
+                             Supplier<? extends IndexedCollection<O>> shardFactory, ForkJoinPool pool) {
+        if (shards < 1 || shards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shards out of 1.." + MAX_SHARDS + ": " + shards);
+        }
+        this.partitionKey = partitionKey;
+        this.shards = (IndexedCollection<O>[]) new IndexedCollection[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = shardFactory.get();
+        }
+        this.allShards = shards == MAX_SHARDS ? -1L : (1L << shards) - 1;
+        this.pool = pool;
+    }
+
+    public SimpleAttribute<O, Long> getPartitionKey() {
+        return partitionKey;
+    }
+
+    public List<IndexedCollection<O>> getShards() {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * Fibonacci hash of the key reduced to the shard count by a multiply and shift
+     */
+    int shard(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (((hash >>> 32) * shards.length) >>> 32);
+    }
+
+    private int shardOf(Object object) {
+        return shard(LongAttribute.longValue(partitionKey, (O) object, keyOptions));
+    }
+
+    /**
+     * @return bit set of the shards that may have objects matching the query
+     */
+    long shards(Query<O> query) {
+        if (query instanceof Equal && partitionKey.equals(((Equal<O, ?>) query).getAttribute())) {
+            return 1L << shard(((Number) ((Equal<O, ?>) query).getValue()).longValue());
+        }
+        if (query instanceof In && partitionKey.equals(((In<O, ?>) query).getAttribute())) {
+            long mask = 0;
+            for (Object value : ((In<O, ?>) query).getValues()) {
+                mask |= 1L << shard(((Number) value).longValue());
+            }
+            return mask;
+        }
+        if (query instanceof And) {
+            long mask = allShards;
+            for (Query<O> child : ((And<O>) query).getChildQueries()) {
+                mask &= shards(child);
+            }
+            return mask;
+        }
+        if (query instanceof Or) {
+            long mask = 0;
+            for (Query<O> child : ((Or<O>) query).getChildQueries()) {
+                mask |= shards(child);
+            }
+            return mask;
+        }
+        return allShards;
+    }
+
+    /**
+     * Objects by shard, null for shards without objects
+     */
+    private List<O>[] partition(Iterable<?> objects) {
+        List<O>[] parts = (List<O>[]) new List[shards.length];
+        for (Object object : objects) {
+            int shard = shardOf(object);
+            if (parts[shard] == null) {
+                parts[shard] = new ArrayList<>();
+            }
+            parts[shard].add((O) object);
+        }
+        return parts;
+    }
+
+    /**
+     * Runs the action for the shards of the mask on the pool, one shard runs in the calling thread
+     *
+     * @return whether the action returned true for any shard
+     */
+    private boolean parallel(long mask, IntPredicate action) {
+        if (Long.bitCount(mask) == 1) {
+            return action.test(Long.numberOfTrailingZeros(mask));
+        }
+        List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(Long.bitCount(mask));
+        for (long rest = mask; rest != 0; rest &= rest - 1) {
+            int shard = Long.numberOfTrailingZeros(rest);
+            tasks.add(pool.submit(() -> action.test(shard)));
+        }
+        boolean result = false;
+        for (ForkJoinTask<Boolean> task : tasks) {
+            result |= task.join();
+        }
+        return result;
+    }
+
+    private static long mask(Object[] parts) {
+        long mask = 0;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] != null) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query) {
+        return retrieve(query, new QueryOptions());
+    }
+
+    @Override
+    public ResultSet<O> retrieve(Query<O> query, QueryOptions queryOptions) {
+        long mask = shards(query);
+        if (Long.bitCount(mask) == 1) {
+            return shards[Long.numberOfTrailingZeros(mask)].retrieve(query, queryOptions);
+        }
+        return new MergedResultSet(mask, query, queryOptions);
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd) {
+        return update(objectsToRemove, objectsToAdd, new QueryOptions());
+    }
+
+    @Override
+    public boolean update(Iterable<O> objectsToRemove, Iterable<O> objectsToAdd, QueryOptions queryOptions) {
+        List<O>[] removed = partition(objectsToRemove);
+        List<O>[] added = partition(objectsToAdd);
+        return parallel(mask(removed) | mask(added), shard -> shards[shard].update(
+                removed[shard] == null ? Collections.emptyList() : removed[shard],
+                added[shard] == null ? Collections.emptyList() : added[shard], queryOptions));
+    }
+
+    @Override
+    public boolean add(O object) {
+        return shards[shardOf(object)].add(object);
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        return shards[shardOf(object)].remove(object);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends O> objects) {
+        List<O>[] parts = partition(objects);
+        return parallel(mask(parts), shard -> shards[shard].addAll(parts[shard]));
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> objects) {
+        List<O>[] parts = partition(objects);
+        return parallel(mask(parts), shard -> shards[shard].removeAll(parts[shard]));
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> objects) {
+        return parallel(allShards, shard -> shards[shard].retainAll(objects));
+    }
+
+    @Override
+    public void clear() {
+        parallel(allShards, shard -> {
+            shards[shard].clear();
+            return true;
+        });
+    }
+
+    @Override
+    public Iterator<O> iterator() {
+        return new Iterator<O>() {
+            private int shard;
+            private Iterator<O> current = shards[0].iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard + 1 < shards.length) {
+                    current = shards[++shard].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public O next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                current.remove();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (IndexedCollection<O> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return shards[shardOf(o)].contains(o);
+    }
+
+    /**
+     * Adds the index to the first shard and a new index of the same kind on the same attribute to each other one,
+     * see {@link #copyOf(Index)}, shards build them in parallel
+     */
+    @Override
+    public void addIndex(Index<O> index) {
+        addIndex(index, new QueryOptions());
+    }
+
+    @Override
+    public void addIndex(Index<O> index, QueryOptions queryOptions) {
+        Index<O>[] indexes = (Index<O>[]) new Index[shards.length];
+        indexes[0] = index;
+        for (int i = 1; i < shards.length; i++) {
+            indexes[i] = copyOf(index);
+        }
+        parallel(allShards, shard -> {
+            shards[shard].addIndex(indexes[shard], queryOptions);
+            return true;
+        });
+    }
+
+    /**
+     * Adds an index of the supplier to every shard, for indexes {@link #copyOf(Index)} can't create
+     */
+    public void addIndex(Supplier<? extends Index<O>> index) {
+        parallel(allShards, shard -> {
+            shards[shard].addIndex(index.get());
+            return true;
+        });
+    }
+
+    /**
+     * New empty index by the public static onAttribute(attribute) factory of the index class, i.e. HashIndex,
+     * UniqueIndex, NavigableIndex, {@link LongUniqueIndex}. Options of the original, e.g. map factories, are not copied.
+     */
+    static <O> Index<O> copyOf(Index<O> index) {
+        if (index instanceof AttributeIndex) {
+            Attribute<O, ?> attribute = ((AttributeIndex<?, O>) index).getAttribute();
+            for (Method method : index.getClass().getMethods()) {
+                if (Modifier.isStatic(method.getModifiers()) && method.getName().equals("onAttribute")
+                        && method.getParameterCount() == 1 && method.getParameterTypes()[0].isInstance(attribute)
+                        && index.getClass().isAssignableFrom(method.getReturnType())) {
+                    try {
+                        return (Index<O>) method.invoke(null, attribute);
+                    } catch (ReflectiveOperationException e) {
+                        throw new IllegalStateException("Failed to copy index " + index, e);
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("No onAttribute() factory to copy per shard, add a supplier of it: " + index);
+    }
+
+    /**
+     * Indexes of every shard, each of them has the objects of its shard only. Look objects up by the collection or
+     * by {@link #uniqueLookup}.
+     */
+    @Override
+    public Iterable<Index<O>> getIndexes() {
+        List<Index<O>> indexes = new ArrayList<>();
+        for (IndexedCollection<O> shard : shards) {
+            for (Index<O> index : shard.getIndexes()) {
+                indexes.add(index);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * {@link HashJoin#uniqueLookup} of the shard of the key by the partition key, of every shard in turn by other keys
+     */
+    public LongFunction<O> uniqueLookup(SimpleAttribute<O, Long> key, QueryOptions options) {
+        LongFunction<O>[] lookups = (LongFunction<O>[]) new LongFunction[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            lookups[i] = HashJoin.uniqueLookup(shards[i], key, options);
+        }
+        if (key.equals(partitionKey)) {
+            return k -> lookups[shard(k)].apply(k);
+        }
+        return k -> {
+            for (LongFunction<O> lookup : lookups) {
+                O object = lookup.apply(k);
+                if (object != null) {
+                    return object;
+                }
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Results of the shards of a mask, null for other shards
+     */
+    private class MergedResultSet extends ResultSet<O> {
+        private final ResultSet<O>[] resultSets;
+        private final Query<O> query;
+        private final QueryOptions queryOptions;
+        // guarded by this: fetches of the iterators, fetches running on the pool, closed is also read by them
+        private final List<Fetch> fetches = new ArrayList<>();
+        private int running;
+        private volatile boolean closed;
+
+        MergedResultSet(long mask, Query<O> query, QueryOptions queryOptions) {
+            this.resultSets = (ResultSet<O>[]) new ResultSet[shards.length];
+            for (long rest = mask; rest != 0; rest &= rest - 1) {
+                int shard = Long.numberOfTrailingZeros(rest);
+                resultSets[shard] = shards[shard].retrieve(query, queryOptions);
+            }
+            this.query = query;
+            this.queryOptions = queryOptions;
+        }
+
+        @Override
+        public Iterator<O> iterator() {
+            return new Merge();
+        }
+
+        @Override
+        public boolean contains(O object) {
+            ResultSet<O> resultSet = resultSets[shardOf(object)];
+            return resultSet != null && resultSet.contains(object);
+        }
+
+        @Override
+        public boolean matches(O object) {
+            return query.matches(object, queryOptions);
+        }
+
+        @Override
+        public Query<O> getQuery() {
+            return query;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            int cost = 0;
+            for (ResultSet<O> resultSet : resultSets) {
+                if (resultSet != null) {
+                    cost = Math.max(cost, resultSet.getRetrievalCost());
+                }
+            }
+            return cost;
+        }
+
+        @Override
+        public int getMergeCost() {
+            long cost = 0;
+            for (ResultSet<O> resultSet : resultSets) {
+                if (resultSet != null) {
+                    cost += resultSet.getMergeCost();
+                }
+            }
+            return (int) Math.min(Integer.MAX_VALUE, cost);
+        }
+
+        @Override
+        public int size() {
+            List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+            for (ResultSet<O> resultSet : resultSets) {
+                if (resultSet != null) {
+                    tasks.add(pool.submit(() -> resultSet.size()));
+                }
+            }
+            int size = 0;
+            for (ForkJoinTask<Integer> task : tasks) {
+                size += task.join();
+            }
+            return size;
+        }
+
+        /**
+         * Cancels batches not started yet and waits for the running ones, which stop at the next object, so that
+         * nothing reads the result sets of the shards once they are closed
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                for (Fetch fetch : fetches) {
+                    if (fetch.next != null) {
+                        fetch.next.cancel(false);
+                        fetch.next = null;
+                    }
+                }
+                boolean interrupted = false;
+                while (running > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            for (ResultSet<O> resultSet : resultSets) {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+            }
+        }
+
+        /**
+         * Read ahead of a shard: the next batch is fetched on the pool while the current one is consumed. Batches are
+         * submitted and cancelled under the lock of the result set.
+         */
+        private class Fetch {
+            private final ResultSet<O> resultSet;
+            // used by one batch at a time
+            private Iterator<O> iterator;
+            private int batch = FIRST_BATCH;
+            // guarded by the result set
+            private ForkJoinTask<List<O>> next;
+
+            Fetch(ResultSet<O> resultSet) {
+                this.resultSet = resultSet;
+            }
+
+            private List<O> fetch() {
+                synchronized (MergedResultSet.this) {
+                    if (closed) {
+                        return Collections.emptyList();
+                    }
+                    running++;
+                }
+                try {
+                    if (iterator == null) {
+                        iterator = resultSet.iterator();
+                    }
+                    List<O> objects = new ArrayList<>(batch);
+                    while (objects.size() < batch && !closed && iterator.hasNext()) {
+                        objects.add(iterator.next());
+                    }
+                    return objects;
+                } finally {
+                    synchronized (MergedResultSet.this) {
+                        if (--running == 0) {
+                            MergedResultSet.this.notifyAll();
+                        }
+                    }
+                }
+            }
+
+            /**
+             * @return next batch, null when the shard is exhausted or the result set is closed
+             */
+            List<O> take() {
+                ForkJoinTask<List<O>> task;
+                synchronized (MergedResultSet.this) {
+                    task = next;
+                }
+                if (task == null) {
+                    return null;
+                }
+                List<O> objects;
+                try {
+                    objects = task.join();
+                } catch (CancellationException e) {
+                    return null;
+                }
+                synchronized (MergedResultSet.this) {
+                    if (objects.size() == batch && !closed) {
+                        batch = Math.min(MAX_BATCH, batch * 2);
+                        next = pool.submit(this::fetch);
+                    } else {
+                        next = null;
+                    }
+                }
+                return objects;
+            }
+        }
+
+        private class Merge implements Iterator<O> {
+            private final List<Fetch> shardFetches = new ArrayList<>();
+            private int shard;
+            private List<O> batch = Collections.emptyList();
+            private int position;
+
+            Merge() {
+                synchronized (MergedResultSet.this) {
+                    for (ResultSet<O> resultSet : resultSets) {
+                        if (resultSet != null) {
+                            Fetch fetch = new Fetch(resultSet);
+                            if (!closed) {
+                                fetch.next = pool.submit(fetch::fetch);
+                            }
+                            shardFetches.add(fetch);
+                        }
+                    }
+                    fetches.addAll(shardFetches);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (position == batch.size()) {
+                    if (shard == shardFetches.size()) {
+                        return false;
+                    }
+                    List<O> objects = shardFetches.get(shard).take();
+                    if (objects == null) {
+                        shard++;
+                        objects = Collections.emptyList();
+                    }
+                    batch = objects;
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public O next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.get(position++);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Benchmarks of {@link ShardedBaselineTest} on oics in a {@link ShardedCollection} partitioned by an attribute of
+ * ObjectInContext, 1 shard is the single collection behind the routing. Partitioned by cncId countOic and joinFirstByOic
+ * go to one shard, by objId the probes of existsIn do, by id every query fans out.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ShardedTest extends ShardedBaselineTest {
+
+    @Param({
+            "1", "2", "4", "8", "16", "32"
+    })
+    private int shards;
+
+    @Param({
+            "CNC_ID", "OBJ_ID", "ID"
+    })
+    private Partition partition;
+
+    public enum Partition {
+        CNC_ID(ObjectInContext.cncId), OBJ_ID(ObjectInContext.objId), ID(ObjectInContext.id);
+
+        private final ObjectInContext attribute;
+
+        Partition(ObjectInContext attribute) {
+            this.attribute = attribute;
+        }
+    }
+
+    @Override
+    protected IndexedCollection<ValueObject<ObjectInContext>> newOics() {
+        return new ShardedCollection<>(getAttr(layout, partition.attribute), shards);
+    }
+}
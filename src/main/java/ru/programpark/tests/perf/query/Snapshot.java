@@ -0,0 +1,431 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.persistence.Persistence;
+import ru.programpark.tests.perf.query.ValueObject.Slots;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Memory mapped snapshot of value objects and of key to row indexes on their long fields.
+ * Opening maps the file and reads the header only: rows are materialized as {@link PrimitiveValueObject}s
+ * on first access, index lookups probe the mapped tables. Raw lookups go by {@link #get} and {@link #count}.
+ * A collection restored over {@link #persistence} with {@link #index}es of the indexed fields queries through
+ * the mapped tables, nothing is copied or indexed; it is read-only, writes need a collection filled from {@link #rows()}.
+ * <p>
+ * Null longs are marked and not indexed, they are materialized as 0 like unset fields of PrimitiveValueObject.
+ * Reference fields are strings.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ * header:  magic, version, type name, rows, longs and refs per row, index count
+ * longs:   rows * longs
+ * nulls:   rows * (longs + 7) / 8 bytes, bit of a slot set for null
+ * indexes: field ordinal, groups, capacity, keys[capacity], groups + 1 [capacity], starts[groups + 1], rows[starts[groups]]
+ * refs:    offsets[rows * refs] into the pool, -1 for null
+ * pool:    length, UTF-8 bytes
+ * </pre>
+ * A file is mapped as a single buffer, so it is limited to 2G.
+ */
+public class Snapshot<T extends Enum<T>> implements Closeable {
+
+    private static final int MAGIC = 0x564f534e;
+    private static final int VERSION = 2;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Slots slots;
+    private final int rows;
+    private final int longsAt;
+    private final int nullsAt;
+    private final int refsAt;
+    private final Map<T, Table> tables;
+    private final AtomicReferenceArray<ValueObject<T>> materialized;
+
+    private Snapshot(Class<T> type, FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slots = Fields.slotsOf(type);
+        int p = 0;
+        if (buffer.getInt(p) != MAGIC || buffer.getInt(p + 4) != VERSION) {
+            throw new IllegalArgumentException("Not a snapshot");
+        }
+        p += 8;
+        byte[] name = new byte[buffer.getInt(p)];
+        p += 4;
+        read(p, name);
+        p += name.length;
+        if (!type.getName().equals(new String(name, StandardCharsets.UTF_8))) {
+            throw new IllegalArgumentException("Snapshot of " + new String(name, StandardCharsets.UTF_8) + ", not " + type.getName());
+        }
+        rows = buffer.getInt(p);
+        if (buffer.getInt(p + 4) != slots.longs() || buffer.getInt(p + 8) != slots.refs()) {
+            throw new IllegalArgumentException("Fields of " + type.getName() + " changed since snapshot");
+        }
+        int count = buffer.getInt(p + 12);
+        p += 16;
+        longsAt = p;
+        p += rows * slots.longs() * 8;
+        nullsAt = p;
+        p += rows * nullBytes(slots.longs());
+        tables = new EnumMap<>(type);
+        for (int i = 0; i < count; i++) {
+            Table table = new Table(p);
+            tables.put(type.getEnumConstants()[buffer.getInt(p)], table);
+            p = table.end;
+        }
+        refsAt = p;
+        materialized = new AtomicReferenceArray<>(rows);
+    }
+
+    public static <T extends Enum<T>> Snapshot<T> open(Path file, Class<T> type) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Snapshot is larger than 2G: " + file);
+            }
+            return new Snapshot<>(type, channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param indexed long fields to index, i.e. fields of UniqueIndex and HashIndex of the collection
+     */
+    public static <T extends Enum<T>> void write(Path file, Class<T> type, Collection<? extends ValueObject<T>> objects,
+                                                 Collection<T> indexed) throws IOException {
+        Slots slots = Fields.slotsOf(type);
+        List<T> longFields = new ArrayList<>(Collections.nCopies(slots.longs(), null));
+        List<T> refFields = new ArrayList<>(Collections.nCopies(slots.refs(), null));
+        for (T field : type.getEnumConstants()) {
+            if (field.ordinal() < slots.size()) {
+                (slots.isLong(field) ? longFields : refFields).set(slots.slot(field), field);
+            }
+        }
+        List<ValueObject<T>> rows = new ArrayList<>(objects);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            byte[] name = type.getName().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeInt(rows.size());
+            out.writeInt(slots.longs());
+            out.writeInt(slots.refs());
+            out.writeInt(indexed.size());
+            long[][] columns = new long[longFields.size()][rows.size()];
+            boolean[][] nullColumns = new boolean[longFields.size()][rows.size()];
+            for (int row = 0; row < rows.size(); row++) {
+                ValueObject<T> object = rows.get(row);
+                for (int slot = 0; slot < columns.length; slot++) {
+                    Long value = (Long) object.getValue(longFields.get(slot));
+                    nullColumns[slot][row] = value == null;
+                    columns[slot][row] = value == null ? 0 : value;
+                    out.writeLong(columns[slot][row]);
+                }
+            }
+            byte[] nulls = new byte[nullBytes(columns.length)];
+            for (int row = 0; row < rows.size(); row++) {
+                Arrays.fill(nulls, (byte) 0);
+                for (int slot = 0; slot < columns.length; slot++) {
+                    if (nullColumns[slot][row]) {
+                        nulls[slot >>> 3] |= 1 << (slot & 7);
+                    }
+                }
+                out.write(nulls);
+            }
+            for (T field : indexed) {
+                if (!slots.isLong(field)) {
+                    throw new IllegalArgumentException("Only long fields are indexed: " + field);
+                }
+                writeIndex(out, field.ordinal(), columns[slots.slot(field)], nullColumns[slots.slot(field)]);
+            }
+            int offset = 0;
+            List<byte[]> pool = new ArrayList<>();
+            for (ValueObject<T> row : rows) {
+                for (T field : refFields) {
+                    Object value = row.getValue(field);
+                    if (value == null) {
+                        out.writeInt(-1);
+                    } else {
+                        if (!(value instanceof String)) {
+                            throw new IllegalArgumentException("Only string references are written: " + field + " is " + value.getClass().getName());
+                        }
+                        byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                        pool.add(bytes);
+                        out.writeInt(offset);
+                        offset += 4 + bytes.length;
+                    }
+                }
+            }
+            for (byte[] bytes : pool) {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static int nullBytes(int longs) {
+        return (longs + 7) / 8;
+    }
+
+    /**
+     * Rows grouped by key: open addressing table of distinct keys pointing to groups of rows, null rows are left out
+     */
+    private static void writeIndex(DataOutputStream out, int field, long[] column, boolean[] nulls) throws IOException {
+        long[] keys = new long[column.length];
+        int indexed = 0;
+        for (int row = 0; row < column.length; row++) {
+            if (!nulls[row]) {
+                keys[indexed++] = column[row];
+            }
+        }
+        Arrays.sort(keys, 0, indexed);
+        int groups = 0;
+        for (int i = 0; i < indexed; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[groups++] = keys[i];
+            }
+        }
+        int[] starts = new int[groups + 1];
+        for (int row = 0; row < column.length; row++) {
+            if (!nulls[row]) {
+                starts[Arrays.binarySearch(keys, 0, groups, column[row]) + 1]++;
+            }
+        }
+        for (int i = 0; i < groups; i++) {
+            starts[i + 1] += starts[i];
+        }
+        int[] rows = new int[indexed];
+        int[] next = Arrays.copyOf(starts, groups);
+        for (int row = 0; row < column.length; row++) {
+            if (!nulls[row]) {
+                rows[next[Arrays.binarySearch(keys, 0, groups, column[row])]++] = row;
+            }
+        }
+        int capacity = Integer.highestOneBit(Math.max(groups, 1) * 2 - 1) << 1;
+        int shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        long[] tableKeys = new long[capacity];
+        int[] tableGroups = new int[capacity];
+        for (int group = 0; group < groups; group++) {
+            int i = hash(keys[group], shift);
+            while (tableGroups[i] != 0) {
+                i = (i + 1) & (capacity - 1);
+            }
+            tableKeys[i] = keys[group];
+            tableGroups[i] = group + 1;
+        }
+        out.writeInt(field);
+        out.writeInt(groups);
+        out.writeInt(capacity);
+        for (long key : tableKeys) {
+            out.writeLong(key);
+        }
+        for (int group : tableGroups) {
+            out.writeInt(group);
+        }
+        for (int start : starts) {
+            out.writeInt(start);
+        }
+        for (int row : rows) {
+            out.writeInt(row);
+        }
+    }
+
+    private static int hash(long key, int shift) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public boolean isIndexed(T field) {
+        return tables.containsKey(field);
+    }
+
+    /**
+     * @return whether the long field of the row was null when written
+     */
+    public boolean isNull(int row, T field) {
+        int slot = slots.slot(field);
+        if (!slots.isLong(field)) {
+            throw new IllegalArgumentException("Not a long field: " + field);
+        }
+        return (buffer.get(nullsAt + row * nullBytes(slots.longs()) + (slot >>> 3)) & 1 << (slot & 7)) != 0;
+    }
+
+    /**
+     * @return object of the row, materialized on first access
+     */
+    public ValueObject<T> row(int row) {
+        ValueObject<T> object = materialized.get(row);
+        if (object == null) {
+            object = materialize(row);
+            if (!materialized.compareAndSet(row, null, object)) {
+                object = materialized.get(row);
+            }
+        }
+        return object;
+    }
+
+    /**
+     * @return first object with the key, null if there is none
+     */
+    public ValueObject<T> get(T field, long key) {
+        Table table = table(field);
+        int group = table.group(key);
+        return group < 0 ? null : row(table.row(table.start(group)));
+    }
+
+    public int count(T field, long key) {
+        Table table = table(field);
+        int group = table.group(key);
+        return group < 0 ? 0 : table.start(group + 1) - table.start(group);
+    }
+
+    public void forEach(T field, long key, Consumer<? super ValueObject<T>> action) {
+        Table table = table(field);
+        int group = table.group(key);
+        if (group >= 0) {
+            for (int i = table.start(group), end = table.start(group + 1); i < end; i++) {
+                action.accept(row(table.row(i)));
+            }
+        }
+    }
+
+    /**
+     * @param primaryKey indexed field identifying rows, i.e. id
+     * @return read-only persistence of a collection over the rows of the snapshot
+     */
+    public Persistence<ValueObject<T>, Long> persistence(T primaryKey, SimpleAttribute<ValueObject<T>, Long> attribute) {
+        return new SnapshotPersistence<>(this, table(primaryKey), attribute);
+    }
+
+    /**
+     * @return read-only index of a collection restored by {@link #persistence} probing the mapped table of the field
+     */
+    public SnapshotIndex<T> index(T field, SimpleAttribute<ValueObject<T>, Long> attribute) {
+        return new SnapshotIndex<>(this, table(field), attribute);
+    }
+
+    /**
+     * @return all rows, i.e. to fill a writable indexed collection with {@link BulkLoad}
+     */
+    public List<ValueObject<T>> rows() {
+        List<ValueObject<T>> result = new ArrayList<>(rows);
+        for (int row = 0; row < rows; row++) {
+            result.add(row(row));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private Table table(T field) {
+        Table table = tables.get(field);
+        if (table == null) {
+            throw new IllegalArgumentException("Field is not indexed: " + field);
+        }
+        return table;
+    }
+
+    private ValueObject<T> materialize(int row) {
+        PrimitiveValueObject<T> object = new PrimitiveValueObject<>(slots);
+        long[] longs = object.longs();
+        int p = longsAt + row * longs.length * 8;
+        for (int i = 0; i < longs.length; i++) {
+            longs[i] = buffer.getLong(p + i * 8);
+        }
+        Object[] refs = object.refs();
+        int poolAt = refsAt + rows * refs.length * 4;
+        for (int i = 0; i < refs.length; i++) {
+            int offset = buffer.getInt(refsAt + (row * refs.length + i) * 4);
+            if (offset >= 0) {
+                byte[] bytes = new byte[buffer.getInt(poolAt + offset)];
+                read(poolAt + offset + 4, bytes);
+                refs[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return object;
+    }
+
+    private void read(int p, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(p);
+        view.get(bytes);
+    }
+
+    /**
+     * Mapped key to rows section
+     */
+    class Table {
+        private final int groups;
+        private final int mask;
+        private final int shift;
+        private final int keysAt;
+        private final int groupsAt;
+        private final int startsAt;
+        private final int rowsAt;
+        private final int end;
+
+        Table(int p) {
+            groups = buffer.getInt(p + 4);
+            int capacity = buffer.getInt(p + 8);
+            mask = capacity - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+            keysAt = p + 12;
+            groupsAt = keysAt + capacity * 8;
+            startsAt = groupsAt + capacity * 4;
+            rowsAt = startsAt + (groups + 1) * 4;
+            end = rowsAt + start(groups) * 4;
+        }
+
+        /**
+         * @return group of the key, -1 if no row has it
+         */
+        int group(long key) {
+            for (int i = hash(key, shift); ; i = (i + 1) & mask) {
+                int group = buffer.getInt(groupsAt + i * 4);
+                if (group == 0) {
+                    return -1;
+                }
+                if (buffer.getLong(keysAt + i * 8) == key) {
+                    return group - 1;
+                }
+            }
+        }
+
+        int start(int group) {
+            return buffer.getInt(startsAt + group * 4);
+        }
+
+        int row(int i) {
+            return buffer.getInt(rowsAt + i * 4);
+        }
+    }
+}
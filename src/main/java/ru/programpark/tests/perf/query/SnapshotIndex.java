@@ -0,0 +1,171 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.AbstractAttributeIndex;
+import com.googlecode.cqengine.persistence.support.ObjectSet;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.Query;
+import com.googlecode.cqengine.query.option.QueryOptions;
+import com.googlecode.cqengine.query.simple.Equal;
+import com.googlecode.cqengine.resultset.ResultSet;
+import com.googlecode.cqengine.resultset.iterator.UnmodifiableIterator;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only index on a long field probing the mapped key to rows table of a {@link Snapshot}, see
+ * {@link Snapshot#index}. Nothing is built when the index is added, writes through the collection are rejected.
+ */
+public class SnapshotIndex<T extends Enum<T>> extends AbstractAttributeIndex<Long, ValueObject<T>> {
+
+    // same as HashIndex
+    protected static final int INDEX_RETRIEVAL_COST = 30;
+
+    private static final Set<Class<? extends Query>> SUPPORTED_QUERIES = Collections.unmodifiableSet(new HashSet<Class<? extends Query>>() {{
+        add(Equal.class);
+    }});
+
+    private final Snapshot<T> snapshot;
+    private final Snapshot<T>.Table table;
+
+    SnapshotIndex(Snapshot<T> snapshot, Snapshot<T>.Table table, SimpleAttribute<ValueObject<T>, Long> attribute) {
+        super(attribute, SUPPORTED_QUERIES);
+        this.snapshot = snapshot;
+        this.table = table;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public boolean isQuantized() {
+        return false;
+    }
+
+    @Override
+    public Index<ValueObject<T>> getEffectiveIndex() {
+        return this;
+    }
+
+    @Override
+    public ResultSet<ValueObject<T>> retrieve(Query<ValueObject<T>> query, QueryOptions queryOptions) {
+        if (query.getClass().equals(Equal.class)) {
+            Equal<ValueObject<T>, Long> equal = (Equal<ValueObject<T>, Long>) query;
+            return new GroupResultSet(equal, queryOptions, table.group(equal.getValue()));
+        }
+        throw new IllegalArgumentException("Unsupported query: " + query);
+    }
+
+    @Override
+    public boolean addAll(ObjectSet<ValueObject<T>> objectSet, QueryOptions queryOptions) {
+        throw new UnsupportedOperationException("Snapshot index is read-only");
+    }
+
+    @Override
+    public boolean removeAll(ObjectSet<ValueObject<T>> objectSet, QueryOptions queryOptions) {
+        throw new UnsupportedOperationException("Snapshot index is read-only");
+    }
+
+    @Override
+    public void clear(QueryOptions queryOptions) {
+        throw new UnsupportedOperationException("Snapshot index is read-only");
+    }
+
+    /**
+     * The table is mapped with the rows, the store is not read
+     */
+    @Override
+    public void init(ObjectStore<ValueObject<T>> objectStore, QueryOptions queryOptions) {
+    }
+
+    /**
+     * Rows of a group of the table, materialized while iterated
+     */
+    private class GroupResultSet extends ResultSet<ValueObject<T>> {
+        private final Equal<ValueObject<T>, Long> equal;
+        private final QueryOptions queryOptions;
+        private final int from;
+        private final int to;
+
+        GroupResultSet(Equal<ValueObject<T>, Long> equal, QueryOptions queryOptions, int group) {
+            this.equal = equal;
+            this.queryOptions = queryOptions;
+            this.from = group < 0 ? 0 : table.start(group);
+            this.to = group < 0 ? 0 : table.start(group + 1);
+        }
+
+        @Override
+        public Iterator<ValueObject<T>> iterator() {
+            return new UnmodifiableIterator<ValueObject<T>>() {
+                private int i = from;
+
+                @Override
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                @Override
+                public ValueObject<T> next() {
+                    if (i >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return snapshot.row(table.row(i++));
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(ValueObject<T> object) {
+            if (object == null || !equal.matches(object, queryOptions)) {
+                return false;
+            }
+            for (int i = from; i < to; i++) {
+                if (object.equals(snapshot.row(table.row(i)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean matches(ValueObject<T> object) {
+            return equal.matches(object, queryOptions);
+        }
+
+        @Override
+        public Query<ValueObject<T>> getQuery() {
+            return equal;
+        }
+
+        @Override
+        public QueryOptions getQueryOptions() {
+            return queryOptions;
+        }
+
+        @Override
+        public int getRetrievalCost() {
+            return INDEX_RETRIEVAL_COST;
+        }
+
+        @Override
+        public int getMergeCost() {
+            return to - from;
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
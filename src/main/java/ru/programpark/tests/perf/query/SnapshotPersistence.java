@@ -0,0 +1,138 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.support.CloseableIterator;
+import com.googlecode.cqengine.persistence.Persistence;
+import com.googlecode.cqengine.persistence.support.ObjectStore;
+import com.googlecode.cqengine.query.option.QueryOptions;
+
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+/**
+ * Read-only persistence over the rows of a {@link Snapshot}, see {@link Snapshot#persistence}. Rows are materialized
+ * while iterated, contains() probes the table of the primary key.
+ */
+class SnapshotPersistence<T extends Enum<T>> implements Persistence<ValueObject<T>, Long> {
+
+    private final Snapshot<T> snapshot;
+    private final Snapshot<T>.Table primaryKeys;
+    private final SimpleAttribute<ValueObject<T>, Long> primaryKey;
+
+    SnapshotPersistence(Snapshot<T> snapshot, Snapshot<T>.Table primaryKeys, SimpleAttribute<ValueObject<T>, Long> primaryKey) {
+        this.snapshot = snapshot;
+        this.primaryKeys = primaryKeys;
+        this.primaryKey = primaryKey;
+    }
+
+    @Override
+    public ObjectStore<ValueObject<T>> createObjectStore() {
+        return new RowStore();
+    }
+
+    @Override
+    public boolean supportsIndex(Index<ValueObject<T>> index) {
+        return true;
+    }
+
+    @Override
+    public void openRequestScopeResources(QueryOptions queryOptions) {
+    }
+
+    @Override
+    public void closeRequestScopeResources(QueryOptions queryOptions) {
+    }
+
+    @Override
+    public SimpleAttribute<ValueObject<T>, Long> getPrimaryKeyAttribute() {
+        return primaryKey;
+    }
+
+    private class RowStore implements ObjectStore<ValueObject<T>> {
+
+        @Override
+        public int size(QueryOptions queryOptions) {
+            return snapshot.size();
+        }
+
+        @Override
+        public boolean contains(Object o, QueryOptions queryOptions) {
+            if (!(o instanceof ValueObject)) {
+                return false;
+            }
+            Long key = primaryKey.getValue((ValueObject<T>) o, queryOptions);
+            int group = key == null ? -1 : primaryKeys.group(key);
+            return group >= 0 && o.equals(snapshot.row(primaryKeys.row(primaryKeys.start(group))));
+        }
+
+        @Override
+        public CloseableIterator<ValueObject<T>> iterator(QueryOptions queryOptions) {
+            return new CloseableIterator<ValueObject<T>>() {
+                private int row;
+
+                @Override
+                public boolean hasNext() {
+                    return row < snapshot.size();
+                }
+
+                @Override
+                public ValueObject<T> next() {
+                    if (row >= snapshot.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    return snapshot.row(row++);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public boolean isEmpty(QueryOptions queryOptions) {
+            return snapshot.size() == 0;
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> objects, QueryOptions queryOptions) {
+            for (Object o : objects) {
+                if (!contains(o, queryOptions)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean add(ValueObject<T> object, QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public boolean remove(Object object, QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends ValueObject<T>> objects, QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> objects, QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> objects, QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public void clear(QueryOptions queryOptions) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+    }
+}
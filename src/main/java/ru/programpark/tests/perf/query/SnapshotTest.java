@@ -0,0 +1,223 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.ConcurrentIndexedCollection;
+import com.googlecode.cqengine.IndexedCollection;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.resultset.ResultSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.googlecode.cqengine.query.QueryFactory.equal;
+import static ru.programpark.tests.perf.query.Fields.*;
+
+/**
+ * Startup from a memory mapped {@link Snapshot} vs rebuilding the indexed VObject collection from scratch.
+ * *Restored benchmarks are CQEngine retrieve() on a collection over the snapshot, its indexes probe the mapped tables,
+ * *Collection ones are retrieve() on the rebuilt collection and *Snapshot ones are raw get()/count() of the snapshot,
+ * i.e. the cost of a raw lookup next to the engine path.
+ * Startup benchmarks are single shot, lookups are throughput.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 2, time = 5, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class SnapshotTest {
+
+    @Param({
+            "1000000", "5000000"
+    })
+    private int totalObjects;
+
+    // ids and concepts of lookups, see Workload
+    @Param({
+            "UNIFORM"
+    })
+    private String distribution;
+
+    private List<ValueObject<VObject>> rows;
+    private Long[] ids;
+    private Long[] cncIds;
+    private Workload idKeys;
+    private Workload cncKeys;
+    private Path file;
+    private Path written;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] svalues = generate("s", maxCnc() / 100);
+        Long[] lvalues = generate(maxCnc() / 10);
+        cncIds = generate(maxCnc());
+        ids = new Long[totalObjects];
+        ValueObject<VObject>[] rows = (ValueObject<VObject>[]) new ValueObject[totalObjects];
+        for (int i = 0; i < totalObjects; i++) {
+            ValueObject<VObject> object = VObject.newObject(ValueObject.Layout.PRIMITIVE, maxCnc());
+            object.setValue(VObject.lvalue, random(lvalues));
+            object.setValue(VObject.svalue, random(svalues));
+            rows[i] = object;
+            ids[i] = object.getId();
+        }
+        this.rows = Arrays.asList(rows);
+        idKeys = Workload.of(distribution, totalObjects);
+        cncKeys = Workload.of(distribution, cncIds.length);
+        file = Files.createTempFile("vobject", ".snapshot");
+        written = Files.createTempFile("vobject", ".snapshot");
+        Snapshot.write(file, VObject.class, this.rows, indexed());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(written);
+    }
+
+    private int maxCnc() {
+        return (totalObjects * 10) / 100;
+    }
+
+    private static List<VObject> indexed() {
+        return Arrays.asList(VObject.id, VObject.cncId, VObject.lvalue);
+    }
+
+    private IndexedCollection<ValueObject<VObject>> rebuild(List<ValueObject<VObject>> rows) {
+        IndexedCollection<ValueObject<VObject>> objects = new ConcurrentIndexedCollection<>(
+                BulkLoad.persistence(getAttr(ValueObject.Layout.PRIMITIVE, VObject.id), totalObjects));
+        BulkLoad.load(objects, rows, Arrays.<Index<ValueObject<VObject>>>asList(
+                BulkLoad.uniqueIndex(getAttr(ValueObject.Layout.PRIMITIVE, VObject.id), totalObjects),
+                BulkLoad.hashIndex(getAttr(ValueObject.Layout.PRIMITIVE, VObject.cncId), maxCnc()),
+                BulkLoad.hashIndex(getAttr(ValueObject.Layout.PRIMITIVE, VObject.lvalue), maxCnc() / 10)
+        ));
+        return objects;
+    }
+
+    /**
+     * Read-only collection over the snapshot with its tables as indexes, no rows are copied or indexed
+     */
+    private static IndexedCollection<ValueObject<VObject>> restore(Snapshot<VObject> snapshot) {
+        IndexedCollection<ValueObject<VObject>> objects = new ConcurrentIndexedCollection<>(
+                snapshot.persistence(VObject.id, getAttr(ValueObject.Layout.PRIMITIVE, VObject.id)));
+        for (VObject field : indexed()) {
+            objects.addIndex(snapshot.index(field, getAttr(ValueObject.Layout.PRIMITIVE, field)));
+        }
+        return objects;
+    }
+
+    private static ValueObject<VObject> byId(IndexedCollection<ValueObject<VObject>> objects, Long id) {
+        try (ResultSet<ValueObject<VObject>> rs = objects.retrieve(equal(getAttr(ValueObject.Layout.PRIMITIVE, VObject.id), id))) {
+            return Sequence.first(rs);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public long writeSnapshot() throws IOException {
+        Snapshot.write(written, VObject.class, rows, indexed());
+        return Files.size(written);
+    }
+
+    /**
+     * Collection filled and indexed from deserialized rows, which are materialized up front as well
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public ValueObject<VObject> rebuildToFirstQuery() throws IOException {
+        try (Snapshot<VObject> snapshot = Snapshot.open(file, VObject.class)) {
+            return byId(rebuild(snapshot.rows()), idKeys.nextId(ids));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public ValueObject<VObject> restoreToFirstQuery() throws IOException {
+        try (Snapshot<VObject> snapshot = Snapshot.open(file, VObject.class)) {
+            return byId(restore(snapshot), idKeys.nextId(ids));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public ValueObject<VObject> openToFirstGet() throws IOException {
+        try (Snapshot<VObject> snapshot = Snapshot.open(file, VObject.class)) {
+            return snapshot.get(VObject.id, idKeys.nextId(ids));
+        }
+    }
+
+    @Benchmark
+    public ValueObject<VObject> queryByIdCollection(Rebuilt rebuilt) {
+        return byId(rebuilt.objects, idKeys.nextId(ids));
+    }
+
+    @Benchmark
+    public ValueObject<VObject> queryByIdRestored(Restored restored) {
+        return byId(restored.objects, idKeys.nextId(ids));
+    }
+
+    @Benchmark
+    public ValueObject<VObject> getByIdSnapshot(Restored restored) {
+        return restored.snapshot.get(VObject.id, idKeys.nextId(ids));
+    }
+
+    @Benchmark
+    public int sizeByCncCollection(Rebuilt rebuilt) {
+        try (ResultSet<ValueObject<VObject>> rs = rebuilt.objects.retrieve(equal(getAttr(ValueObject.Layout.PRIMITIVE, VObject.cncId), cncKeys.nextId(cncIds)))) {
+            return rs.size();
+        }
+    }
+
+    @Benchmark
+    public int sizeByCncRestored(Restored restored) {
+        try (ResultSet<ValueObject<VObject>> rs = restored.objects.retrieve(equal(getAttr(ValueObject.Layout.PRIMITIVE, VObject.cncId), cncKeys.nextId(cncIds)))) {
+            return rs.size();
+        }
+    }
+
+    @Benchmark
+    public int countByCncSnapshot(Restored restored) {
+        return restored.snapshot.count(VObject.cncId, cncKeys.nextId(cncIds));
+    }
+
+    @State(Scope.Benchmark)
+    public static class Rebuilt {
+        private IndexedCollection<ValueObject<VObject>> objects;
+
+        @Setup
+        public void setUp(SnapshotTest test) {
+            objects = test.rebuild(test.rows);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Restored {
+        private Snapshot<VObject> snapshot;
+        private IndexedCollection<ValueObject<VObject>> objects;
+
+        @Setup
+        public void setUp(SnapshotTest test) throws IOException {
+            snapshot = Snapshot.open(test.file, VObject.class);
+            objects = restore(snapshot);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            snapshot.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ru.programpark.tests.perf.query;
+
+import com.googlecode.cqengine.attribute.Attribute;
+import com.googlecode.cqengine.attribute.SimpleAttribute;
+import com.googlecode.cqengine.index.Index;
+import com.googlecode.cqengine.index.disk.DiskIndex;
+import com.googlecode.cqengine.index.offheap.OffHeapIndex;
+import com.googlecode.cqengine.persistence.Persistence;
+import com.googlecode.cqengine.persistence.disk.DiskPersistence;
+import com.googlecode.cqengine.persistence.offheap.OffHeapPersistence;
+import com.googlecode.cqengine.persistence.onheap.OnHeapPersistence;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+/**
+ * Where collections keep objects and indexes. Off heap and disk storages serialize objects
+ * with {@link ValueObjectSerializer} and support only their own indexes, primary key lookups go to the storage itself.
+ */
+public enum Storage {
+    HEAP {
+        @Override
+        public <O> Persistence<O, ?> persistence(SimpleAttribute<O, Long> primaryKey) {
+            return OnHeapPersistence.withoutPrimaryKey();
+        }
+
+        @Override
+        public <O, A extends Comparable<A>> Index<O> index(Attribute<O, A> attribute, Supplier<Index<O>> onHeap) {
+            return onHeap.get();
+        }
+    },
+    OFF_HEAP {
+        @Override
+        public <O> Persistence<O, ?> persistence(SimpleAttribute<O, Long> primaryKey) {
+            return OffHeapPersistence.onPrimaryKey(primaryKey);
+        }
+
+        @Override
+        public <O, A extends Comparable<A>> Index<O> index(Attribute<O, A> attribute, Supplier<Index<O>> onHeap) {
+            return OffHeapIndex.onAttribute(attribute);
+        }
+    },
+    DISK {
+        @Override
+        public <O> Persistence<O, ?> persistence(SimpleAttribute<O, Long> primaryKey) {
+            return DiskPersistence.onPrimaryKey(primaryKey);
+        }
+
+        @Override
+        public <O, A extends Comparable<A>> Index<O> index(Attribute<O, A> attribute, Supplier<Index<O>> onHeap) {
+            return DiskIndex.onAttribute(attribute);
+        }
+    };
+
+    public abstract <O> Persistence<O, ?> persistence(SimpleAttribute<O, Long> primaryKey);
+
+    /**
+     * @param onHeap index used on heap
+     */
+    public abstract <O, A extends Comparable<A>> Index<O> index(Attribute<O, A> attribute, Supplier<Index<O>> onHeap);
+
+    public boolean onHeap() {
+        return this == HEAP;
+    }
+
+    /**
+     * Rejects on heap index params off heap, where indices of the storage are used instead: every other value
+     * would re-run the same benchmark. Benchmarks run on heap by default and the README sweeps storages with the
+     * supported index only, this guards params given explicitly.
+     *
+     * @param index        index param
+     * @param offHeapIndex the only value of the param run off heap
+     */
+    public void requireIndex(Enum<?> index, Enum<?> offHeapIndex) {
+        if (!onHeap() && index != offHeapIndex) {
+            throw new IllegalArgumentException("Unsupported index: " + index + " in " + this + " storage, only " + offHeapIndex + " is run");
+        }
+    }
+
+    /**
+     * Frees memory and files of the persistence
+     */
+    public static void close(Persistence<?, ?> persistence) throws IOException {
+        if (persistence instanceof OffHeapPersistence) {
+            ((OffHeapPersistence) persistence).close();
+        } else if (persistence instanceof DiskPersistence) {
+            DiskPersistence<?, ?> disk = (DiskPersistence<?, ?>) persistence;
+            if (!disk.getFile().delete()) {
+                disk.getFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -1,24 +1,188 @@
 package ru.programpark.tests.perf.query;
 
 
-public class ValueObject<T extends Enum> {
+import com.esotericsoftware.kryo.DefaultSerializer;
 
-    private Object[] values;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 
-    public ValueObject(int size) {
-        this.values = new Object[size];
+/**
+ * Row of fields named by enum T. Storage of fields is defined by {@link Layout}.
+ * Rows are equal by id, as copies read from off heap or disk persistence must be equal to the stored ones.
+ * Rows without an id are equal only to themselves.
+ */
+@DefaultSerializer(ValueObjectSerializer.class)
+public abstract class ValueObject<T extends Enum<T>> {
+
+    public abstract Long getId();
+
+    public abstract Object getValue(T name);
+
+    public abstract void setValue(T name, Object value);
+
+    /**
+     * Sets a long field, layouts with unboxed long fields store the value without boxing it
+     */
+    public void setLong(T name, long value) {
+        setValue(name, value);
     }
 
-    public Long getId() {
-        return (Long) values[0];
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        Long id = getId();
+        return id != null && o instanceof ValueObject && id.equals(((ValueObject) o).getId());
     }
 
-    public Object getValue(T name) {
-        return values[name.ordinal()];
+    @Override
+    public int hashCode() {
+        Long id = getId();
+        return id == null ? System.identityHashCode(this) : id.hashCode();
     }
 
-    public void setValue(T name, Object value) {
-        values[name.ordinal()] = value;
+    public enum Layout {
+        // all fields in Object[], long values are boxed
+        BOXED {
+            @Override
+            public <T extends Enum<T>> ValueObject<T> newObject(Slots slots) {
+                return new BoxedValueObject<>(slots.size());
+            }
+        },
+        // long fields unboxed in long[], other fields in Object[]
+        PRIMITIVE {
+            @Override
+            public <T extends Enum<T>> ValueObject<T> newObject(Slots slots) {
+                return new PrimitiveValueObject<>(slots);
+            }
+        },
+        // long fields unboxed, string fields as codes of the shared Dictionary, both in long[]
+        DICTIONARY {
+            @Override
+            public <T extends Enum<T>> ValueObject<T> newObject(Slots slots) {
+                return new EncodedValueObject<>(slots);
+            }
+        };
+
+        public abstract <T extends Enum<T>> ValueObject<T> newObject(Slots slots);
     }
 
+    /**
+     * Maps enum fields to long or reference slots of a {@link PrimitiveValueObject}.
+     * Fields absent in both sets are not stored.
+     */
+    public static final class Slots {
+        // all slots by id
+        private static final List<Slots> registry = new ArrayList<>();
+        // slot index for long fields, ~index for reference fields
+        private final int[] slots;
+        private final int longs;
+        private final int refs;
+        private final int id;
+        // reference fields kept as dictionary codes in long slots, null if there are none
+        private final boolean[] encodedFields;
+        private Slots encoded;
+
+        private Slots(int[] slots, int longs, int refs, int id, boolean[] encodedFields) {
+            this.slots = slots;
+            this.longs = longs;
+            this.refs = refs;
+            this.id = id;
+            this.encodedFields = encodedFields;
+        }
+
+        public static <E extends Enum<E>> Slots of(Class<E> type, EnumSet<E> longFields, EnumSet<E> refFields) {
+            int size = 0;
+            for (E e : longFields) {
+                size = Math.max(size, e.ordinal() + 1);
+            }
+            for (E e : refFields) {
+                size = Math.max(size, e.ordinal() + 1);
+            }
+            int[] slots = new int[size];
+            int longs = 0;
+            int refs = 0;
+            // iterate in ordinal order so id is always long slot 0
+            for (E e : type.getEnumConstants()) {
+                if (longFields.contains(e)) {
+                    slots[e.ordinal()] = longs++;
+                } else if (refFields.contains(e)) {
+                    slots[e.ordinal()] = ~(refs++);
+                }
+            }
+            synchronized (registry) {
+                Slots result = new Slots(slots, longs, refs, registry.size(), null);
+                registry.add(result);
+                return result;
+            }
+        }
+
+        /**
+         * @return slots with reference fields moved to long slots after the long fields, for {@link EncodedValueObject}
+         */
+        public Slots encoded() {
+            if (encodedFields != null) {
+                return this;
+            }
+            synchronized (registry) {
+                if (encoded == null) {
+                    int[] encodedSlots = slots.clone();
+                    boolean[] encodedFields = new boolean[slots.length];
+                    for (int i = 0; i < slots.length; i++) {
+                        if (slots[i] < 0) {
+                            encodedSlots[i] = longs + ~slots[i];
+                            encodedFields[i] = true;
+                        }
+                    }
+                    encoded = new Slots(encodedSlots, longs + refs, 0, registry.size(), encodedFields);
+                    registry.add(encoded);
+                }
+                return encoded;
+            }
+        }
+
+        public boolean isEncoded() {
+            return encodedFields != null;
+        }
+
+        public boolean isEncoded(Enum<?> name) {
+            return encodedFields != null && encodedFields[name.ordinal()];
+        }
+
+        public static Slots byId(int id) {
+            synchronized (registry) {
+                return registry.get(id);
+            }
+        }
+
+        /**
+         * @return index of the slots in order of creation, stable while slots are created in the same order
+         */
+        public int id() {
+            return id;
+        }
+
+        public int size() {
+            return slots.length;
+        }
+
+        public int longs() {
+            return longs;
+        }
+
+        public int refs() {
+            return refs;
+        }
+
+        public boolean isLong(Enum<?> name) {
+            return slots[name.ordinal()] >= 0;
+        }
+
+        public int slot(Enum<?> name) {
+            int slot = slots[name.ordinal()];
+            return slot >= 0 ? slot : ~slot;
+        }
+    }
 }
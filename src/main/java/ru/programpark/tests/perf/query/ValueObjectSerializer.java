@@ -0,0 +1,92 @@
+package ru.programpark.tests.perf.query;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import ru.programpark.tests.perf.query.ValueObject.Slots;
+
+/**
+ * Compact Kryo format of {@link ValueObject} for off heap and disk persistence, which serialize objects with Kryo.
+ * Default field serialization writes class names and boxed values, here rows are:
+ * <ul>
+ * <li>BOXED: layout, size, tagged values: null, var long or string</li>
+ * <li>PRIMITIVE: layout, id of {@link Slots}, var longs, strings</li>
+ * </ul>
+ * DICTIONARY rows are written as PRIMITIVE ones with encoded slots, i.e. with codes of strings.
+ * Reference fields are strings in all our objects.
+ */
+public class ValueObjectSerializer extends Serializer<ValueObject<?>> {
+
+    @SuppressWarnings("unchecked")
+    static final Class<ValueObject<?>> TYPE = (Class<ValueObject<?>>) (Class<?>) ValueObject.class;
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte STRING = 2;
+
+    @Override
+    public void write(Kryo kryo, Output output, ValueObject<?> object) {
+        if (object instanceof PrimitiveValueObject) {
+            PrimitiveValueObject<?> primitive = (PrimitiveValueObject<?>) object;
+            output.writeByte(ValueObject.Layout.PRIMITIVE.ordinal());
+            output.writeVarInt(primitive.slots().id(), true);
+            for (long value : primitive.longs()) {
+                output.writeVarLong(value, true);
+            }
+            for (Object value : primitive.refs()) {
+                output.writeString((String) value);
+            }
+        } else if (object instanceof BoxedValueObject) {
+            Object[] values = ((BoxedValueObject<?>) object).values();
+            output.writeByte(ValueObject.Layout.BOXED.ordinal());
+            output.writeVarInt(values.length, true);
+            for (Object value : values) {
+                if (value == null) {
+                    output.writeByte(NULL);
+                } else if (value instanceof Long) {
+                    output.writeByte(LONG);
+                    output.writeVarLong((Long) value, true);
+                } else if (value instanceof String) {
+                    output.writeByte(STRING);
+                    output.writeString((String) value);
+                } else {
+                    throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported object type: " + object.getClass());
+        }
+    }
+
+    @Override
+    public ValueObject<?> read(Kryo kryo, Input input, Class<ValueObject<?>> type) {
+        ValueObject.Layout layout = ValueObject.Layout.values()[input.readByte()];
+        switch (layout) {
+            case PRIMITIVE: {
+                Slots slots = Slots.byId(input.readVarInt(true));
+                PrimitiveValueObject<?> object = slots.isEncoded() ? new EncodedValueObject<>(slots) : new PrimitiveValueObject<>(slots);
+                long[] longs = object.longs();
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = input.readVarLong(true);
+                }
+                Object[] refs = object.refs();
+                for (int i = 0; i < refs.length; i++) {
+                    refs[i] = input.readString();
+                }
+                return object;
+            }
+            case BOXED: {
+                BoxedValueObject<?> object = new BoxedValueObject<>(input.readVarInt(true));
+                Object[] values = object.values();
+                for (int i = 0; i < values.length; i++) {
+                    byte tag = input.readByte();
+                    values[i] = tag == LONG ? (Object) input.readVarLong(true) : tag == STRING ? input.readString() : null;
+                }
+                return object;
+            }
+            default:
+                throw new IllegalStateException("Unknown layout: " + layout);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package ru.programpark.tests.perf.query;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Keys drawn by a distribution, precomputed into an array of positions so that benchmarks only read the next one.
+ * Positions are indices of an array of keys in creation order, negative positions are misses, i.e. keys that no
+ * object has. Each thread reads the positions in order from its own random start.
+ * <p>
+ * Distributions are given as NAME or NAME:arguments, e.g. in a {@code distribution} @Param:
+ * <ul>
+ * <li>UNIFORM - every key with the same probability, as {@link Sequence#randomObject(Object[])}</li>
+ * <li>ZIPF:exponent - Zipf distributed popularity of keys at random positions, exponent 0.99 by default</li>
+ * <li>HOTSPOT:keys:share - share of the draws on a random fraction of keys, 0.2:0.8 by default</li>
+ * <li>LATEST:exponent - Zipf distributed age of keys, the newest ones are the most popular, 0.99 by default</li>
+ * <li>MISS:rate - uniform with the given share of misses, 0.5 by default</li>
+ * <li>TRACE:file - replay of a recorded trace, see {@link #trace(String, int)}</li>
+ * </ul>
+ */
+public class Workload {
+
+    // draws per distribution, wrap around
+    private static final int DRAWS = 1 << 20;
+    // distinct misses
+    private static final int MISSES = 1 << 16;
+    // same draws in every fork and run
+    private static final long SEED = 20161114L;
+
+    private final Distribution distribution;
+    private final int size;
+    private final int[] positions;
+    private final ThreadLocal<int[]> cursor;
+    private final Long[] missingIds;
+
+    public enum Distribution {
+        UNIFORM, ZIPF, HOTSPOT, LATEST, MISS, TRACE
+    }
+
+    private Workload(Distribution distribution, int size, int[] positions) {
+        this.distribution = distribution;
+        this.size = size;
+        this.positions = positions;
+        this.cursor = ThreadLocal.withInitial(() -> new int[]{ThreadLocalRandom.current().nextInt(positions.length)});
+        this.missingIds = missRate() > 0 ? missingIds() : null;
+    }
+
+    /**
+     * @param distribution NAME[:arguments], see {@link Workload}
+     * @param size         number of keys
+     */
+    public static Workload of(String distribution, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("No keys to draw: " + size);
+        }
+        int colon = distribution.indexOf(':');
+        Distribution kind = Distribution.valueOf(colon < 0 ? distribution : distribution.substring(0, colon));
+        String arguments = colon < 0 ? "" : distribution.substring(colon + 1);
+        String[] args = arguments.isEmpty() ? new String[0] : arguments.split(":");
+        SplittableRandom random = new SplittableRandom(SEED);
+        switch (kind) {
+            case UNIFORM:
+                return new Workload(kind, size, uniform(size, 0, random));
+            case ZIPF:
+                return new Workload(kind, size, zipf(size, arg(args, 0, 0.99), random));
+            case HOTSPOT:
+                return new Workload(kind, size, hotspot(size, arg(args, 0, 0.2), arg(args, 1, 0.8), random));
+            case LATEST:
+                return new Workload(kind, size, latest(size, arg(args, 0, 0.99), random));
+            case MISS:
+                return new Workload(kind, size, uniform(size, arg(args, 0, 0.5), random));
+            default:
+                if (arguments.isEmpty()) {
+                    throw new IllegalArgumentException("No trace file: " + distribution);
+                }
+                return new Workload(kind, size, trace(arguments, size));
+        }
+    }
+
+    private static double arg(String[] args, int i, double defaultValue) {
+        return i < args.length ? Double.parseDouble(args[i]) : defaultValue;
+    }
+
+    private static int[] uniform(int size, double missRate, SplittableRandom random) {
+        int[] positions = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            positions[i] = random.nextDouble() < missRate ? miss(random.nextInt(MISSES)) : random.nextInt(size);
+        }
+        return positions;
+    }
+
+    /**
+     * Ranks are mapped to random positions, popular keys are not neighbours in memory
+     */
+    private static int[] zipf(int size, double exponent, SplittableRandom random) {
+        Zipf zipf = new Zipf(size, exponent);
+        int[] permutation = permutation(size, random);
+        int[] positions = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            positions[i] = permutation[zipf.rank(random.nextDouble())];
+        }
+        return positions;
+    }
+
+    private static int[] hotspot(int size, double keys, double share, SplittableRandom random) {
+        int hot = Math.max(1, Math.min(size, (int) (size * keys)));
+        int[] permutation = permutation(size, random);
+        int[] positions = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            int rank = hot == size || random.nextDouble() < share ? random.nextInt(hot) : hot + random.nextInt(size - hot);
+            positions[i] = permutation[rank];
+        }
+        return positions;
+    }
+
+    private static int[] latest(int size, double exponent, SplittableRandom random) {
+        Zipf zipf = new Zipf(size, exponent);
+        int[] positions = new int[DRAWS];
+        for (int i = 0; i < DRAWS; i++) {
+            positions[i] = size - 1 - zipf.rank(random.nextDouble());
+        }
+        return positions;
+    }
+
+    private static int[] permutation(int size, SplittableRandom random) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        return permutation;
+    }
+
+    /**
+     * Trace is a text file with a key per line, i.e. ids logged by lookups, blank lines and lines starting with #
+     * are skipped. Lookups that found nothing start with !. Distinct keys of the trace are mapped to random positions
+     * in order of first appearance, wrapping around when the trace has more distinct keys than the benchmark.
+     * The draws are the trace in its order, i.e. repetitions and locality of the recording are kept.
+     */
+    static int[] trace(String file, int size) {
+        int[] permutation = permutation(size, new SplittableRandom(SEED));
+        Map<String, Integer> hits = new HashMap<>();
+        Map<String, Integer> misses = new HashMap<>();
+        List<Integer> positions = new ArrayList<>();
+        try (Stream<String> lines = Files.lines(Paths.get(file))) {
+            lines.map(String::trim).filter(line -> !line.isEmpty() && !line.startsWith("#")).forEach(line -> {
+                if (line.startsWith("!")) {
+                    positions.add(miss(misses.computeIfAbsent(line.substring(1).trim(), key -> misses.size() % MISSES)));
+                } else {
+                    positions.add(permutation[hits.computeIfAbsent(line, key -> hits.size() % size)]);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read trace " + file, e);
+        }
+        if (positions.isEmpty()) {
+            throw new IllegalArgumentException("Empty trace: " + file);
+        }
+        return positions.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int miss(int i) {
+        return -1 - i;
+    }
+
+    /**
+     * @return position of the next key in [0, size), negative for a miss
+     */
+    public int next() {
+        int[] cursor = this.cursor.get();
+        int i = cursor[0];
+        cursor[0] = i + 1 == positions.length ? 0 : i + 1;
+        return positions[i];
+    }
+
+    /**
+     * @return next key, missing for a miss
+     */
+    public <T> T next(T[] keys, T missing) {
+        int position = next();
+        return position < 0 ? missing : keys[position];
+    }
+
+    /**
+     * @return next key, one of missing for a miss
+     */
+    public <T> T next(T[] keys, T[] missing) {
+        int position = next();
+        return position < 0 ? missing[(-1 - position) % missing.length] : keys[position];
+    }
+
+    /**
+     * @return next id, for a miss a negative id that no object has
+     */
+    public Long nextId(Long[] ids) {
+        int position = next();
+        return position < 0 ? missingIds[-1 - position] : ids[position];
+    }
+
+    public List<Long> nextIds(Long[] ids, int count) {
+        List<Long> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(nextId(ids));
+        }
+        return list;
+    }
+
+    /**
+     * Boxed up front, misses allocate no more than hits
+     */
+    private static Long[] missingIds() {
+        Long[] missingIds = new Long[MISSES];
+        for (int i = 0; i < MISSES; i++) {
+            missingIds[i] = -1L - i;
+        }
+        return missingIds;
+    }
+
+    /**
+     * @return share of misses in the draws
+     */
+    public double missRate() {
+        long misses = 0;
+        for (int position : positions) {
+            if (position < 0) {
+                misses++;
+            }
+        }
+        return (double) misses / positions.length;
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return distribution + " of " + size + " keys, " + positions.length + " draws, miss rate " + missRate();
+    }
+}
@@ -0,0 +1,41 @@
+package ru.programpark.tests.perf.query;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Zipf distributed ranks 0..n-1: rank k is drawn with probability proportional to 1 / (k + 1)^exponent.
+ * Exponent 0 is uniform, around 1 is typical for repeating queries.
+ */
+public class Zipf {
+
+    private final double[] cumulative;
+
+    public Zipf(int n, double exponent) {
+        cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= sum;
+        }
+    }
+
+    public int next() {
+        return rank(ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param uniform random value in [0, 1)
+     */
+    public int rank(double uniform) {
+        int k = Arrays.binarySearch(cumulative, uniform);
+        return Math.min(k < 0 ? -k - 1 : k, cumulative.length - 1);
+    }
+
+    public int size() {
+        return cumulative.length;
+    }
+}